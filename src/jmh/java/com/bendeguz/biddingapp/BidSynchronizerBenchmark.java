@@ -0,0 +1,98 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link BidSynchronizer} in both modes, with the bids spread uniformly over a number of campaigns.
+ * A campaign accepts 10 bids per 10 seconds, so most operations are refused - just like for a popular campaign
+ * in production.
+ * <p>
+ * Each operation is measured with 1, 4 and 16 threads, to show how it behaves under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BidSynchronizerBenchmark {
+    private static final long BID_AMOUNT = Money.MICROS_PER_NOK;
+
+    @Param({"LOCKING", "LOCK_FREE"})
+    private BidSynchronizer.Mode mode;
+
+    @Param({"1", "100", "10000"})
+    private int campaignCount;
+
+    private BidSynchronizer bidSynchronizer;
+
+    @Setup
+    public void setUp() {
+        bidSynchronizer = new BidSynchronizer(mode);
+    }
+
+    private long randomCampaignId() {
+        return ThreadLocalRandom.current().nextInt(campaignCount);
+    }
+
+    /**
+     * Checks and registers the spending while holding the campaign's lock.
+     */
+    private boolean lockCheckSpend() throws InterruptedException {
+        long campaignId = randomCampaignId();
+        bidSynchronizer.lockCampaign(campaignId);
+        try {
+            if (bidSynchronizer.isCampaignAvailableForSpending(campaignId, BID_AMOUNT)) {
+                bidSynchronizer.spendOnCampaign(campaignId, BID_AMOUNT);
+                return true;
+            }
+            return false;
+        } finally {
+            bidSynchronizer.unlockCampaign(campaignId);
+        }
+    }
+
+    private boolean tryToSpend() throws InterruptedException {
+        return bidSynchronizer.tryToSpendOnCampaign(randomCampaignId(), BID_AMOUNT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean lockCheckSpend1Thread() throws InterruptedException {
+        return lockCheckSpend();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lockCheckSpend4Threads() throws InterruptedException {
+        return lockCheckSpend();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean lockCheckSpend16Threads() throws InterruptedException {
+        return lockCheckSpend();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean tryToSpend1Thread() throws InterruptedException {
+        return tryToSpend();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean tryToSpend4Threads() throws InterruptedException {
+        return tryToSpend();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean tryToSpend16Threads() throws InterruptedException {
+        return tryToSpend();
+    }
+}
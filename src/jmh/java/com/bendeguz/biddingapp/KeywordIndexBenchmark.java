@@ -0,0 +1,63 @@
+package com.bendeguz.biddingapp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the candidate lookup of {@link KeywordIndex}, with bids carrying 10 to 50 keywords out of
+ * a vocabulary of 10000. Every campaign has 5 keywords, and a tenth of them are removed from the index, as if
+ * their budget had run out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KeywordIndexBenchmark {
+    private static final int VOCABULARY_SIZE = 10_000;
+    private static final int KEYWORDS_PER_CAMPAIGN = 5;
+    private static final int BID_COUNT = 1024;
+
+    @Param({"1000", "100000"})
+    private int campaignCount;
+
+    @Param({"10", "50"})
+    private int keywordsPerBid;
+
+    private KeywordIndex keywordIndex;
+    private String[][] bids;
+    private int nextBid;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        keywordIndex = new KeywordIndex();
+        for (long id = 1; id <= campaignCount; id++) {
+            List<String> keywords = new ArrayList<>();
+            for (int i = 0; i < KEYWORDS_PER_CAMPAIGN; i++) {
+                keywords.add("Keyword " + random.nextInt(VOCABULARY_SIZE));
+            }
+            keywordIndex.addCampaign(id, keywords);
+        }
+        for (long id = 1; id <= campaignCount; id += 10) {
+            keywordIndex.removeCampaign(id);
+        }
+        bids = new String[BID_COUNT][keywordsPerBid];
+        for (String[] bid : bids) {
+            for (int i = 0; i < keywordsPerBid; i++) {
+                bid[i] = "Keyword " + random.nextInt(VOCABULARY_SIZE);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Long> findCampaignIdsByKeywords() {
+        nextBid = (nextBid + 1) % BID_COUNT;
+        return keywordIndex.findCampaignIdsByKeywords(bids[nextBid]);
+    }
+}
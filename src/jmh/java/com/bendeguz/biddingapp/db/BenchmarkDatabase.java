@@ -0,0 +1,109 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.context.internal.ManagedSessionContext;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * An in-memory H2 database for the benchmarks. Its schema is generated from the entities, and it's filled with
+ * campaigns whose keywords are drawn uniformly from a fixed vocabulary. The budgets are large enough to never run out
+ * during a benchmark, so the campaigns with IDs from 1 to {@code campaignCount} are always available.
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+    public static final int KEYWORD_COUNT = 1000;
+    private static final int KEYWORDS_PER_CAMPAIGN = 5;
+    private static final int KEYWORDS_PER_BID = 3;
+    private static final double BUDGET = 1_000_000_000;
+    private static final AtomicInteger DATABASE_COUNT = new AtomicInteger();
+
+    private final SessionFactory sessionFactory;
+    private final int campaignCount;
+
+    public BenchmarkDatabase(int campaignCount) {
+        this.campaignCount = campaignCount;
+        Configuration configuration = new Configuration();
+        configuration.setProperty(AvailableSettings.URL,
+                "jdbc:h2:mem:benchmark-" + DATABASE_COUNT.incrementAndGet() + ";MODE=LEGACY;DB_CLOSE_DELAY=-1");
+        configuration.setProperty(AvailableSettings.DRIVER, "org.h2.Driver");
+        configuration.setProperty(AvailableSettings.HBM2DDL_AUTO, "create");
+        configuration.setProperty(AvailableSettings.CURRENT_SESSION_CONTEXT_CLASS, "managed");
+        configuration.addAnnotatedClass(Campaign.class);
+        configuration.addAnnotatedClass(Keyword.class);
+        sessionFactory = configuration.buildSessionFactory();
+
+        Random random = new Random(campaignCount);
+        CampaignDAO campaignDAO = new CampaignDAO(sessionFactory);
+        inUnitOfWork(() -> {
+            Session session = sessionFactory.getCurrentSession();
+            for (int i = 1; i <= campaignCount; i++) {
+                campaignDAO.create(new Campaign("Campaign " + i, randomKeywords(random, KEYWORDS_PER_CAMPAIGN), BUDGET));
+                if (i % 1000 == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            return null;
+        });
+    }
+
+    private static String[] randomKeywords(Random random, int count) {
+        String[] keywords = new String[count];
+        for (int i = 0; i < count; i++) {
+            keywords[i] = "keyword-" + random.nextInt(KEYWORD_COUNT);
+        }
+        return keywords;
+    }
+
+    /**
+     * @return random keywords of a bid, some of them might not belong to any campaign.
+     */
+    public static String[] randomBidKeywords() {
+        return randomKeywords(ThreadLocalRandom.current(), KEYWORDS_PER_BID);
+    }
+
+    /**
+     * @return the ID of a random campaign.
+     */
+    public long randomCampaignId() {
+        return 1 + ThreadLocalRandom.current().nextInt(campaignCount);
+    }
+
+    /**
+     * Runs the work with a session bound to the current thread and in a transaction, just like {@code @UnitOfWork}.
+     */
+    public <T> T inUnitOfWork(Supplier<T> work) {
+        Session session = sessionFactory.openSession();
+        ManagedSessionContext.bind(session);
+        Transaction transaction = session.beginTransaction();
+        try {
+            T result = work.get();
+            transaction.commit();
+            return result;
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            ManagedSessionContext.unbind(sessionFactory);
+            session.close();
+        }
+    }
+
+    public SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    @Override
+    public void close() {
+        sessionFactory.close();
+    }
+}
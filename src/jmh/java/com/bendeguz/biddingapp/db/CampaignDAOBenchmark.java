@@ -0,0 +1,49 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the queries of {@link CampaignDAO} used by bidding, against an in-memory H2 database of several sizes.
+ * Each operation runs in its own unit of work, like a bid does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CampaignDAOBenchmark {
+    @Param({"100", "1000", "10000"})
+    private int campaignCount;
+
+    private BenchmarkDatabase database;
+    private CampaignDAO campaignDAO;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase(campaignCount);
+        campaignDAO = new CampaignDAO(database.getSessionFactory());
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public List<Campaign> findCampaignsWithPositiveBalanceByKeywords() {
+        String[] keywords = BenchmarkDatabase.randomBidKeywords();
+        return database.inUnitOfWork(() -> campaignDAO.findCampaignsWithPositiveBalanceByKeywords(keywords));
+    }
+
+    @Benchmark
+    public boolean tryToIncreaseSpending() {
+        long campaignId = database.randomCampaignId();
+        return database.inUnitOfWork(() -> campaignDAO.tryToIncreaseSpending(campaignId, Money.MICROS_PER_NOK));
+    }
+}
@@ -0,0 +1,290 @@
+package com.bendeguz.biddingapp.loadtest;
+
+import com.bendeguz.biddingapp.BiddingApplication;
+import com.bendeguz.biddingapp.BiddingConfiguration;
+import com.bendeguz.biddingapp.api.BidParam;
+import com.bendeguz.biddingapp.api.CampaignParam;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.testing.ConfigOverride;
+import io.dropwizard.testing.DropwizardTestSupport;
+import io.dropwizard.testing.ResourceHelpers;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator which sends bids to the application at fixed arrival rates, and reports the throughput,
+ * the ratio of successful bids and the latency percentiles for each rate.
+ * <p>
+ * Unless the {@code --url} of a running application is given, the application is started locally with an empty
+ * database. The database is then seeded with campaigns whose keywords are drawn from a Zipf distribution, and the bids
+ * draw their keywords from the same distribution, so a few keywords are very popular, while most of them are rare.
+ * <p>
+ * Bid {@code i} of a step is due at {@code start + i / rate}, regardless of how long the previous bids took.
+ * The latency of a bid is measured from this intended start, not from when it was actually sent - otherwise the bids
+ * that had to wait for a free connection behind a slow one would not show the delay, and the percentiles would look
+ * much better than what the clients experience ("coordinated omission"). The service time (measured from the actual
+ * sending) is reported as well, the difference between the two shows the queueing in front of the application.
+ * <p>
+ * The full latency distribution of each step is written to {@code <output>/load-test-<rate>.hgrm}.
+ */
+public class LoadGenerator {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: LoadGenerator [--option=value ...]",
+            "  --url=<url>                  The URL of a running application, if not given it's started locally",
+            "  --config=<path>              The configuration of the locally started application (default: load-test-biddingapp.yml)",
+            "  --campaigns=<n>              The number of campaigns to create (default: 1000, 0 to skip seeding)",
+            "  --budget=<nok>               The budget of each campaign (default: 1000000)",
+            "  --keywords=<n>               The number of distinct keywords (default: 10000)",
+            "  --zipf-exponent=<s>          The exponent of the keyword distribution (default: 1.0)",
+            "  --keywords-per-campaign=<n>  (default: 5)",
+            "  --keywords-per-bid=<n>       (default: 3)",
+            "  --rates=<r1,r2,...>          The arrival rates to run, in bids per second (default: 500,1000,2000)",
+            "  --duration=<seconds>         The measured duration of each rate (default: 30)",
+            "  --warmup=<seconds>           The unmeasured duration before each rate (default: 5)",
+            "  --connections=<n>            The maximum number of concurrent requests (default: 64)",
+            "  --output=<directory>         Where to write the latency distributions (default: target)");
+    private static final long BID_TIMEOUT_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long HIGHEST_TRACKABLE_LATENCY_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+    private final Map<String, String> options;
+    private final ZipfDistribution keywordDistribution;
+    private final int keywordsPerBid;
+    private final int connections;
+    private String baseUrl;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.keywordDistribution = new ZipfDistribution(intOption("keywords", 10_000), doubleOption("zipf-exponent", 1.0));
+        this.keywordsPerBid = intOption("keywords-per-bid", 3);
+        this.connections = intOption("connections", 64);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || (!arg.contains("=") && !arg.equals("--help"))) {
+                System.err.println("Unknown argument: " + arg);
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            int separator = arg.indexOf('=');
+            options.put(arg.substring(2, separator < 0 ? arg.length() : separator), separator < 0 ? "" : arg.substring(separator + 1));
+        }
+        if (options.containsKey("help")) {
+            System.out.println(USAGE);
+            return;
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(option(name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        // The JDK keeps only 5 idle connections per host by default, the rest would be reopened for every bid.
+        System.setProperty("http.maxConnections", String.valueOf(connections));
+        DropwizardTestSupport<BiddingConfiguration> application = null;
+        if (options.containsKey("url")) {
+            baseUrl = option("url", null);
+        } else {
+            application = startApplication();
+            baseUrl = "http://localhost:" + application.getLocalPort();
+        }
+        try {
+            seedCampaigns();
+            for (String rate : option("rates", "500,1000,2000").split(",")) {
+                runStep(Integer.parseInt(rate.trim()));
+            }
+        } finally {
+            if (application != null) {
+                application.after();
+            }
+        }
+    }
+
+    private DropwizardTestSupport<BiddingConfiguration> startApplication() throws Exception {
+        String configPath = option("config", ResourceHelpers.resourceFilePath("load-test-biddingapp.yml"));
+        String databaseFile = File.createTempFile("load-test", null).getAbsolutePath();
+        DropwizardTestSupport<BiddingConfiguration> application = new DropwizardTestSupport<>(BiddingApplication.class,
+                configPath, ConfigOverride.config("database.url", "jdbc:h2:" + databaseFile + ";MODE=LEGACY"));
+        application.before();
+        application.getApplication().run("db", "migrate", configPath);
+        return application;
+    }
+
+    private String[] randomKeywords(Random random, int count) {
+        Set<String> keywords = new HashSet<>();
+        while (keywords.size() < count) {
+            keywords.add("keyword-" + keywordDistribution.sample(random));
+        }
+        return keywords.toArray(new String[0]);
+    }
+
+    private void seedCampaigns() throws IOException {
+        int campaignCount = intOption("campaigns", 1000);
+        int keywordsPerCampaign = intOption("keywords-per-campaign", 5);
+        double budget = doubleOption("budget", 1_000_000);
+        Random random = new Random(campaignCount);
+        for (int i = 0; i < campaignCount; i++) {
+            CampaignParam campaignParam = new CampaignParam("Campaign " + i, randomKeywords(random, keywordsPerCampaign), budget);
+            int status = post("/campaigns", campaignParam);
+            if (status != HttpURLConnection.HTTP_CREATED) {
+                throw new IOException("Could not create campaign, status: " + status);
+            }
+        }
+        System.out.printf("Created %d campaigns%n", campaignCount);
+    }
+
+    /**
+     * Sends a JSON request, and reads the whole response, so the connection can be reused.
+     *
+     * @return the status code of the response.
+     */
+    private int post(String path, Object entity) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            objectMapper.writeValue(outputStream, entity);
+        }
+        int status = connection.getResponseCode();
+        try (InputStream inputStream = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (inputStream != null) {
+                byte[] buffer = new byte[1024];
+                while (inputStream.read(buffer) >= 0) {
+                    // Discarding the body.
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * The outcome of the bids of a step.
+     */
+    private static class StepResult {
+        private final Recorder latencyRecorder = new Recorder(HIGHEST_TRACKABLE_LATENCY_IN_NANOS, 3);
+        private final Recorder serviceTimeRecorder = new Recorder(HIGHEST_TRACKABLE_LATENCY_IN_NANOS, 3);
+        private final AtomicLong bids = new AtomicLong();
+        private final AtomicLong noBids = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong slowerThanBidTimeout = new AtomicLong();
+    }
+
+    private void runStep(int rate) throws Exception {
+        long warmupInNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 5));
+        long durationInNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+        long intervalInNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measurementStart = start + warmupInNanos;
+        long end = measurementStart + durationInNanos;
+        AtomicLong bidSequence = new AtomicLong();
+        StepResult result = new StepResult();
+
+        ExecutorService workers = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            workers.execute(() -> {
+                while (true) {
+                    long bidId = bidSequence.getAndIncrement();
+                    long intendedStart = start + bidId * intervalInNanos;
+                    if (intendedStart - end >= 0) {
+                        return;
+                    }
+                    long delay = intendedStart - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    sendBid(bidId, intendedStart, intendedStart - measurementStart >= 0 ? result : null);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double elapsedInSeconds = (System.nanoTime() - measurementStart) / 1e9;
+        report(rate, result, elapsedInSeconds);
+    }
+
+    /**
+     * Sends a bid, and records its outcome in the result, if it's given.
+     */
+    private void sendBid(long bidId, long intendedStart, StepResult result) {
+        String[] keywords = randomKeywords(ThreadLocalRandom.current(), keywordsPerBid);
+        long actualStart = System.nanoTime();
+        int status;
+        try {
+            status = post("/bids", new BidParam(bidId, keywords));
+        } catch (IOException e) {
+            status = -1;
+        }
+        long finish = System.nanoTime();
+        if (result == null) {
+            return;
+        }
+        if (status == HttpURLConnection.HTTP_OK) {
+            result.bids.incrementAndGet();
+        } else if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+            result.noBids.incrementAndGet();
+        } else {
+            result.errors.incrementAndGet();
+            return;
+        }
+        result.latencyRecorder.recordValue(Math.min(finish - intendedStart, HIGHEST_TRACKABLE_LATENCY_IN_NANOS));
+        result.serviceTimeRecorder.recordValue(Math.min(finish - actualStart, HIGHEST_TRACKABLE_LATENCY_IN_NANOS));
+        if (finish - actualStart >= BID_TIMEOUT_IN_NANOS) {
+            result.slowerThanBidTimeout.incrementAndGet();
+        }
+    }
+
+    private void report(int rate, StepResult result, double elapsedInSeconds) throws IOException {
+        Histogram latency = result.latencyRecorder.getIntervalHistogram();
+        Histogram serviceTime = result.serviceTimeRecorder.getIntervalHistogram();
+        long completed = result.bids.get() + result.noBids.get();
+        System.out.printf("%nRate: %d bids/s%n", rate);
+        System.out.printf("  Throughput:          %.1f responses/s%n", completed / elapsedInSeconds);
+        System.out.printf("  Bids / no-bids:      %d / %d (%.1f%% bids)%n", result.bids.get(), result.noBids.get(),
+                completed == 0 ? 0 : 100.0 * result.bids.get() / completed);
+        System.out.printf("  Errors:              %d%n", result.errors.get());
+        System.out.printf("  Slower than 500 ms:  %d%n", result.slowerThanBidTimeout.get());
+        System.out.printf("  %-10s %12s %12s%n", "Percentile", "Latency", "Service time");
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99, 100}) {
+            System.out.printf("  %-10s %9.3f ms %9.3f ms%n", percentile == 100 ? "max" : "p" + percentile,
+                    latency.getValueAtPercentile(percentile) / 1e6, serviceTime.getValueAtPercentile(percentile) / 1e6);
+        }
+
+        File outputDirectory = new File(option("output", "target"));
+        outputDirectory.mkdirs();
+        File outputFile = new File(outputDirectory, "load-test-" + rate + ".hgrm");
+        try (PrintStream printStream = new PrintStream(outputFile, "UTF-8")) {
+            // The values are in nanoseconds, they are written in milliseconds.
+            latency.outputPercentileDistribution(printStream, 1e6);
+        }
+    }
+}
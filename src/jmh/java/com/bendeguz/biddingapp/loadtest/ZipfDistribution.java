@@ -0,0 +1,33 @@
+package com.bendeguz.biddingapp.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A Zipf distribution over the ranks {@code 0 .. size - 1}: the probability of rank {@code k} is proportional to
+ * {@code 1 / (k + 1)^exponent}. Real keyword popularity roughly follows such a distribution - a few keywords appear
+ * in most of the bids, while most keywords are rare.
+ * <p>
+ * Sampling uses binary search over the precomputed cumulative distribution, so it takes {@code O(log size)} time.
+ */
+class ZipfDistribution {
+    private final double[] cumulativeProbabilities;
+
+    ZipfDistribution(int size, double exponent) {
+        cumulativeProbabilities = new double[size];
+        double sum = 0;
+        for (int rank = 0; rank < size; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulativeProbabilities[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++) {
+            cumulativeProbabilities[rank] /= sum;
+        }
+    }
+
+    int sample(Random random) {
+        int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+        // If the value is not found, binarySearch returns (-(insertion point) - 1).
+        return Math.min(index >= 0 ? index : -index - 1, cumulativeProbabilities.length - 1);
+    }
+}
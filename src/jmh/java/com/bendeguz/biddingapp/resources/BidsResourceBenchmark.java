@@ -0,0 +1,203 @@
+package com.bendeguz.biddingapp.resources;
+
+import com.bendeguz.biddingapp.BidSynchronizer;
+import com.bendeguz.biddingapp.BiddingConfiguration;
+import com.bendeguz.biddingapp.KeywordIndex;
+import com.bendeguz.biddingapp.KeywordIndexLoader;
+import com.bendeguz.biddingapp.api.BidParam;
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.db.BenchmarkDatabase;
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.hibernate.HibernateBundle;
+import io.dropwizard.hibernate.UnitOfWorkAwareProxyFactory;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the full path of a bid through {@link BidsResource}: the executor, the {@code TryToBidCallable},
+ * the keyword index, the {@link BidSynchronizer} and the {@code UPDATE} in the in-memory H2 database.
+ * Since every campaign accepts 10 bids per 10 seconds, most of the bids are unsuccessful after the first few seconds.
+ * <p>
+ * {@link #createBidderProxy()} measures what creating the {@code @UnitOfWork} proxy for each bid used to cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BidsResourceBenchmark {
+    /**
+     * A bundle which is not run by Dropwizard, it just provides the session factory of the benchmark database.
+     */
+    private static class BenchmarkHibernateBundle extends HibernateBundle<BiddingConfiguration> {
+        private final SessionFactory sessionFactory;
+
+        BenchmarkHibernateBundle(SessionFactory sessionFactory) {
+            super(Campaign.class);
+            this.sessionFactory = sessionFactory;
+        }
+
+        @Override
+        public SessionFactory getSessionFactory() {
+            return sessionFactory;
+        }
+
+        @Override
+        public DataSourceFactory getDataSourceFactory(BiddingConfiguration configuration) {
+            throw new UnsupportedOperationException("The benchmark database is not configured through Dropwizard");
+        }
+    }
+
+    /**
+     * Captures the response of a bid. There's no container to enforce the timeout, but the bids of the benchmark
+     * don't wait for anything that could take that long.
+     */
+    private static class BenchmarkAsyncResponse implements AsyncResponse {
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        Response get() throws Exception {
+            return response.get();
+        }
+
+        @Override
+        public boolean resume(Object response) {
+            return this.response.complete((Response) response);
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            return this.response.completeExceptionally(response);
+        }
+
+        @Override
+        public boolean cancel() {
+            return response.cancel(false);
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return cancel();
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return cancel();
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return !response.isDone();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return response.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return response.isDone();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return isSuspended();
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Param({"100", "10000"})
+    private int campaignCount;
+
+    private final AtomicLong bidIdSequence = new AtomicLong();
+    private final MetricRegistry metrics = new MetricRegistry();
+    private BenchmarkDatabase database;
+    private HibernateBundle<BiddingConfiguration> hibernateBundle;
+    private CampaignDAO campaignDAO;
+    private KeywordIndex keywordIndex;
+    private BidSynchronizer bidSynchronizer;
+    private ExecutorService executorService;
+    private BidsResource bidsResource;
+
+    @Setup
+    public void setUp() {
+        database = new BenchmarkDatabase(campaignCount);
+        hibernateBundle = new BenchmarkHibernateBundle(database.getSessionFactory());
+        campaignDAO = new CampaignDAO(database.getSessionFactory());
+        keywordIndex = new KeywordIndex();
+        new KeywordIndexLoader(campaignDAO, keywordIndex).load();
+        bidSynchronizer = new BidSynchronizer();
+        executorService = Executors.newFixedThreadPool(16);
+        bidsResource = new BidsResource(campaignDAO, keywordIndex, executorService, hibernateBundle, bidSynchronizer,
+                metrics);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+        database.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int createBid() throws Exception {
+        BenchmarkAsyncResponse asyncResponse = new BenchmarkAsyncResponse();
+        bidsResource.createBid(new BidParam(bidIdSequence.incrementAndGet(), BenchmarkDatabase.randomBidKeywords()),
+                asyncResponse);
+        return asyncResponse.get().getStatus();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int createBid8Threads() throws Exception {
+        return createBid();
+    }
+
+    @Benchmark
+    public BidsResource.Bidder createBidderProxy() {
+        return new UnitOfWorkAwareProxyFactory(hibernateBundle).create(
+                BidsResource.Bidder.class,
+                new Class[]{SpendingStore.class, KeywordIndex.class, BidSynchronizer.class, MetricRegistry.class},
+                new Object[]{campaignDAO, keywordIndex, bidSynchronizer, metrics});
+    }
+}
@@ -0,0 +1,145 @@
+package com.bendeguz.biddingapp;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.InstrumentedExecutorService;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Configuration of the executor which runs the bids, and a factory which creates it.
+ * <p>
+ * The created executor is managed by the environment's lifecycle, and it's instrumented: besides the metrics of
+ * {@link InstrumentedExecutorService} (e.g. the number of running bids), the number of queued and rejected bids
+ * are registered as well.
+ */
+public class BidExecutorFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BidExecutorFactory.class);
+    private static final String NAME = "bid-executor";
+
+    public enum Type {
+        /**
+         * A fixed number of threads with a bounded queue. When the queue is full, new bids are rejected immediately.
+         */
+        BOUNDED,
+        /**
+         * A new virtual thread for every bid. Requires Java 21 or newer, on older runtimes {@code BOUNDED} is used instead.
+         */
+        VIRTUAL
+    }
+
+    @NotNull
+    private Type type = Type.BOUNDED;
+
+    @Min(1)
+    private int maxThreads = 100;
+
+    @Min(0)
+    private int maxQueuedBids = 1000;
+
+    @NotNull
+    private Duration shutdownPeriod = Duration.seconds(5);
+
+    @JsonProperty
+    public Type getType() {
+        return type;
+    }
+
+    @JsonProperty
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    @JsonProperty
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    @JsonProperty
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    @JsonProperty
+    public int getMaxQueuedBids() {
+        return maxQueuedBids;
+    }
+
+    @JsonProperty
+    public void setMaxQueuedBids(int maxQueuedBids) {
+        this.maxQueuedBids = maxQueuedBids;
+    }
+
+    @JsonProperty
+    public Duration getShutdownPeriod() {
+        return shutdownPeriod;
+    }
+
+    @JsonProperty
+    public void setShutdownPeriod(Duration shutdownPeriod) {
+        this.shutdownPeriod = shutdownPeriod;
+    }
+
+    /**
+     * Creates the executor of the configured type. A bid that cannot be accepted by the executor is rejected with
+     * a {@link RejectedExecutionException}.
+     *
+     * @param environment The environment of the application.
+     * @return the created executor.
+     */
+    public ExecutorService build(Environment environment) {
+        MetricRegistry metrics = environment.metrics();
+        ExecutorService executorService = null;
+        if (type == Type.VIRTUAL) {
+            executorService = createVirtualThreadPerTaskExecutor();
+        }
+        if (executorService == null) {
+            Counter rejected = metrics.counter(MetricRegistry.name(NAME, "rejected"));
+            BlockingQueue<Runnable> queue = maxQueuedBids > 0 ? new ArrayBlockingQueue<>(maxQueuedBids) : new SynchronousQueue<>();
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    queue, new BidThreadFactory(), (runnable, executor) -> {
+                        rejected.inc();
+                        throw new RejectedExecutionException("The bid executor is full");
+                    });
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            metrics.register(MetricRegistry.name(NAME, "queued"), (Gauge<Integer>) queue::size);
+            executorService = threadPoolExecutor;
+        }
+        environment.lifecycle().manage(new ExecutorServiceManager(executorService, shutdownPeriod, NAME));
+        return new InstrumentedExecutorService(executorService, metrics, NAME);
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task. Virtual threads are only available since
+     * Java 21, so the executor is created through reflection.
+     *
+     * @return the created executor, or {@code null} if the runtime does not support virtual threads.
+     */
+    private static ExecutorService createVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warn("Virtual threads are not supported by this runtime, using a bounded thread pool instead");
+            return null;
+        }
+    }
+
+    private static class BidThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, NAME + "-" + threadCount.incrementAndGet());
+        }
+    }
+}
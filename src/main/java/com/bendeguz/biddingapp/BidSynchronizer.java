@@ -1,12 +1,18 @@
 package com.bendeguz.biddingapp;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
+import com.bendeguz.biddingapp.core.Money;
+import com.bendeguz.biddingapp.core.StageMetrics;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /**
  * This class provides mechanisms to check whether a campaign is available for bidding and to handle concurrency between bids.
@@ -17,40 +23,401 @@ import java.util.concurrent.locks.ReentrantLock;
  * 3. {@code spendOnCampaign} - if the caller will attempt to spend on the campaign (this attempt will probably succeed).
  * 4. {@code unlockCampaign} - it is <b>crucial</b> to make sure this method gets called, because otherwise the campaign
  *                     will become unavailable for bidding until the application is restarted.
+ * Alternatively, {@code tryToSpendOnCampaign} does the same as a single call - in {@code LOCK_FREE} mode without
+ * locking the campaign at all.
+ * <p>
+ * All amounts are in micro-NOK, see {@link Money}.
+ * <p>
+ * The time spent waiting for the locks and checking the spending windows is measured by the {@code lock-wait}
+ * and {@code window-check} timers, registered in the specified {@link MetricRegistry}, see {@link StageMetrics}.
  */
 public class BidSynchronizer {
-    private static final double MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC = 10.0;
+    private static final long MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC = 10 * Money.MICROS_PER_NOK;
+    private static final long WINDOW_LENGTH_IN_NANOS = TimeUnit.SECONDS.toNanos(10);
 
-    private static class Spending{
-        private final Instant time;
-        private final double amount;
+    /**
+     * Determines how the spending of the past 10 seconds is stored and checked.
+     */
+    public enum Mode {
+        /**
+         * Every spending is stored in a list, which can only be accessed while the campaign is locked.
+         */
+        LOCKING,
+        /**
+         * The spending is stored in fixed-size buckets per campaign, which can be checked and updated atomically
+         * without locking the campaign, see {@link #tryToSpendOnCampaign(long, long)}.
+         * The locking methods are still available, but a check made with them is not atomic with respect to
+         * {@code tryToSpendOnCampaign}, so the two should not be mixed for the same campaign.
+         */
+        LOCK_FREE,
+        /**
+         * The spending is stored in a {@link SpendingWindowStore} shared by all instances of the application, so the
+         * limit holds for all of them together. {@code tryToSpendOnCampaign} does not lock the campaign, like in
+         * {@code LOCK_FREE} mode. The locks are still available, but they are local to the instance: a check made by
+         * {@code isCampaignAvailableForSpending} reads the shared spending, but it's not atomic with the spendings of
+         * the other instances. There are no spendings in memory to save or restore either.
+         */
+        SHARED
+    }
 
-        Spending(Instant time, double amount){
-            this.time = time;
-            this.amount = amount;
-        }
+    /**
+     * The result of {@link #tryToSpendOnCampaign(long, long, long, TimeUnit)}.
+     */
+    public enum SpendingResult {
+        /**
+         * The spending was registered.
+         */
+        SPENT,
+        /**
+         * The spending would have exceeded the limit, so it was not registered.
+         */
+        REFUSED,
+        /**
+         * The campaign could not be locked in time, so the limit was not even checked.
+         */
+        BUSY
+    }
+
+    /**
+     * Receives the spendings of the campaigns, see {@link #forEachRecentSpending(RecentSpendingConsumer)}.
+     */
+    public interface RecentSpendingConsumer {
+        void accept(long campaignId, long ageInNanos, long amount);
+    }
+
+    /**
+     * The lock and the spending window of a campaign. These are kept together so that an idle campaign
+     * can be evicted as a whole.
+     */
+    private static class CampaignState {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final SpendingWindow spendingWindow;
 
-        double getAmount(){
-            return amount;
+        CampaignState(SpendingWindow spendingWindow) {
+            this.spendingWindow = spendingWindow;
         }
+    }
+
+    private final ConcurrentMap<Long, CampaignState> campaignStateMap = new ConcurrentHashMap<>();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final Mode mode;
+    private final SpendingWindowStore sharedWindowStore;
+    private final Function<Long, CampaignState> campaignStateFactory;
+    private final Timer lockWaitTimer;
+    private final Timer windowCheckTimer;
+
+    public BidSynchronizer() {
+        this(Mode.LOCKING);
+    }
+
+    public BidSynchronizer(Mode mode) {
+        this(mode, new MetricRegistry());
+    }
+
+    public BidSynchronizer(Mode mode, MetricRegistry metrics) {
+        this(mode, System::nanoTime, metrics);
+    }
 
-        boolean isOlderThan10Sec(){
-            Duration durationSinceSpending = Duration.between(time, Instant.now());
-            return durationSinceSpending.compareTo(Duration.ofSeconds(10)) > 0;
+    /**
+     * Creates a {@link BidSynchronizer} in {@code SHARED} mode.
+     *
+     * @param sharedWindowStore The store of the spending windows, shared by the instances of the application.
+     * @param metrics           The registry of the metrics.
+     */
+    public BidSynchronizer(SpendingWindowStore sharedWindowStore, MetricRegistry metrics) {
+        this(Mode.SHARED, sharedWindowStore, System::nanoTime, metrics);
+    }
+
+    BidSynchronizer(Mode mode, LongSupplier nanoClock) {
+        this(mode, nanoClock, new MetricRegistry());
+    }
+
+    private BidSynchronizer(Mode mode, LongSupplier nanoClock, MetricRegistry metrics) {
+        this(mode, null, nanoClock, metrics);
+    }
+
+    private BidSynchronizer(Mode mode, SpendingWindowStore sharedWindowStore, LongSupplier nanoClock, MetricRegistry metrics) {
+        if ((mode == Mode.SHARED) != (sharedWindowStore != null)) {
+            throw new IllegalArgumentException("A shared window store is required in SHARED mode, and only in that mode");
+        }
+        this.mode = mode;
+        this.sharedWindowStore = sharedWindowStore;
+        this.lockWaitTimer = StageMetrics.timer(metrics, MetricRegistry.name(BidSynchronizer.class, "lock-wait"));
+        this.windowCheckTimer = StageMetrics.timer(metrics, MetricRegistry.name(BidSynchronizer.class, "window-check"));
+        if (mode == Mode.LOCK_FREE) {
+            campaignStateFactory = id -> new CampaignState(new RingSpendingWindow(MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC, nanoClock));
+        } else {
+            campaignStateFactory = id -> new CampaignState(new ListSpendingWindow(MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC));
         }
     }
 
-    private final ConcurrentMap<Long, List<Spending>> campaignSpendingMap = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Long, ReentrantLock> campaignLockMap = new ConcurrentHashMap<>();
+    public Mode getMode() {
+        return mode;
+    }
 
+    /**
+     * Locks a campaign specified by its ID. If the state of the campaign gets evicted while waiting for the lock,
+     * the campaign's new state is locked instead.
+     *
+     * @param id The ID of the campaign.
+     * @throws InterruptedException if the thread gets interrupted while waiting for the lock.
+     */
     public void lockCampaign(long id) throws InterruptedException{
-        campaignSpendingMap.putIfAbsent(id, new ArrayList<>());
-        campaignLockMap.putIfAbsent(id, new ReentrantLock());
-        campaignLockMap.get(id).lockInterruptibly();
+        long start = System.nanoTime();
+        while (true) {
+            CampaignState campaignState = campaignStateMap.computeIfAbsent(id, campaignStateFactory);
+            campaignState.lock.lockInterruptibly();
+            if (!campaignState.spendingWindow.isRetired()) {
+                lockWaitTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return;
+            }
+            campaignState.lock.unlock();
+        }
+    }
+
+    /**
+     * Locks a campaign specified by its ID, but only if it can be done within the specified timeout.
+     * With a timeout of 0 (or less), the lock is only acquired if it's available immediately.
+     *
+     * @param id      The ID of the campaign.
+     * @param timeout The maximum time to wait for the lock.
+     * @param unit    The unit of the timeout.
+     * @return whether the campaign got locked or not.
+     * @throws InterruptedException if the thread gets interrupted while waiting for the lock.
+     */
+    public boolean tryLockCampaign(long id, long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(timeout);
+        while (true) {
+            CampaignState campaignState = campaignStateMap.computeIfAbsent(id, campaignStateFactory);
+            if (!campaignState.lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            if (!campaignState.spendingWindow.isRetired()) {
+                lockWaitTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return true;
+            }
+            campaignState.lock.unlock();
+        }
     }
 
     public void unlockCampaign(long id) {
-        campaignLockMap.get(id).unlock();
+        // A locked campaign is never evicted, so this is the same state that was locked by lockCampaign.
+        campaignStateMap.get(id).lock.unlock();
+    }
+
+    /**
+     * Registers a spending on a campaign specified by its ID, but only if the campaign is available for spending
+     * with the specified amount (see {@code isCampaignAvailableForSpending}). The check and the registration happen
+     * as a single atomic operation, so the caller does not have to lock the campaign.
+     * <p>
+     * In {@code LOCK_FREE} and {@code SHARED} mode no lock is used at all, otherwise the campaign is locked for
+     * the duration of this method.
+     *
+     * @param id     The ID of the campaign.
+     * @param amount The amount of spending.
+     * @return whether the spending was registered or not.
+     * @throws InterruptedException if the thread gets interrupted while waiting for the lock.
+     */
+    public boolean tryToSpendOnCampaign(long id, long amount) throws InterruptedException {
+        if (mode == Mode.SHARED) {
+            long start = System.nanoTime();
+            try {
+                return sharedWindowStore.tryToSpend(id, amount, MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC);
+            } finally {
+                windowCheckTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (mode == Mode.LOCK_FREE) {
+            long start = System.nanoTime();
+            try {
+                while (true) {
+                    CampaignState campaignState = campaignStateMap.computeIfAbsent(id, campaignStateFactory);
+                    if (campaignState.spendingWindow.tryToSpend(amount)) {
+                        return true;
+                    }
+                    if (!campaignState.spendingWindow.isRetired()) {
+                        return false;
+                    }
+                    // The state got evicted in the meantime, help removing it and try again with a new one.
+                    campaignStateMap.remove(id, campaignState);
+                }
+            } finally {
+                windowCheckTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+        lockCampaign(id);
+        long start = System.nanoTime();
+        try {
+            return campaignStateMap.get(id).spendingWindow.tryToSpend(amount);
+        } finally {
+            windowCheckTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            unlockCampaign(id);
+        }
+    }
+
+    /**
+     * The same as {@link #tryToSpendOnCampaign(long, long)}, except that it does not wait for the lock of
+     * the campaign longer than the specified timeout. This lets the caller move on to another campaign
+     * instead of waiting behind the other bids on a busy one.
+     * <p>
+     * In {@code LOCK_FREE} and {@code SHARED} mode no lock is used, so the campaign is never busy.
+     *
+     * @param id      The ID of the campaign.
+     * @param amount  The amount of spending.
+     * @param timeout The maximum time to wait for the lock of the campaign.
+     * @param unit    The unit of the timeout.
+     * @return whether the spending was registered, refused, or the campaign was busy.
+     * @throws InterruptedException if the thread gets interrupted while waiting for the lock.
+     */
+    public SpendingResult tryToSpendOnCampaign(long id, long amount, long timeout, TimeUnit unit) throws InterruptedException {
+        if (mode == Mode.LOCK_FREE || mode == Mode.SHARED) {
+            return tryToSpendOnCampaign(id, amount) ? SpendingResult.SPENT : SpendingResult.REFUSED;
+        }
+        if (!tryLockCampaign(id, timeout, unit)) {
+            return SpendingResult.BUSY;
+        }
+        long start = System.nanoTime();
+        try {
+            return campaignStateMap.get(id).spendingWindow.tryToSpend(amount) ? SpendingResult.SPENT : SpendingResult.REFUSED;
+        } finally {
+            windowCheckTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            unlockCampaign(id);
+        }
+    }
+
+    /**
+     * Estimates how much can still be spent on a campaign specified by its ID, without locking it.
+     * If the headroom is less than an amount, the campaign would refuse to spend it at the time of this call,
+     * so it's not worth locking it. Otherwise, it's only a hint: a concurrent spending might use up the headroom
+     * before the campaign is locked.
+     *
+     * @param id The ID of the campaign.
+     * @return the estimated headroom.
+     */
+    public long getHeadroom(long id) {
+        if (mode == Mode.SHARED) {
+            return sharedWindowStore.getHeadroom(id, MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC);
+        }
+        CampaignState campaignState = campaignStateMap.get(id);
+        return campaignState == null ? MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC : campaignState.spendingWindow.getHeadroom();
+    }
+
+    /**
+     * Estimates how long the headroom of a campaign specified by its ID stays the same (apart from new spendings),
+     * without locking it. It's never longer than the real time, so a campaign whose headroom is less than an amount
+     * keeps refusing it at least for this long.
+     *
+     * @param id The ID of the campaign.
+     * @return the time in nanoseconds until the headroom may grow, 0 if it's not known to stay the same.
+     */
+    public long getNanosUntilHeadroomGrows(long id) {
+        if (mode == Mode.SHARED) {
+            return sharedWindowStore.getNanosUntilHeadroomGrows(id);
+        }
+        CampaignState campaignState = campaignStateMap.get(id);
+        return campaignState == null ? 0 : campaignState.spendingWindow.getNanosUntilHeadroomGrows();
+    }
+
+    /**
+     * Evicts the state of every campaign that is idle: it's not locked, and there was no spending on it
+     * in the past 10 seconds. The state of such a campaign contains no information, it would be recreated
+     * the same way on the next bid. This keeps the memory usage proportional to the number of recently active campaigns.
+     *
+     * In {@code SHARED} mode, the local state of the shared window store is evicted as well.
+     *
+     * @return the number of evicted campaigns.
+     */
+    public int evictIdleCampaigns() {
+        int evicted = mode == Mode.SHARED ? sharedWindowStore.evictIdleCampaigns() : 0;
+        for (Map.Entry<Long, CampaignState> entry : campaignStateMap.entrySet()) {
+            CampaignState campaignState = entry.getValue();
+            if (!campaignState.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (campaignState.spendingWindow.retireIfIdle()) {
+                    campaignStateMap.remove(entry.getKey(), campaignState);
+                    evicted++;
+                }
+            } finally {
+                campaignState.lock.unlock();
+            }
+        }
+        evictionCount.addAndGet(evicted);
+        return evicted;
+    }
+
+    /**
+     * Passes every spending of the past 10 seconds to the consumer, so that they can be saved and restored after
+     * a restart by {@link #restoreSpending(long, long, long)}. The spendings of a campaign are passed oldest first,
+     * and their ages may be rounded down, but never up. In {@code LOCKING} mode, each campaign is locked while its
+     * spendings are read.
+     * <p>
+     * In {@code SHARED} mode, the spendings are not stored in memory, but in the shared store, which outlives
+     * the instance anyway, so nothing is passed to the consumer.
+     *
+     * @param consumer The consumer of the spendings.
+     */
+    public void forEachRecentSpending(RecentSpendingConsumer consumer) {
+        if (mode == Mode.SHARED) {
+            return;
+        }
+        for (Map.Entry<Long, CampaignState> entry : campaignStateMap.entrySet()) {
+            long id = entry.getKey();
+            CampaignState campaignState = entry.getValue();
+            SpendingWindow.SpendingConsumer windowConsumer = (ageInNanos, amount) -> consumer.accept(id, ageInNanos, amount);
+            if (mode == Mode.LOCK_FREE) {
+                campaignState.spendingWindow.forEachSpending(windowConsumer);
+                continue;
+            }
+            campaignState.lock.lock();
+            try {
+                if (!campaignState.spendingWindow.isRetired()) {
+                    campaignState.spendingWindow.forEachSpending(windowConsumer);
+                }
+            } finally {
+                campaignState.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Registers a spending on a campaign specified by its ID that happened the specified time ago, without checking
+     * the limit. It's used to restore the spendings passed to {@link #forEachRecentSpending(RecentSpendingConsumer)}
+     * before a restart, in the same order. Spendings older than 10 seconds are ignored.
+     * <p>
+     * In {@code SHARED} mode, the spendings are kept by the shared store, so the spending is ignored.
+     *
+     * @param id         The ID of the campaign.
+     * @param ageInNanos How long ago the spending happened.
+     * @param amount     The amount of spending.
+     * @throws InterruptedException if the thread gets interrupted while waiting for the lock.
+     */
+    public void restoreSpending(long id, long ageInNanos, long amount) throws InterruptedException {
+        if (mode == Mode.SHARED || ageInNanos >= WINDOW_LENGTH_IN_NANOS) {
+            return;
+        }
+        lockCampaign(id);
+        try {
+            campaignStateMap.get(id).spendingWindow.spend(amount, ageInNanos);
+        } finally {
+            unlockCampaign(id);
+        }
+    }
+
+    /**
+     * @return the number of campaigns whose state is currently kept in memory.
+     */
+    public int getCampaignCount() {
+        return campaignStateMap.size() + (mode == Mode.SHARED ? sharedWindowStore.getCampaignCount() : 0);
+    }
+
+    /**
+     * @return the number of campaigns evicted since the creation of this object.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
 
     /**
@@ -61,32 +428,40 @@ public class BidSynchronizer {
      * The referenced campaign MUST be locked by {@code lockCampaign} before calling this method.
      * If this condition is not met, an {@code IllegalThreadStateException} is thrown.
      * This will ensure that the bidding operations are serializable.
+     * <p>
+     * In {@code SHARED} mode, the spending is read from the shared store. The lock only serializes the bids of this
+     * instance, so the check is not atomic with the spendings of the other instances.
      *
      * @param id     The ID of the campaign.
      * @param amount The amount of spending.
      * @return whether the campaign is available for spending or not.
      */
-    public boolean isCampaignAvailableForSpending(long id, double amount) {
-        verifyCampaignLockedByThread(id);
-        double totalSpendingInPast10Sec = 0;
-        List<Spending> spendings = campaignSpendingMap.get(id);
-        spendings.removeIf(Spending::isOlderThan10Sec);
-        for (Spending spending : spendings) {
-            totalSpendingInPast10Sec += spending.getAmount();
+    public boolean isCampaignAvailableForSpending(long id, long amount) {
+        long start = System.nanoTime();
+        try {
+            CampaignState campaignState = getStateLockedByThread(id);
+            if (mode == Mode.SHARED) {
+                return sharedWindowStore.getSpending(id) + amount <= MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC;
+            }
+            return campaignState.spendingWindow.isAvailableForSpending(amount);
+        } finally {
+            windowCheckTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
-        return totalSpendingInPast10Sec + amount <= MAXIMUM_SPENDING_PER_CAMPAIGN_PER_10_SEC;
     }
 
     /**
-     * Verifies that the campaign specified by its ID is locked by the current thread.
-     * Throws {@code IllegalThreadStateException} if it's not.
+     * Verifies that the campaign specified by its ID is locked by the current thread, and returns its state.
+     * Throws {@code IllegalThreadStateException} if it's not locked.
      *
      * @param id The ID of the campaign.
+     * @return the state of the campaign.
      */
-    private void verifyCampaignLockedByThread(long id) {
-        if (!campaignLockMap.containsKey(id) || !campaignLockMap.get(id).isHeldByCurrentThread()) {
+    private CampaignState getStateLockedByThread(long id) {
+        CampaignState campaignState = campaignStateMap.get(id);
+        if (campaignState == null || !campaignState.lock.isHeldByCurrentThread()) {
             throw new IllegalThreadStateException();
         }
+        return campaignState;
     }
 
     /**
@@ -95,13 +470,18 @@ public class BidSynchronizer {
      * The referenced campaign MUST be locked by {@code lockCampaign} before calling this method.
      * If this condition is not met, an {@code IllegalThreadStateException} is thrown.
      * This will ensure that the bidding operations are serializable.
+     * <p>
+     * In {@code SHARED} mode, the spending is registered in the shared store, without checking the limit again.
      *
      * @param id     The ID of the campaign.
      * @param amount The amount of spending.
      */
-    public void spendOnCampaign(long id, double amount) {
-        verifyCampaignLockedByThread(id);
-        List<Spending> spendings = campaignSpendingMap.get(id);
-        spendings.add(new Spending(Instant.now(), amount));
+    public void spendOnCampaign(long id, long amount) {
+        CampaignState campaignState = getStateLockedByThread(id);
+        if (mode == Mode.SHARED) {
+            sharedWindowStore.tryToSpend(id, amount, Long.MAX_VALUE);
+            return;
+        }
+        campaignState.spendingWindow.spend(amount);
     }
 }
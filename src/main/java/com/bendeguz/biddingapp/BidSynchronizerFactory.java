@@ -0,0 +1,107 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.DatabaseSpendingWindowStore;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import org.hibernate.SessionFactory;
+
+import javax.validation.constraints.NotNull;
+import java.nio.file.Paths;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the {@link BidSynchronizer}, and a factory which creates it along with its background eviction
+ * of idle campaigns and its metrics.
+ */
+public class BidSynchronizerFactory {
+    @NotNull
+    private BidSynchronizer.Mode mode = BidSynchronizer.Mode.LOCKING;
+
+    @NotNull
+    private Duration evictionInterval = Duration.seconds(10);
+
+    private String snapshotFile;
+
+    @NotNull
+    private Duration snapshotInterval = Duration.seconds(1);
+
+    @JsonProperty
+    public BidSynchronizer.Mode getMode() {
+        return mode;
+    }
+
+    @JsonProperty
+    public void setMode(BidSynchronizer.Mode mode) {
+        this.mode = mode;
+    }
+
+    @JsonProperty
+    public Duration getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    @JsonProperty
+    public void setEvictionInterval(Duration evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    @JsonProperty
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    @JsonProperty
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @JsonProperty
+    public Duration getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    @JsonProperty
+    public void setSnapshotInterval(Duration snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Creates a {@link BidSynchronizer}, schedules the eviction of its idle campaigns every {@code evictionInterval},
+     * and registers the number of resident and evicted campaigns as gauges.
+     *
+     * In {@code SHARED} mode, the spending windows are stored in the database, see
+     * {@link DatabaseSpendingWindowStore}. In the other modes, if a {@code snapshotFile} is configured, the spending
+     * windows are saved into it every {@code snapshotInterval} and restored from it at startup, see
+     * {@link SpendingWindowSnapshot}.
+     *
+     * @param environment    The environment of the application.
+     * @param sessionFactory The session factory used in {@code SHARED} mode.
+     * @return the created {@link BidSynchronizer}.
+     */
+    public BidSynchronizer build(Environment environment, SessionFactory sessionFactory) {
+        BidSynchronizer bidSynchronizer = mode == BidSynchronizer.Mode.SHARED
+                ? new BidSynchronizer(new DatabaseSpendingWindowStore(sessionFactory), environment.metrics())
+                : new BidSynchronizer(mode, environment.metrics());
+
+        ScheduledExecutorService evictionExecutor = environment.lifecycle()
+                .scheduledExecutorService("bid-synchronizer-eviction")
+                .build();
+        long interval = evictionInterval.toMilliseconds();
+        evictionExecutor.scheduleWithFixedDelay(bidSynchronizer::evictIdleCampaigns, interval, interval, TimeUnit.MILLISECONDS);
+
+        if (snapshotFile != null && mode != BidSynchronizer.Mode.SHARED) {
+            environment.lifecycle().manage(new SpendingWindowSnapshot(bidSynchronizer, Paths.get(snapshotFile),
+                    snapshotInterval.toMilliseconds()));
+        }
+
+        environment.metrics().register(MetricRegistry.name(BidSynchronizer.class, "campaigns"),
+                (Gauge<Integer>) bidSynchronizer::getCampaignCount);
+        environment.metrics().register(MetricRegistry.name(BidSynchronizer.class, "evictions"),
+                (Gauge<Long>) bidSynchronizer::getEvictionCount);
+        return bidSynchronizer;
+    }
+}
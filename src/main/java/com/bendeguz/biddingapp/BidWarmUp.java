@@ -0,0 +1,129 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.bendeguz.biddingapp.resources.BidsResource;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the application after it starts, by placing synthetic bids through {@link BidsResource}. A freshly started
+ * instance would serve its first bids slowly: the code of the bids is not compiled by the JIT compiler yet, the threads
+ * of the bid executor and the connections of the pool are not created yet, so the first bids could easily time out.
+ * <p>
+ * The synthetic bids are a dry run: they are placed on synthetic campaigns (with negative IDs, which no real campaign
+ * has) of a separate {@link KeywordIndex}, with a separate {@link BidSynchronizer} and a spending store which does not
+ * change anything, so they don't affect the real bids. In {@code SHARED} mode the separate bid synchronizer is
+ * {@code LOCK_FREE}, since it must not write to the shared windows.
+ * <p>
+ * The warm-up runs in the background, and {@link #isFinished()} tells when it's done, see
+ * {@link com.bendeguz.biddingapp.health.WarmUpHealthCheck}. It's considered done after a timeout, or if it fails,
+ * so that an instance is never kept out of service by its warm-up.
+ */
+public class BidWarmUp implements Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BidWarmUp.class);
+    private static final int CAMPAIGN_COUNT = 1000;
+    private static final int VOCABULARY_SIZE = 10_000;
+    private static final int KEYWORDS_PER_CAMPAIGN = 5;
+    private static final int KEYWORDS_PER_BID = 10;
+
+    private final BidsResource bidsResource;
+    private final SpendingStore dryRunSpendingStore;
+    private final BidSynchronizer.Mode mode;
+    private final int bidCount;
+    private final int concurrency;
+    private final long timeoutInMilliseconds;
+    private volatile boolean finished;
+    private ExecutorService warmUpExecutor;
+
+    public BidWarmUp(BidsResource bidsResource, SpendingStore dryRunSpendingStore, BidSynchronizer.Mode mode,
+                     int bidCount, int concurrency, long timeoutInMilliseconds) {
+        this.bidsResource = bidsResource;
+        this.dryRunSpendingStore = dryRunSpendingStore;
+        this.mode = mode == BidSynchronizer.Mode.SHARED ? BidSynchronizer.Mode.LOCK_FREE : mode;
+        this.bidCount = bidCount;
+        this.concurrency = concurrency;
+        this.timeoutInMilliseconds = timeoutInMilliseconds;
+    }
+
+    /**
+     * Starts the warm-up in the background.
+     */
+    @Override
+    public void start() {
+        warmUpExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "bid-warm-up"));
+        warmUpExecutor.execute(this::warmUpQuietly);
+    }
+
+    /**
+     * Interrupts the warm-up, if it's still running.
+     */
+    @Override
+    public void stop() throws Exception {
+        warmUpExecutor.shutdownNow();
+        warmUpExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void warmUpQuietly() {
+        try {
+            warmUp();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.warn("The warm-up failed, the application is considered warm anyway: ", e);
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Places the synthetic bids, at most {@code concurrency} at the same time, until all of them are done
+     * or the timeout expires.
+     *
+     * @throws InterruptedException if the thread gets interrupted.
+     */
+    public void warmUp() throws InterruptedException {
+        long start = System.nanoTime();
+        Random random = new Random(42);
+        KeywordIndex dryRunKeywordIndex = new KeywordIndex();
+        for (long id = 1; id <= CAMPAIGN_COUNT; id++) {
+            List<String> keywords = new ArrayList<>(KEYWORDS_PER_CAMPAIGN);
+            for (int i = 0; i < KEYWORDS_PER_CAMPAIGN; i++) {
+                keywords.add(randomKeyword(random));
+            }
+            dryRunKeywordIndex.addCampaign(-id, keywords);
+        }
+        List<String[]> bids = new ArrayList<>(bidCount);
+        for (int i = 0; i < bidCount; i++) {
+            String[] keywords = new String[KEYWORDS_PER_BID];
+            for (int j = 0; j < KEYWORDS_PER_BID; j++) {
+                keywords[j] = randomKeyword(random);
+            }
+            bids.add(keywords);
+        }
+
+        int successfulBids = bidsResource.warmUp(bids, concurrency,
+                start + TimeUnit.MILLISECONDS.toNanos(timeoutInMilliseconds),
+                dryRunSpendingStore, dryRunKeywordIndex, new BidSynchronizer(mode));
+        LOGGER.info("Warmed up with {} synthetic bids ({} successful) in {} ms", bids.size(), successfulBids,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static String randomKeyword(Random random) {
+        return "Warm-up Keyword " + random.nextInt(VOCABULARY_SIZE);
+    }
+
+    /**
+     * @return whether the warm-up has finished, failed or timed out.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,78 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.db.DryRunSpendingStore;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.bendeguz.biddingapp.health.WarmUpHealthCheck;
+import com.bendeguz.biddingapp.resources.BidsResource;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Configuration of the {@link BidWarmUp}, and a factory which creates it along with its health check.
+ */
+public class BidWarmUpFactory {
+    @Min(0)
+    private int bidCount = 10_000;
+
+    @Min(1)
+    private int concurrency = 32;
+
+    @NotNull
+    private Duration timeout = Duration.seconds(30);
+
+    @JsonProperty
+    public int getBidCount() {
+        return bidCount;
+    }
+
+    @JsonProperty
+    public void setBidCount(int bidCount) {
+        this.bidCount = bidCount;
+    }
+
+    @JsonProperty
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @JsonProperty
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    @JsonProperty
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @JsonProperty
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Creates a {@link BidWarmUp}, which starts with the application, and registers the {@code warm-up} health check,
+     * which is unhealthy until the warm-up has finished.
+     *
+     * @param environment    The environment of the application.
+     * @param bidsResource   The resource to place the synthetic bids through.
+     * @param campaignDAO    The DAO used by the dry-run spending store.
+     * @param spendingStore  The spending store of the real bids.
+     * @param mode           The mode of the real {@link BidSynchronizer}.
+     * @return the created {@link BidWarmUp}.
+     */
+    public BidWarmUp build(Environment environment, BidsResource bidsResource, CampaignDAO campaignDAO,
+                           SpendingStore spendingStore, BidSynchronizer.Mode mode) {
+        BidWarmUp bidWarmUp = new BidWarmUp(bidsResource,
+                new DryRunSpendingStore(campaignDAO, spendingStore.requiresUnitOfWork()), mode, bidCount, concurrency,
+                timeout.toMilliseconds());
+        environment.lifecycle().manage(bidWarmUp);
+        environment.healthChecks().register("warm-up", new WarmUpHealthCheck(bidWarmUp));
+        return bidWarmUp;
+    }
+}
@@ -1,33 +1,39 @@
 package com.bendeguz.biddingapp;
 
 import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
 import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.db.SpendingStore;
 import com.bendeguz.biddingapp.resources.BidsResource;
 import io.dropwizard.Application;
 import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.hibernate.HibernateBundle;
+import io.dropwizard.hibernate.UnitOfWorkAwareProxyFactory;
 import io.dropwizard.migrations.MigrationsBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import com.bendeguz.biddingapp.resources.CampaignsResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.persistence.PersistenceException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class BiddingApplication extends Application<BiddingConfiguration> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BiddingApplication.class);
+
     public static void main(String[] args) throws Exception {
         new BiddingApplication().run(args);
     }
 
     private final HibernateBundle<BiddingConfiguration> hibernateBundle =
-            new HibernateBundle<BiddingConfiguration>(Campaign.class) {
+            new HibernateBundle<BiddingConfiguration>(Campaign.class, Keyword.class) {
                 @Override
                 public DataSourceFactory getDataSourceFactory(BiddingConfiguration configuration) {
                     return configuration.getDataSourceFactory();
                 }
             };
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private final BidSynchronizer bidSynchronizer = new BidSynchronizer();
+    private final KeywordIndex keywordIndex = new KeywordIndex();
 
     @Override
     public String getName() {
@@ -49,11 +55,52 @@ public class BiddingApplication extends Application<BiddingConfiguration> {
     public void run(BiddingConfiguration configuration,
                     Environment environment) {
         final CampaignDAO campaignDAO = new CampaignDAO(hibernateBundle.getSessionFactory());
+        final BidSynchronizer bidSynchronizer = configuration.getBidSynchronizerFactory()
+                .build(environment, hibernateBundle.getSessionFactory());
+        final CampaignCache campaignCache = configuration.getCampaignCacheFactory().build(environment,
+                new UnitOfWorkAwareProxyFactory(hibernateBundle).create(CampaignLoader.class, CampaignDAO.class, campaignDAO));
+        SpendingStore spendingStore = configuration.getSpendingStoreFactory()
+                .build(environment, campaignDAO, hibernateBundle.getSessionFactory());
+        if (configuration.getSpendingStoreFactory().getMode() != SpendingStoreFactory.Mode.LEASE) {
+            // In LEASE mode, the spending in the database already includes the leased amounts, so the spending of
+            // the bids is not added to the cached campaigns, they are only refreshed when they expire.
+            spendingStore = campaignCache.refreshing(spendingStore);
+        }
+        // Managed objects are stopped in the reverse order of their registration, so the executor has to be registered
+        // after everything the bids use: the bids still running at stop finish before the ledger's final flush,
+        // the return of the leases and the final snapshot of the spending windows.
+        final ExecutorService executorService = configuration.getBidExecutorFactory().build(environment);
+        loadKeywordIndex(campaignDAO);
+        // Campaigns can be created through other instances in the modes meant for several instances.
+        boolean leasedBudgets = configuration.getSpendingStoreFactory().getMode() == SpendingStoreFactory.Mode.LEASE;
+        configuration.getKeywordIndexFactory().build(environment, campaignDAO, keywordIndex,
+                bidSynchronizer.getMode() == BidSynchronizer.Mode.SHARED || leasedBudgets, leasedBudgets);
 
-        final CampaignsResource campaignsResource = new CampaignsResource(campaignDAO);
-        final BidsResource bidsResource = new BidsResource(campaignDAO, executorService, hibernateBundle, bidSynchronizer);
+        final CampaignsResource campaignsResource = new CampaignsResource(campaignDAO, keywordIndex, campaignCache,
+                environment.getObjectMapper());
+        final BidsResource bidsResource = new BidsResource(spendingStore, keywordIndex, executorService, hibernateBundle, bidSynchronizer,
+                environment.metrics());
         environment.jersey().register(campaignsResource);
         environment.jersey().register(bidsResource);
+        configuration.getBidWarmUpFactory().build(environment, bidsResource, campaignDAO, spendingStore,
+                bidSynchronizer.getMode());
+    }
+
+    /**
+     * Fills the keyword index with the campaigns that are already in the database.
+     * If the database is not migrated yet, the application starts with an empty index - campaigns created
+     * after startup are added to it anyway.
+     *
+     * @param campaignDAO The DAO used to load the campaigns.
+     */
+    private void loadKeywordIndex(CampaignDAO campaignDAO) {
+        KeywordIndexLoader keywordIndexLoader = new KeywordIndexLoader(campaignDAO, keywordIndex);
+        try {
+            keywordIndexLoader.load();
+            LOGGER.info("Loaded {} campaigns into the keyword index", keywordIndex.size());
+        } catch (PersistenceException e) {
+            LOGGER.warn("Could not load the campaigns into the keyword index, starting with an empty index: ", e);
+        }
     }
 
 }
\ No newline at end of file
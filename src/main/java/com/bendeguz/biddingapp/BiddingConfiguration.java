@@ -12,6 +12,30 @@ public class BiddingConfiguration extends Configuration {
     @NotNull
     private DataSourceFactory database = new DataSourceFactory();
 
+    @Valid
+    @NotNull
+    private BidSynchronizerFactory bidSynchronizer = new BidSynchronizerFactory();
+
+    @Valid
+    @NotNull
+    private SpendingStoreFactory spending = new SpendingStoreFactory();
+
+    @Valid
+    @NotNull
+    private BidExecutorFactory bidExecutor = new BidExecutorFactory();
+
+    @Valid
+    @NotNull
+    private CampaignCacheFactory campaignCache = new CampaignCacheFactory();
+
+    @Valid
+    @NotNull
+    private KeywordIndexFactory keywordIndex = new KeywordIndexFactory();
+
+    @Valid
+    @NotNull
+    private BidWarmUpFactory warmUp = new BidWarmUpFactory();
+
     @JsonProperty("database")
     DataSourceFactory getDataSourceFactory() {
         return database;
@@ -21,4 +45,64 @@ public class BiddingConfiguration extends Configuration {
     public void setDataSourceFactory(DataSourceFactory dataSourceFactory) {
         this.database = dataSourceFactory;
     }
-}
\ No newline at end of file
+
+    @JsonProperty("bidSynchronizer")
+    public BidSynchronizerFactory getBidSynchronizerFactory() {
+        return bidSynchronizer;
+    }
+
+    @JsonProperty("bidSynchronizer")
+    public void setBidSynchronizerFactory(BidSynchronizerFactory bidSynchronizerFactory) {
+        this.bidSynchronizer = bidSynchronizerFactory;
+    }
+
+    @JsonProperty("spending")
+    public SpendingStoreFactory getSpendingStoreFactory() {
+        return spending;
+    }
+
+    @JsonProperty("spending")
+    public void setSpendingStoreFactory(SpendingStoreFactory spendingStoreFactory) {
+        this.spending = spendingStoreFactory;
+    }
+
+    @JsonProperty("bidExecutor")
+    public BidExecutorFactory getBidExecutorFactory() {
+        return bidExecutor;
+    }
+
+    @JsonProperty("bidExecutor")
+    public void setBidExecutorFactory(BidExecutorFactory bidExecutorFactory) {
+        this.bidExecutor = bidExecutorFactory;
+    }
+
+    @JsonProperty("campaignCache")
+    public CampaignCacheFactory getCampaignCacheFactory() {
+        return campaignCache;
+    }
+
+    @JsonProperty("campaignCache")
+    public void setCampaignCacheFactory(CampaignCacheFactory campaignCacheFactory) {
+        this.campaignCache = campaignCacheFactory;
+    }
+
+    @JsonProperty("keywordIndex")
+    public KeywordIndexFactory getKeywordIndexFactory() {
+        return keywordIndex;
+    }
+
+    @JsonProperty("keywordIndex")
+    public void setKeywordIndexFactory(KeywordIndexFactory keywordIndexFactory) {
+        this.keywordIndex = keywordIndexFactory;
+    }
+
+    @JsonProperty("warmUp")
+    public BidWarmUpFactory getBidWarmUpFactory() {
+        return warmUp;
+    }
+
+    @JsonProperty("warmUp")
+    public void setBidWarmUpFactory(BidWarmUpFactory bidWarmUpFactory) {
+        this.warmUp = bidWarmUpFactory;
+    }
+}
@@ -0,0 +1,169 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A read-through cache of campaigns by their ID, so that reading a campaign again and again does not use up
+ * the database connections that the bids need.
+ * <p>
+ * The cache holds at most a configured number of campaigns, and a campaign is loaded from the database again
+ * once it has been in the cache for the configured time. In the meantime, the spending of the bids is added to
+ * the cached campaign (see {@link #refreshing(SpendingStore)}), so its spending does not go stale, and the entry
+ * does not have to be dropped after every bid either. Campaigns that don't exist are not cached.
+ * <p>
+ * All methods of this class are thread-safe.
+ */
+public class CampaignCache {
+    /**
+     * A campaign as it was loaded from the database, and its spending since then.
+     */
+    private static class Entry {
+        private final Campaign campaign;
+        private final AtomicLong spending;
+
+        private Entry(Campaign campaign) {
+            this.campaign = campaign;
+            this.spending = new AtomicLong(campaign.getSpendingInMicros());
+        }
+
+        private Campaign toCampaign() {
+            return campaign.withSpendingInMicros(spending.get());
+        }
+    }
+
+    /**
+     * Thrown by the loader of an entry when there's no such campaign, so that nothing is cached for its ID.
+     */
+    private static class NoSuchCampaignException extends Exception {
+        private NoSuchCampaignException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Cache<Long, Entry> cache;
+    private final CampaignLoader campaignLoader;
+
+    /**
+     * @param campaignLoader           The loader of the campaigns which are not in the cache.
+     * @param maximumSize              The maximum number of cached campaigns.
+     * @param timeToLiveInMilliseconds The time after which a cached campaign is loaded again.
+     */
+    public CampaignCache(CampaignLoader campaignLoader, long maximumSize, long timeToLiveInMilliseconds) {
+        this(campaignLoader, maximumSize, timeToLiveInMilliseconds, System::nanoTime);
+    }
+
+    CampaignCache(CampaignLoader campaignLoader, long maximumSize, long timeToLiveInMilliseconds, LongSupplier nanoClock) {
+        this.campaignLoader = campaignLoader;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLiveInMilliseconds, TimeUnit.MILLISECONDS)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return nanoClock.getAsLong();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns a campaign from the cache, or loads it from the database if it's not cached. Concurrent requests for
+     * the same campaign wait for a single load.
+     *
+     * @param campaignId The ID of the campaign.
+     * @return the campaign, or an empty optional if there is no campaign with this ID.
+     */
+    public Optional<Campaign> get(long campaignId) {
+        try {
+            return Optional.of(cache.get(campaignId, () -> new Entry(
+                    campaignLoader.load(campaignId).orElseThrow(NoSuchCampaignException::new))).toCampaign());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchCampaignException) {
+                return Optional.empty();
+            }
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            // Unchecked exceptions of the loader are wrapped by the cache, but they should reach the caller as they are
+            // (e.g. so that they are mapped to the same responses as without the cache).
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Adds spending to a cached campaign. If the campaign is not cached, it does nothing: the spending will be
+     * part of the campaign when it is loaded. It does not count as a write, so it doesn't postpone the expiry of
+     * the entry.
+     *
+     * @param campaignId The ID of the campaign.
+     * @param amount     The amount of spending to add, in micro-NOK.
+     */
+    public void addSpending(long campaignId, long amount) {
+        Entry entry = cache.asMap().get(campaignId);
+        if (entry != null) {
+            entry.spending.addAndGet(amount);
+        }
+    }
+
+    /**
+     * Wraps a {@link SpendingStore}, so that every increase of spending that it accepts is added to the cached
+     * campaign as well, see {@link #addSpending(long, long)}. The spending is added once the store has committed it
+     * (see {@link SpendingStore#runAfterCommit(Runnable)}), so the cache never shows spending that is rolled back.
+     *
+     * @param spendingStore The store to wrap.
+     * @return the wrapping store.
+     */
+    public SpendingStore refreshing(SpendingStore spendingStore) {
+        return new SpendingStore() {
+            @Override
+            public boolean tryToIncreaseSpending(long campaignId, long amount) {
+                boolean increased = spendingStore.tryToIncreaseSpending(campaignId, amount);
+                if (increased) {
+                    spendingStore.runAfterCommit(() -> addSpending(campaignId, amount));
+                }
+                return increased;
+            }
+
+            @Override
+            public boolean requiresUnitOfWork() {
+                return spendingStore.requiresUnitOfWork();
+            }
+        };
+    }
+
+    /**
+     * Drops every campaign from the cache.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the number of cached campaigns.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the hits, misses and evictions of the cache since it was created.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
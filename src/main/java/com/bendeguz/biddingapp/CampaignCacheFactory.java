@@ -0,0 +1,60 @@
+package com.bendeguz.biddingapp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Configuration of the cache that serves {@code GET /campaigns/{id}}, and a factory which creates it.
+ * <p>
+ * The hits, misses and evictions of the created cache, and its size, are registered as metrics.
+ */
+public class CampaignCacheFactory {
+    @Min(1)
+    private long maximumSize = 10_000;
+
+    @NotNull
+    private Duration timeToLive = Duration.seconds(30);
+
+    @JsonProperty
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    @JsonProperty
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    @JsonProperty
+    public Duration getTimeToLive() {
+        return timeToLive;
+    }
+
+    @JsonProperty
+    public void setTimeToLive(Duration timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Creates the cache, and registers its metrics.
+     *
+     * @param environment    The environment of the application.
+     * @param campaignLoader The loader of the campaigns which are not in the cache.
+     * @return the created cache.
+     */
+    public CampaignCache build(Environment environment, CampaignLoader campaignLoader) {
+        CampaignCache campaignCache = new CampaignCache(campaignLoader, maximumSize, timeToLive.toMilliseconds());
+        MetricRegistry metrics = environment.metrics();
+        metrics.register(MetricRegistry.name(CampaignCache.class, "hits"), (Gauge<Long>) () -> campaignCache.stats().hitCount());
+        metrics.register(MetricRegistry.name(CampaignCache.class, "misses"), (Gauge<Long>) () -> campaignCache.stats().missCount());
+        metrics.register(MetricRegistry.name(CampaignCache.class, "evictions"), (Gauge<Long>) () -> campaignCache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(CampaignCache.class, "size"), (Gauge<Long>) campaignCache::size);
+        return campaignCache;
+    }
+}
@@ -0,0 +1,26 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import io.dropwizard.hibernate.UnitOfWork;
+
+import java.util.Optional;
+
+/**
+ * Loads single campaigns from the database for the {@link CampaignCache}.
+ * <p>
+ * Instances of this class should be created through {@code UnitOfWorkAwareProxyFactory}, so that a session is only
+ * opened when a campaign is actually loaded, and not for the requests that are served from the cache.
+ */
+public class CampaignLoader {
+    private final CampaignDAO campaignDAO;
+
+    public CampaignLoader(CampaignDAO campaignDAO) {
+        this.campaignDAO = campaignDAO;
+    }
+
+    @UnitOfWork(readOnly = true)
+    public Optional<Campaign> load(long campaignId) {
+        return campaignDAO.findByIdWithKeywords(campaignId);
+    }
+}
@@ -0,0 +1,355 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-memory inverted index which maps keywords to the IDs of the campaigns that contain them.
+ * <p>
+ * It is used to find the candidate campaigns of a bid without running a query against the database, which
+ * used to be the largest part of a bid's latency. Only campaigns that (as far as we know) still have a positive balance
+ * are returned, this is why campaigns have to be removed from it once their budget is exhausted.
+ * <p>
+ * Every campaign gets a small integer ordinal when it's first added, and the posting list of a keyword is a compressed
+ * bitmap (a {@link RoaringBitmap}) of the ordinals of its campaigns. The candidates of a bid are found by OR-ing the
+ * posting lists of its keywords, and AND-ing the result with the bitmap of the available campaigns, so every campaign
+ * is returned once no matter how many keywords it matches, and the cost depends on the size of the bitmaps, not on
+ * the number of matches per keyword. Removing a campaign only clears its bit in the available bitmap, its ordinal
+ * stays in the posting lists.
+ * <p>
+ * The index also remembers the sets of keywords whose candidates are all known to refuse bids until some time
+ * (see {@link #markExhausted(String[], long, long)}), so that further bids with them can be refused without trying
+ * the candidates again. Adding a campaign forgets all of them, since the new campaign may accept those bids. Every
+ * change that adds campaigns increases the version of the index, and each mark is stamped with the version its
+ * candidates were looked up in, so a mark computed before a campaign was added is never taken into account.
+ * <p>
+ * The bitmaps are never modified after they are published: the methods that change the index replace them with
+ * modified copies, one at a time. Campaigns are added and removed rarely compared to the bids, so this keeps the lookups
+ * lock-free at the cost of copying a bitmap on each change.
+ * <p>
+ * All methods of this class are thread-safe.
+ */
+public class KeywordIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAXIMUM_EXHAUSTED_KEYWORD_SETS = 10_000;
+    // Longer than any spending window, a set of keywords can't stay exhausted any longer without new spending.
+    private static final long EXHAUSTED_KEYWORD_SET_LIFETIME_IN_SECONDS = 11;
+
+    private final ConcurrentMap<String, RoaringBitmap> postingLists = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> ordinalsByCampaignId = new HashMap<>();
+    private volatile long[] campaignIdsByOrdinal = new long[INITIAL_CAPACITY];
+    private volatile RoaringBitmap available = new RoaringBitmap();
+    private volatile long version;
+    private final Cache<List<String>, ExhaustedKeywordSet> exhaustedKeywordSets = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_EXHAUSTED_KEYWORD_SETS)
+            .expireAfterWrite(EXHAUSTED_KEYWORD_SET_LIFETIME_IN_SECONDS, TimeUnit.SECONDS)
+            .build();
+    private final LongSupplier nanoClock;
+
+    public KeywordIndex() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * A set of keywords whose candidates refuse bids until {@code untilNanos}, according to the candidates found
+     * in the specified version of the index.
+     */
+    private static final class ExhaustedKeywordSet {
+        private final long untilNanos;
+        private final long version;
+
+        ExhaustedKeywordSet(long untilNanos, long version) {
+            this.untilNanos = untilNanos;
+            this.version = version;
+        }
+    }
+
+    KeywordIndex(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Adds a campaign to the index, but only if it has a positive balance (budget - spending).
+     *
+     * @param campaign The campaign to add.
+     */
+    public void addCampaign(Campaign campaign) {
+        if (campaign.getBalanceInMicros() > 0) {
+            addCampaign(campaign.getId(), campaign.getKeywords());
+        }
+    }
+
+    /**
+     * Adds the campaigns to the index, see {@link #addCampaign(Campaign)}. The bitmaps are copied only once
+     * for all of the campaigns.
+     *
+     * @param campaigns The campaigns to add.
+     */
+    public synchronized void addCampaigns(Collection<Campaign> campaigns) {
+        Map<Long, Collection<String>> keywordsByCampaignId = new LinkedHashMap<>();
+        for (Campaign campaign : campaigns) {
+            if (campaign.getBalanceInMicros() > 0) {
+                keywordsByCampaignId.put(campaign.getId(), campaign.getKeywords());
+            }
+        }
+        addCampaigns(keywordsByCampaignId);
+    }
+
+    /**
+     * Adds the campaigns specified by their IDs to the index. The bitmaps are copied only once for all of
+     * the campaigns.
+     *
+     * @param keywordsByCampaignId The keywords of the campaigns, by their IDs.
+     */
+    public synchronized void addCampaigns(Map<Long, ? extends Collection<String>> keywordsByCampaignId) {
+        Map<String, RoaringBitmap> changedPostingLists = new HashMap<>();
+        RoaringBitmap newAvailable = available.clone();
+        for (Map.Entry<Long, ? extends Collection<String>> entry : keywordsByCampaignId.entrySet()) {
+            int ordinal = getOrAssignOrdinal(entry.getKey());
+            for (String keyword : entry.getValue()) {
+                changedPostingLists.computeIfAbsent(keyword, this::copyPostingList).add(ordinal);
+            }
+            newAvailable.add(ordinal);
+        }
+        publish(changedPostingLists, newAvailable);
+    }
+
+    /**
+     * Adds a campaign specified by its ID to the index.
+     *
+     * @param id       The ID of the campaign.
+     * @param keywords The keywords of the campaign.
+     */
+    public synchronized void addCampaign(long id, Collection<String> keywords) {
+        int ordinal = getOrAssignOrdinal(id);
+        Map<String, RoaringBitmap> changedPostingLists = new HashMap<>();
+        for (String keyword : keywords) {
+            changedPostingLists.computeIfAbsent(keyword, this::copyPostingList).add(ordinal);
+        }
+        RoaringBitmap newAvailable = available.clone();
+        newAvailable.add(ordinal);
+        publish(changedPostingLists, newAvailable);
+    }
+
+    /**
+     * Adds the campaigns to the index as if they had been removed since: they are not returned as candidates, until
+     * they are restored by {@link #restoreCampaigns(Collection)}. Their balance is not checked.
+     *
+     * @param campaigns The campaigns to add.
+     */
+    public synchronized void addRemovedCampaigns(Collection<Campaign> campaigns) {
+        Map<String, RoaringBitmap> changedPostingLists = new HashMap<>();
+        for (Campaign campaign : campaigns) {
+            int ordinal = getOrAssignOrdinal(campaign.getId());
+            for (String keyword : campaign.getKeywords()) {
+                changedPostingLists.computeIfAbsent(keyword, this::copyPostingList).add(ordinal);
+            }
+        }
+        publish(changedPostingLists, available.clone());
+    }
+
+    /**
+     * Makes the removed campaigns specified by their IDs candidates again, with the keywords they were added with.
+     * The IDs of the campaigns that have never been added are ignored.
+     *
+     * @param ids The IDs of the campaigns.
+     */
+    public synchronized void restoreCampaigns(Collection<Long> ids) {
+        RoaringBitmap newAvailable = available.clone();
+        for (Long id : ids) {
+            Integer ordinal = ordinalsByCampaignId.get(id);
+            if (ordinal != null) {
+                newAvailable.add(ordinal);
+            }
+        }
+        publish(Collections.emptyMap(), newAvailable);
+    }
+
+    /**
+     * @return the IDs of the campaigns that have been added to the index, but have been removed since.
+     */
+    public synchronized List<Long> getRemovedCampaignIds() {
+        RoaringBitmap removed = RoaringBitmap.andNot(RoaringBitmap.bitmapOfRange(0, ordinalsByCampaignId.size()), available);
+        long[] ids = campaignIdsByOrdinal;
+        List<Long> removedIds = new ArrayList<>(removed.getCardinality());
+        IntIterator ordinals = removed.getIntIterator();
+        while (ordinals.hasNext()) {
+            removedIds.add(ids[ordinals.next()]);
+        }
+        return removedIds;
+    }
+
+    private RoaringBitmap copyPostingList(String keyword) {
+        RoaringBitmap postingList = postingLists.get(keyword);
+        return postingList == null ? new RoaringBitmap() : postingList.clone();
+    }
+
+    private int getOrAssignOrdinal(long id) {
+        Integer ordinal = ordinalsByCampaignId.get(id);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        int newOrdinal = ordinalsByCampaignId.size();
+        long[] ids = campaignIdsByOrdinal;
+        if (newOrdinal == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[newOrdinal] = id;
+        // The ordinal becomes visible to the lookups through the available bitmap, which is published after this.
+        campaignIdsByOrdinal = ids;
+        ordinalsByCampaignId.put(id, newOrdinal);
+        return newOrdinal;
+    }
+
+    /**
+     * Publishes the posting lists before the available bitmap, so a campaign is never available before it can
+     * be found through all of its keywords. The version is increased after the available bitmap, so a lookup that
+     * reads the new version also sees the new campaigns.
+     */
+    private void publish(Map<String, RoaringBitmap> changedPostingLists, RoaringBitmap newAvailable) {
+        for (Map.Entry<String, RoaringBitmap> entry : changedPostingLists.entrySet()) {
+            entry.getValue().runOptimize();
+            postingLists.put(entry.getKey(), entry.getValue());
+        }
+        newAvailable.runOptimize();
+        available = newAvailable;
+        version++;
+        exhaustedKeywordSets.invalidateAll();
+    }
+
+    /**
+     * Removes a campaign specified by its ID from the index, so it will not be returned as a candidate anymore.
+     * Does nothing if the campaign is not in the index.
+     *
+     * @param id The ID of the campaign.
+     */
+    public synchronized void removeCampaign(long id) {
+        Integer ordinal = ordinalsByCampaignId.get(id);
+        if (ordinal == null || !available.contains(ordinal)) {
+            return;
+        }
+        RoaringBitmap newAvailable = available.clone();
+        newAvailable.remove(ordinal);
+        available = newAvailable;
+    }
+
+    /**
+     * Checks whether a campaign specified by its ID has ever been added to the index, even if it has been removed since.
+     *
+     * @param id The ID of the campaign.
+     * @return whether the campaign has been added.
+     */
+    public synchronized boolean containsCampaign(long id) {
+        return ordinalsByCampaignId.containsKey(id);
+    }
+
+    /**
+     * Finds the IDs of the campaigns that have at least one of the specified keywords.
+     * Each ID is contained only once in the returned list, even if the campaign matches multiple keywords.
+     *
+     * @param keywords The keywords that the campaigns should contain.
+     * @return a modifiable list of the matching campaign IDs.
+     */
+    public List<Long> findCampaignIdsByKeywords(String[] keywords) {
+        // The available bitmap is read first: the posting lists and the IDs of its campaigns were published before it.
+        RoaringBitmap availableNow = available;
+        List<RoaringBitmap> matchingPostingLists = new ArrayList<>(keywords.length);
+        for (String keyword : keywords) {
+            if (keyword == null) {
+                continue;
+            }
+            RoaringBitmap postingList = postingLists.get(keyword);
+            if (postingList != null) {
+                matchingPostingLists.add(postingList);
+            }
+        }
+        if (matchingPostingLists.isEmpty()) {
+            return new ArrayList<>();
+        }
+        RoaringBitmap candidates = matchingPostingLists.size() == 1
+                ? RoaringBitmap.and(matchingPostingLists.get(0), availableNow)
+                : RoaringBitmap.and(FastAggregation.or(matchingPostingLists.iterator()), availableNow);
+
+        long[] ids = campaignIdsByOrdinal;
+        List<Long> campaignIds = new ArrayList<>(candidates.getCardinality());
+        IntIterator ordinals = candidates.getIntIterator();
+        while (ordinals.hasNext()) {
+            campaignIds.add(ids[ordinals.next()]);
+        }
+        return campaignIds;
+    }
+
+    /**
+     * Checks whether any campaign has at least one of the specified keywords, without collecting them. The answer is
+     * exact: it's the same as whether {@link #findCampaignIdsByKeywords(String[])} would find any campaign at the time
+     * of the call, but it stops at the first matching keyword.
+     *
+     * @param keywords The keywords that the campaigns should contain.
+     * @return whether there is any matching campaign.
+     */
+    public boolean hasCampaignsWithKeywords(String[] keywords) {
+        RoaringBitmap availableNow = available;
+        for (String keyword : keywords) {
+            if (keyword == null) {
+                continue;
+            }
+            RoaringBitmap postingList = postingLists.get(keyword);
+            if (postingList != null && RoaringBitmap.intersects(postingList, availableNow)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the version of the index, which is increased every time campaigns are added. It has to be read before
+     * looking up the candidates whose refusals are passed to {@link #markExhausted(String[], long, long)}.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Remembers that every campaign with the specified keywords refuses bids for the specified time, so
+     * {@link #isExhausted(String[])} returns true for the same keywords (in the same order) until then, or until
+     * a campaign is added. If a campaign has already been added since the specified version, the candidates may not
+     * include it, so nothing is remembered.
+     *
+     * @param keywords        The keywords of the refused bid.
+     * @param version         The version of the index read before looking up the candidates, see {@link #getVersion()}.
+     * @param durationInNanos How long the candidates are known to refuse bids.
+     */
+    public void markExhausted(String[] keywords, long version, long durationInNanos) {
+        if (version != this.version) {
+            return;
+        }
+        // Campaigns may be added between the check above and the put, the version stamp covers that case.
+        exhaustedKeywordSets.put(Arrays.asList(keywords.clone()),
+                new ExhaustedKeywordSet(nanoClock.getAsLong() + durationInNanos, version));
+    }
+
+    /**
+     * @param keywords The keywords of a bid.
+     * @return whether the candidates of the keywords are known to refuse the bid, see
+     * {@link #markExhausted(String[], long, long)}.
+     */
+    public boolean isExhausted(String[] keywords) {
+        ExhaustedKeywordSet exhaustedKeywordSet = exhaustedKeywordSets.getIfPresent(Arrays.asList(keywords));
+        return exhaustedKeywordSet != null && exhaustedKeywordSet.version == version
+                && nanoClock.getAsLong() - exhaustedKeywordSet.untilNanos < 0;
+    }
+
+    public int size() {
+        return available.getCardinality();
+    }
+}
@@ -0,0 +1,49 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Configuration of the refresh of the {@link KeywordIndex}, and a factory which creates the {@link KeywordIndexRefresher}.
+ */
+public class KeywordIndexFactory {
+    @NotNull
+    private Duration refreshInterval = Duration.seconds(1);
+
+    @JsonProperty
+    public Duration getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    @JsonProperty
+    public void setRefreshInterval(Duration refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Creates a {@link KeywordIndexRefresher} which runs every {@code refreshInterval}, if the database is shared with
+     * other instances. Otherwise every campaign is created through this instance, so no refresh is needed.
+     *
+     * @param environment    The environment of the application.
+     * @param campaignDAO    The DAO used to read the campaigns.
+     * @param keywordIndex   The index to refresh.
+     * @param sharedDatabase Whether the application runs in a mode meant for several instances sharing the database.
+     * @param leasedBudgets  Whether the budgets are leased, so the balance of a campaign can grow, see
+     *                       {@link KeywordIndexRefresher}.
+     * @return the created {@link KeywordIndexRefresher}, or {@code null} if the database is not shared.
+     */
+    public KeywordIndexRefresher build(Environment environment, CampaignDAO campaignDAO, KeywordIndex keywordIndex,
+                                       boolean sharedDatabase, boolean leasedBudgets) {
+        if (!sharedDatabase) {
+            return null;
+        }
+        KeywordIndexRefresher keywordIndexRefresher = new KeywordIndexRefresher(campaignDAO, keywordIndex,
+                refreshInterval.toMilliseconds(), leasedBudgets);
+        environment.lifecycle().manage(keywordIndexRefresher);
+        return keywordIndexRefresher;
+    }
+}
@@ -0,0 +1,33 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.CampaignDAO;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills a {@link KeywordIndex} with the campaigns stored in the database.
+ * <p>
+ * Only the IDs and the keywords of the campaigns with a positive balance are read, see
+ * {@link CampaignDAO#forEachCampaignKeywords}, so no entity is loaded at startup. The DAO opens its own session,
+ * so this can be used outside of a request without a {@code @UnitOfWork}.
+ */
+public class KeywordIndexLoader {
+    private final CampaignDAO campaignDAO;
+    private final KeywordIndex keywordIndex;
+
+    public KeywordIndexLoader(CampaignDAO campaignDAO, KeywordIndex keywordIndex) {
+        this.campaignDAO = campaignDAO;
+        this.keywordIndex = keywordIndex;
+    }
+
+    /**
+     * Adds the campaigns to the index at once, so the bitmaps of the index are copied only once.
+     */
+    public void load() {
+        Map<Long, List<String>> keywordsByCampaignId = new HashMap<>();
+        campaignDAO.forEachCampaignKeywords(keywordsByCampaignId::put);
+        keywordIndex.addCampaigns(keywordsByCampaignId);
+    }
+}
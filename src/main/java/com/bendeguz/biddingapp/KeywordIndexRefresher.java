@@ -0,0 +1,170 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Money;
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.google.common.collect.Lists;
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds the campaigns created by other instances of the application to the {@link KeywordIndex}. An instance only
+ * adds the campaigns it creates itself, so when several instances share the database, the campaigns created through
+ * one of them would not be found by the others until they restart.
+ * <p>
+ * The campaigns are read from the database periodically, starting after the highest ID seen by the previous refresh.
+ * Since IDs are assigned when a campaign is inserted, not when it's committed, a campaign may become visible after
+ * a higher ID has already been seen, so the last {@code LOOKBACK_IDS} IDs are read again. Only the campaigns that
+ * have never been in the index are added, so a campaign removed because of its exhausted budget is not added again.
+ * <p>
+ * With leased budgets (see {@link com.bendeguz.biddingapp.db.BudgetLeaseStore}), a campaign whose balance is held by
+ * the leases of other instances refuses the bids, but the balance comes back when those leases are given back.
+ * So in that mode the campaigns without balance are added to the index as removed ones, and the refreshes restore
+ * the removed campaigns whose balance in the database has grown enough for a bid again.
+ * <p>
+ * A campaign whose budget is fully spent stays removed for good, but its balance in the database looks the same as
+ * the balance of a campaign leased by another instance. So instead of checking every removed campaign on every
+ * refresh, a campaign is checked again after twice as many refreshes as before, up to
+ * {@value #MAX_RESTORE_BACKOFF_IN_REFRESHES} refreshes, and the campaigns that are not removed any more are
+ * forgotten. A spent campaign is then checked about once a minute, at the price of restoring a leased one later.
+ */
+public class KeywordIndexRefresher implements Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeywordIndexRefresher.class);
+    private static final long LOOKBACK_IDS = 100;
+    /**
+     * The amount of a bid, a removed campaign is restored only if it has at least this much balance.
+     */
+    private static final long MINIMUM_BALANCE = Money.MICROS_PER_NOK;
+    private static final int RESTORE_BATCH_SIZE = 1000;
+    private static final int MAX_RESTORE_BACKOFF_IN_REFRESHES = 64;
+
+    /**
+     * When a removed campaign is checked next: after {@code refreshesLeft} refreshes, then after {@code backoff}
+     * refreshes if it's not restored by then.
+     */
+    private static class RestoreBackoff {
+        private int refreshesLeft;
+        private int backoff = 1;
+    }
+
+    private final CampaignDAO campaignDAO;
+    private final KeywordIndex keywordIndex;
+    private final long intervalInMilliseconds;
+    private final boolean restoresRemovedCampaigns;
+    private long highestId;
+    private Map<Long, RestoreBackoff> restoreBackoffs = new HashMap<>();
+    private ScheduledExecutorService refreshExecutor;
+
+    /**
+     * @param campaignDAO              The DAO used to read the campaigns.
+     * @param keywordIndex             The index to refresh.
+     * @param intervalInMilliseconds   The time between the refreshes.
+     * @param restoresRemovedCampaigns Whether the removed campaigns are restored when their balance grows,
+     *                                 which is only possible with leased budgets.
+     */
+    public KeywordIndexRefresher(CampaignDAO campaignDAO, KeywordIndex keywordIndex, long intervalInMilliseconds,
+                                 boolean restoresRemovedCampaigns) {
+        this.campaignDAO = campaignDAO;
+        this.keywordIndex = keywordIndex;
+        this.intervalInMilliseconds = intervalInMilliseconds;
+        this.restoresRemovedCampaigns = restoresRemovedCampaigns;
+    }
+
+    @Override
+    public void start() {
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "keyword-index-refresh"));
+        refreshExecutor.scheduleWithFixedDelay(this::refreshQuietly, intervalInMilliseconds, intervalInMilliseconds,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        refreshExecutor.shutdown();
+        refreshExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (HibernateException e) {
+            LOGGER.error("Could not refresh the keyword index, retrying with the next refresh: ", e);
+        }
+    }
+
+    /**
+     * Adds the campaigns to the index which have a positive balance, and which have never been in it. If the removed
+     * campaigns are restored, the ones without balance are added as removed campaigns, then the removed campaigns
+     * with enough balance are restored, once their backoff allows it.
+     *
+     * @return the number of added and restored campaigns.
+     */
+    public synchronized int refresh() {
+        List<Campaign> newCampaigns = new ArrayList<>();
+        List<Campaign> newRemovedCampaigns = new ArrayList<>();
+        long[] highestIdSeen = {highestId};
+        campaignDAO.forEachCampaign(Math.max(highestId - LOOKBACK_IDS, 0), campaign -> {
+            highestIdSeen[0] = Math.max(highestIdSeen[0], campaign.getId());
+            if (keywordIndex.containsCampaign(campaign.getId())) {
+                return;
+            }
+            if (campaign.getBalanceInMicros() > 0) {
+                newCampaigns.add(campaign);
+            } else if (restoresRemovedCampaigns) {
+                newRemovedCampaigns.add(campaign);
+            }
+        });
+        highestId = highestIdSeen[0];
+        if (!newCampaigns.isEmpty()) {
+            keywordIndex.addCampaigns(newCampaigns);
+            LOGGER.info("Added {} campaigns created by other instances to the keyword index", newCampaigns.size());
+        }
+        if (!newRemovedCampaigns.isEmpty()) {
+            keywordIndex.addRemovedCampaigns(newRemovedCampaigns);
+        }
+        return newCampaigns.size() + (restoresRemovedCampaigns ? restoreRemovedCampaigns() : 0);
+    }
+
+    private int restoreRemovedCampaigns() {
+        Map<Long, RestoreBackoff> removedBackoffs = new HashMap<>();
+        List<Long> dueIds = new ArrayList<>();
+        for (Long id : keywordIndex.getRemovedCampaignIds()) {
+            RestoreBackoff backoff = restoreBackoffs.getOrDefault(id, new RestoreBackoff());
+            removedBackoffs.put(id, backoff);
+            if (--backoff.refreshesLeft <= 0) {
+                dueIds.add(id);
+            }
+        }
+        restoreBackoffs = removedBackoffs;
+
+        Set<Long> restoredIds = new HashSet<>();
+        for (List<Long> ids : Lists.partition(dueIds, RESTORE_BATCH_SIZE)) {
+            restoredIds.addAll(campaignDAO.findIdsWithBalance(ids, MINIMUM_BALANCE));
+        }
+        for (Long id : dueIds) {
+            if (restoredIds.contains(id)) {
+                restoreBackoffs.remove(id);
+            } else {
+                RestoreBackoff backoff = restoreBackoffs.get(id);
+                backoff.backoff = Math.min(backoff.backoff * 2, MAX_RESTORE_BACKOFF_IN_REFRESHES);
+                backoff.refreshesLeft = backoff.backoff;
+            }
+        }
+        if (!restoredIds.isEmpty()) {
+            keywordIndex.restoreCampaigns(restoredIds);
+            LOGGER.info("Restored {} campaigns in the keyword index, their balance has grown", restoredIds.size());
+        }
+        return restoredIds.size();
+    }
+}
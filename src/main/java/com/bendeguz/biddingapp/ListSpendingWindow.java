@@ -0,0 +1,141 @@
+package com.bendeguz.biddingapp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SpendingWindow} which stores every single spending with its time, and sums them up on each check.
+ * <p>
+ * This class is not thread-safe, the caller has to make sure it's only accessed by one thread at a time - except for
+ * {@link #getHeadroom()}, which reads a snapshot published after every change. The headroom can only grow when
+ * the oldest spending expires, so the snapshot is exact until then, and it's replaced by the limit after that.
+ */
+class ListSpendingWindow implements SpendingWindow {
+    private static final Duration WINDOW_LENGTH = Duration.ofSeconds(10);
+
+    private static class Spending{
+        private final Instant time;
+        private final long amount;
+
+        Spending(Instant time, long amount){
+            this.time = time;
+            this.amount = amount;
+        }
+
+        long getAmount(){
+            return amount;
+        }
+
+        boolean isOlderThan10Sec(){
+            Duration durationSinceSpending = Duration.between(time, Instant.now());
+            return durationSinceSpending.compareTo(WINDOW_LENGTH) > 0;
+        }
+    }
+
+    /**
+     * The headroom of the window, which is valid until the oldest spending expires.
+     */
+    private static class HeadroomSnapshot {
+        private final long headroom;
+        private final long validUntilMillis;
+
+        HeadroomSnapshot(long headroom, long validUntilMillis) {
+            this.headroom = headroom;
+            this.validUntilMillis = validUntilMillis;
+        }
+    }
+
+    private final List<Spending> spendings = new ArrayList<>();
+    private final long limit;
+    private boolean retired;
+    private volatile HeadroomSnapshot headroomSnapshot;
+
+    ListSpendingWindow(long limit) {
+        this.limit = limit;
+        this.headroomSnapshot = new HeadroomSnapshot(limit, Long.MAX_VALUE);
+    }
+
+    private long removeExpiredSpendingsAndSum() {
+        spendings.removeIf(Spending::isOlderThan10Sec);
+        long totalSpendingInPast10Sec = 0;
+        for (Spending spending : spendings) {
+            totalSpendingInPast10Sec += spending.getAmount();
+        }
+        return totalSpendingInPast10Sec;
+    }
+
+    private void publishHeadroom(long totalSpendingInPast10Sec) {
+        long validUntilMillis = spendings.isEmpty() ? Long.MAX_VALUE : spendings.get(0).time.plus(WINDOW_LENGTH).toEpochMilli();
+        headroomSnapshot = new HeadroomSnapshot(limit - totalSpendingInPast10Sec, validUntilMillis);
+    }
+
+    @Override
+    public boolean isAvailableForSpending(long amount) {
+        if (retired) {
+            return false;
+        }
+        long totalSpendingInPast10Sec = removeExpiredSpendingsAndSum();
+        publishHeadroom(totalSpendingInPast10Sec);
+        return totalSpendingInPast10Sec + amount <= limit;
+    }
+
+    @Override
+    public long getHeadroom() {
+        HeadroomSnapshot snapshot = headroomSnapshot;
+        return System.currentTimeMillis() < snapshot.validUntilMillis ? snapshot.headroom : limit;
+    }
+
+    @Override
+    public long getNanosUntilHeadroomGrows() {
+        HeadroomSnapshot snapshot = headroomSnapshot;
+        if (snapshot.validUntilMillis == Long.MAX_VALUE) {
+            return 0;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(snapshot.validUntilMillis - System.currentTimeMillis(), 0));
+    }
+
+    @Override
+    public void spend(long amount) {
+        spendings.add(new Spending(Instant.now(), amount));
+        publishHeadroom(removeExpiredSpendingsAndSum());
+    }
+
+    @Override
+    public void spend(long amount, long ageInNanos) {
+        Instant time = Instant.now().minusNanos(ageInNanos);
+        if (!spendings.isEmpty() && time.isBefore(spendings.get(spendings.size() - 1).time)) {
+            // The list is kept in chronological order.
+            time = spendings.get(spendings.size() - 1).time;
+        }
+        spendings.add(new Spending(time, amount));
+        publishHeadroom(removeExpiredSpendingsAndSum());
+    }
+
+    @Override
+    public void forEachSpending(SpendingConsumer consumer) {
+        Instant now = Instant.now();
+        for (Spending spending : spendings) {
+            if (!spending.isOlderThan10Sec()) {
+                consumer.accept(Math.max(Duration.between(spending.time, now).toNanos(), 0), spending.amount);
+            }
+        }
+    }
+
+    @Override
+    public boolean retireIfIdle() {
+        spendings.removeIf(Spending::isOlderThan10Sec);
+        retired = retired || spendings.isEmpty();
+        if (retired) {
+            headroomSnapshot = new HeadroomSnapshot(limit, Long.MAX_VALUE);
+        }
+        return retired;
+    }
+
+    @Override
+    public boolean isRetired() {
+        return retired;
+    }
+}
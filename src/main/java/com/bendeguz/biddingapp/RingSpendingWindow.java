@@ -0,0 +1,246 @@
+package com.bendeguz.biddingapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free {@link SpendingWindow} which divides the past 10 seconds into a fixed number of buckets, based on
+ * a monotonic clock. Checking and registering a spending takes constant time and does not allocate.
+ * <p>
+ * The amounts are stored as micro-NOK in {@code long} values, together with the index of the bucket (its "epoch"):
+ * the upper 32 bits contain the epoch, the lower 32 bits the amount spent during it.
+ * The bucket of the newest epoch is kept in {@code head}, every check and spending is decided by a single CAS on it,
+ * so all of them are serialized without a lock. When the head moves on to a newer epoch, the thread doing it first
+ * saves the finished bucket into {@code buckets} - since this happens before the CAS on the head, the buckets older
+ * than the head are always complete when they are read.
+ * <p>
+ * When the window is retired, the head is set to {@code RETIRED}, a value that can never occur otherwise. Since every
+ * spending has to CAS the head, no spending can sneak in after the window has been found idle.
+ * <p>
+ * A spending is counted until its whole bucket is older than 10 seconds, so the window is slightly longer than
+ * 10 seconds (by at most the length of a bucket). This makes the limit a bit stricter, but never looser.
+ * <p>
+ * The epochs are counted from a whole window before the creation of the window, so that spendings of the past 10
+ * seconds can be restored into it (see {@link #spend(long, long)}) without going below epoch 0.
+ */
+class RingSpendingWindow implements SpendingWindow {
+    private static final int BUCKET_COUNT = 100;
+    private static final long BUCKET_LENGTH_IN_NANOS = TimeUnit.SECONDS.toNanos(10) / BUCKET_COUNT;
+    private static final long AMOUNT_MASK = 0xFFFFFFFFL;
+    private static final long RETIRED = -1L;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final long limit;
+    private final LongSupplier nanoClock;
+    private final long origin;
+
+    RingSpendingWindow(long limit, LongSupplier nanoClock) {
+        this.limit = limit;
+        this.nanoClock = nanoClock;
+        this.origin = nanoClock.getAsLong() - BUCKET_COUNT * BUCKET_LENGTH_IN_NANOS;
+    }
+
+    private static long pack(long epoch, long amount) {
+        return (epoch << 32) | amount;
+    }
+
+    private static long epochOf(long bucket) {
+        return bucket >>> 32;
+    }
+
+    private static long amountOf(long bucket) {
+        return bucket & AMOUNT_MASK;
+    }
+
+    private long currentEpoch() {
+        return (nanoClock.getAsLong() - origin) / BUCKET_LENGTH_IN_NANOS;
+    }
+
+    /**
+     * Sums up the spending of the window that ends with the specified epoch, using the specified head.
+     *
+     * @param epoch The last epoch of the window, never older than the epoch of the head.
+     * @param head  The current value of the head.
+     * @return the total spending in micro-NOK.
+     */
+    private long totalSpending(long epoch, long head) {
+        long headEpoch = epochOf(head);
+        long total = headEpoch >= epoch - BUCKET_COUNT ? amountOf(head) : 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucket = buckets.get(i);
+            long bucketEpoch = epochOf(bucket);
+            // The bucket of the head's epoch may contain a partial copy of the head, it's counted through the head.
+            if (bucketEpoch != headEpoch && bucketEpoch >= epoch - BUCKET_COUNT && bucketEpoch < epoch) {
+                total += amountOf(bucket);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Saves the finished head into its bucket, unless the bucket already has the same or a newer state.
+     * Several threads may try to save the same epoch, but the amount of an epoch only grows,
+     * so keeping the largest one is always correct.
+     *
+     * @param head The head to save.
+     */
+    private void saveBucket(long head) {
+        int index = (int) (epochOf(head) % BUCKET_COUNT);
+        while (true) {
+            long bucket = buckets.get(index);
+            if (epochOf(bucket) > epochOf(head) || (epochOf(bucket) == epochOf(head) && amountOf(bucket) >= amountOf(head))) {
+                return;
+            }
+            if (buckets.compareAndSet(index, bucket, head)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Registers the spending if {@code checkLimit} is false, or if it does not exceed the limit.
+     *
+     * @param amount     The amount of spending.
+     * @param checkLimit Whether to check the limit.
+     * @param now        The epoch of the spending.
+     * @return whether the spending was registered or not.
+     */
+    private boolean addSpending(long amount, boolean checkLimit, long now) {
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead == RETIRED) {
+                return false;
+            }
+            long headEpoch = epochOf(currentHead);
+            // Another thread might have read the clock later than we did, the head must never move backwards.
+            long epoch = Math.max(now, headEpoch);
+            if (checkLimit && totalSpending(epoch, currentHead) + amount > limit) {
+                return false;
+            }
+            long newHead;
+            if (epoch == headEpoch) {
+                newHead = pack(epoch, amountOf(currentHead) + amount);
+            } else {
+                saveBucket(currentHead);
+                newHead = pack(epoch, amount);
+            }
+            if (head.compareAndSet(currentHead, newHead)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean isAvailableForSpending(long amount) {
+        long currentHead = head.get();
+        if (currentHead == RETIRED) {
+            return false;
+        }
+        long epoch = Math.max(currentEpoch(), epochOf(currentHead));
+        return totalSpending(epoch, currentHead) + amount <= limit;
+    }
+
+    @Override
+    public long getHeadroom() {
+        long currentHead = head.get();
+        if (currentHead == RETIRED) {
+            return limit;
+        }
+        long epoch = Math.max(currentEpoch(), epochOf(currentHead));
+        return limit - totalSpending(epoch, currentHead);
+    }
+
+    @Override
+    public long getNanosUntilHeadroomGrows() {
+        long currentHead = head.get();
+        if (currentHead == RETIRED) {
+            return 0;
+        }
+        long headEpoch = epochOf(currentHead);
+        long now = Math.max(currentEpoch(), headEpoch);
+        long oldestEpoch = -1;
+        for (long epoch = now - BUCKET_COUNT; epoch < now && oldestEpoch < 0; epoch++) {
+            long bucket = buckets.get((int) (epoch % BUCKET_COUNT));
+            if (epochOf(bucket) == epoch && epoch != headEpoch && amountOf(bucket) > 0) {
+                oldestEpoch = epoch;
+            }
+        }
+        if (oldestEpoch < 0 && headEpoch >= now - BUCKET_COUNT && amountOf(currentHead) > 0) {
+            oldestEpoch = headEpoch;
+        }
+        if (oldestEpoch < 0) {
+            return 0;
+        }
+        // The bucket is counted until the epoch BUCKET_COUNT + 1 epochs after it starts.
+        long expiresAtNanos = origin + (oldestEpoch + BUCKET_COUNT + 1) * BUCKET_LENGTH_IN_NANOS;
+        return Math.max(expiresAtNanos - nanoClock.getAsLong(), 0);
+    }
+
+    @Override
+    public void spend(long amount) {
+        addSpending(amount, false, currentEpoch());
+    }
+
+    @Override
+    public void spend(long amount, long ageInNanos) {
+        // Rounded down to whole buckets, so the spending is counted as if it was slightly newer.
+        addSpending(amount, false, Math.max(currentEpoch() - ageInNanos / BUCKET_LENGTH_IN_NANOS, 0));
+    }
+
+    @Override
+    public void forEachSpending(SpendingConsumer consumer) {
+        long currentHead = head.get();
+        if (currentHead == RETIRED) {
+            return;
+        }
+        long headEpoch = epochOf(currentHead);
+        long now = Math.max(currentEpoch(), headEpoch);
+        for (long epoch = now - BUCKET_COUNT; epoch < now; epoch++) {
+            long bucket = buckets.get((int) (epoch % BUCKET_COUNT));
+            if (epochOf(bucket) == epoch && epoch != headEpoch && amountOf(bucket) > 0) {
+                consumer.accept(minimumAge(epoch, now), amountOf(bucket));
+            }
+        }
+        if (headEpoch >= now - BUCKET_COUNT && amountOf(currentHead) > 0) {
+            consumer.accept(minimumAge(headEpoch, now), amountOf(currentHead));
+        }
+    }
+
+    /**
+     * The spending of an epoch may have happened at its very end, and it's the epoch {@code now} at most
+     * a moment after its start.
+     */
+    private static long minimumAge(long epoch, long now) {
+        return Math.max(now - epoch - 1, 0) * BUCKET_LENGTH_IN_NANOS;
+    }
+
+    @Override
+    public boolean tryToSpend(long amount) {
+        return addSpending(amount, true, currentEpoch());
+    }
+
+    @Override
+    public boolean retireIfIdle() {
+        long now = currentEpoch();
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead == RETIRED) {
+                return true;
+            }
+            if (totalSpending(Math.max(now, epochOf(currentHead)), currentHead) > 0) {
+                return false;
+            }
+            if (head.compareAndSet(currentHead, RETIRED)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean isRetired() {
+        return head.get() == RETIRED;
+    }
+}
@@ -0,0 +1,134 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Money;
+import com.bendeguz.biddingapp.db.BudgetLeaseStore;
+import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.db.SpendingLedger;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import org.hibernate.SessionFactory;
+
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Configuration of how the spending of successful bids is written to the database, and a factory which creates
+ * the corresponding {@link SpendingStore}.
+ */
+public class SpendingStoreFactory {
+    public enum Mode {
+        /**
+         * Every bid increases the spending in the database with its own {@code UPDATE} statement.
+         */
+        DIRECT,
+        /**
+         * The balances are kept in memory, and the spending is written to the database in batches,
+         * see {@link SpendingLedger}.
+         */
+        WRITE_BEHIND,
+        /**
+         * Chunks of the budgets are reserved in the database, and the bids are served from them in memory,
+         * see {@link BudgetLeaseStore}.
+         */
+        LEASE
+    }
+
+    @NotNull
+    private Mode mode = Mode.DIRECT;
+
+    @NotNull
+    private Duration flushInterval = Duration.milliseconds(100);
+
+    @Min(1)
+    private int flushBatchSize = 1000;
+
+    /**
+     * The amount reserved by a lease in NOK, like every amount of money in the configuration and the API. A lease
+     * smaller than a bid reserves the amount of the bid instead.
+     */
+    @DecimalMin(value = "0", inclusive = false)
+    private double leaseSize = 50;
+
+    @NotNull
+    private Duration leaseDuration = Duration.seconds(10);
+
+    @JsonProperty
+    public Mode getMode() {
+        return mode;
+    }
+
+    @JsonProperty
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    @JsonProperty
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    @JsonProperty
+    public void setFlushInterval(Duration flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    @JsonProperty
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+
+    @JsonProperty
+    public void setFlushBatchSize(int flushBatchSize) {
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    @JsonProperty
+    public double getLeaseSize() {
+        return leaseSize;
+    }
+
+    @JsonProperty
+    public void setLeaseSize(double leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+    @JsonProperty
+    public Duration getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    @JsonProperty
+    public void setLeaseDuration(Duration leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Creates the {@link SpendingStore} of the configured mode. In {@code WRITE_BEHIND} and {@code LEASE} mode,
+     * the created store is managed by the environment's lifecycle, so its in-memory state is written to the database
+     * when the application stops.
+     *
+     * @param environment    The environment of the application.
+     * @param campaignDAO    The DAO used in {@code DIRECT} mode.
+     * @param sessionFactory The session factory used in the other modes.
+     * @return the created {@link SpendingStore}.
+     */
+    public SpendingStore build(Environment environment, CampaignDAO campaignDAO, SessionFactory sessionFactory) {
+        switch (mode) {
+            case WRITE_BEHIND:
+                SpendingLedger spendingLedger = new SpendingLedger(sessionFactory, flushInterval.toMilliseconds(), flushBatchSize,
+                        environment.metrics());
+                environment.lifecycle().manage(spendingLedger);
+                return spendingLedger;
+            case LEASE:
+                BudgetLeaseStore budgetLeaseStore = new BudgetLeaseStore(sessionFactory, Money.toMicros(leaseSize),
+                        leaseDuration.toMilliseconds());
+                environment.lifecycle().manage(budgetLeaseStore);
+                return budgetLeaseStore;
+            default:
+                return campaignDAO;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.bendeguz.biddingapp;
+
+/**
+ * Keeps track of the spending on a single campaign in the past 10 seconds. The amounts are in micro-NOK.
+ * Implementations are used by {@link BidSynchronizer}, which decides on the required synchronization.
+ */
+interface SpendingWindow {
+    /**
+     * Receives the spendings of a window, see {@link #forEachSpending(SpendingConsumer)}.
+     */
+    interface SpendingConsumer {
+        void accept(long ageInNanos, long amount);
+    }
+    /**
+     * Checks whether the specified amount can be spent without exceeding the limit of the window.
+     *
+     * @param amount The amount of spending.
+     * @return whether the amount can be spent or not.
+     */
+    boolean isAvailableForSpending(long amount);
+
+    /**
+     * Estimates how much can still be spent in the window, without any synchronization, so it can be called
+     * without locking the campaign. The estimate is never lower than what the window would accept at the time
+     * of the call (apart from spendings registered concurrently), so a window whose headroom is less than an amount
+     * would refuse to spend it. A retired window has the headroom of a new one, since it will be replaced by one.
+     *
+     * @return the estimated headroom.
+     */
+    long getHeadroom();
+
+    /**
+     * Estimates how long the headroom of the window stays the same (apart from new spendings): the headroom can
+     * only grow when the oldest spending leaves the window. The estimate is never longer than that, so it's 0 if
+     * the window is empty. It can be called without locking the campaign, just like {@link #getHeadroom()}.
+     *
+     * @return the time in nanoseconds until the headroom may grow.
+     */
+    long getNanosUntilHeadroomGrows();
+
+    /**
+     * Registers a spending without checking the limit of the window.
+     *
+     * @param amount The amount of spending.
+     */
+    void spend(long amount);
+
+    /**
+     * Registers a spending that happened the specified time ago, without checking the limit of the window.
+     * It's used to restore the window from a snapshot, oldest spending first. A spending older than the newest one
+     * already registered may be counted as if it happened at the same time as that, which makes the limit stricter,
+     * but never looser.
+     *
+     * @param amount     The amount of spending.
+     * @param ageInNanos How long ago the spending happened.
+     */
+    void spend(long amount, long ageInNanos);
+
+    /**
+     * Passes every spending that is still inside the window to the consumer, oldest first. The ages may be rounded
+     * down, but never up, so a window restored from them is never looser than this one.
+     * <p>
+     * The same synchronization is required as for {@code isAvailableForSpending}.
+     *
+     * @param consumer The consumer of the spendings.
+     */
+    void forEachSpending(SpendingConsumer consumer);
+
+    /**
+     * Registers a spending only if it does not exceed the limit of the window, as a single atomic operation
+     * (as far as the implementation is thread-safe).
+     *
+     * @param amount The amount of spending.
+     * @return whether the spending was registered or not.
+     */
+    default boolean tryToSpend(long amount) {
+        if (isAvailableForSpending(amount)) {
+            spend(amount);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Retires the window if there was no spending in it in the past 10 seconds, so it can be dropped without
+     * losing any information. A retired window refuses every further {@code tryToSpend} call.
+     * <p>
+     * The campaign of the window MUST be locked while calling this method.
+     *
+     * @return whether the window is retired or not.
+     */
+    boolean retireIfIdle();
+
+    /**
+     * @return whether the window has been retired by {@code retireIfIdle}.
+     */
+    boolean isRetired();
+}
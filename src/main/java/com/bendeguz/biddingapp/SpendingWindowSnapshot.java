@@ -0,0 +1,185 @@
+package com.bendeguz.biddingapp;
+
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the spending windows of a {@link BidSynchronizer} into a file periodically and when the application stops,
+ * and restores them when the application starts. Without it, a restarted instance would forget the spending of
+ * the past 10 seconds, and it would accept up to another 10 NOK on every campaign right away.
+ * <p>
+ * The snapshot is written through a memory-mapped temporary file, which then replaces the previous snapshot
+ * atomically, so a crash while writing leaves the previous snapshot intact. It contains the wall-clock time of
+ * the snapshot, and the age of every spending at that time. When it's restored, the time since the snapshot is
+ * added to the ages, so the spendings leave the window when they would have without the restart. A snapshot
+ * which is damaged, or which was written by an incompatible version, is ignored.
+ * <p>
+ * Only the spending windows are saved: the keyword index and the balances are loaded from the database at startup,
+ * since it's their source of truth. The spending that happens between the last periodic snapshot and a crash is lost,
+ * so the interval of the snapshots limits how much the spending limit can be exceeded after a crash.
+ */
+public class SpendingWindowSnapshot implements Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpendingWindowSnapshot.class);
+    private static final int MAGIC = 0x42_49_44_53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+    private static final int RECORD_SIZE = 8 + 8 + 8;
+
+    /**
+     * A spending on a campaign, and its age at the time of the snapshot.
+     */
+    private static class Record {
+        private final long campaignId;
+        private final long ageInNanos;
+        private final long amount;
+
+        Record(long campaignId, long ageInNanos, long amount) {
+            this.campaignId = campaignId;
+            this.ageInNanos = ageInNanos;
+            this.amount = amount;
+        }
+    }
+
+    private final BidSynchronizer bidSynchronizer;
+    private final Path file;
+    private final long intervalInMilliseconds;
+    private final LongSupplier millisecondClock;
+    private ScheduledExecutorService snapshotExecutor;
+
+    public SpendingWindowSnapshot(BidSynchronizer bidSynchronizer, Path file, long intervalInMilliseconds) {
+        this(bidSynchronizer, file, intervalInMilliseconds, System::currentTimeMillis);
+    }
+
+    SpendingWindowSnapshot(BidSynchronizer bidSynchronizer, Path file, long intervalInMilliseconds, LongSupplier millisecondClock) {
+        this.bidSynchronizer = bidSynchronizer;
+        this.file = file;
+        this.intervalInMilliseconds = intervalInMilliseconds;
+        this.millisecondClock = millisecondClock;
+    }
+
+    /**
+     * Restores the previous snapshot, then starts writing new ones periodically.
+     */
+    @Override
+    public void start() throws Exception {
+        restore();
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "spending-window-snapshot"));
+        snapshotExecutor.scheduleWithFixedDelay(this::writeQuietly, intervalInMilliseconds, intervalInMilliseconds,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic snapshots, then writes a final one.
+     */
+    @Override
+    public void stop() throws Exception {
+        snapshotExecutor.shutdown();
+        snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        write();
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not write the snapshot of the spending windows, retrying with the next one: ", e);
+        }
+    }
+
+    /**
+     * Writes the current spending windows into the snapshot file, replacing the previous snapshot.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void write() throws IOException {
+        long time = millisecondClock.getAsLong();
+        List<Record> records = new ArrayList<>();
+        bidSynchronizer.forEachRecentSpending((campaignId, ageInNanos, amount) ->
+                records.add(new Record(campaignId, ageInNanos, amount)));
+
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) records.size() * RECORD_SIZE);
+            buffer.position(HEADER_SIZE);
+            for (Record record : records) {
+                buffer.putLong(record.campaignId).putLong(record.ageInNanos).putLong(record.amount);
+            }
+            buffer.putInt(0, MAGIC)
+                    .putInt(4, VERSION)
+                    .putLong(8, time)
+                    .putInt(16, records.size())
+                    .putLong(20, checksum(buffer, records.size()));
+            buffer.force();
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the spending windows from the snapshot file, if there is a valid one.
+     *
+     * @return the number of restored spendings, including the ones that have left the window since the snapshot.
+     * @throws IOException          if the file exists, but cannot be read.
+     * @throws InterruptedException if the thread gets interrupted while restoring.
+     */
+    public int restore() throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                LOGGER.warn("Ignoring the snapshot of the spending windows in {}, it is truncated", file);
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = buffer.getInt(16);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || count < 0
+                    || channel.size() != HEADER_SIZE + (long) count * RECORD_SIZE || buffer.getLong(20) != checksum(buffer, count)) {
+                LOGGER.warn("Ignoring the snapshot of the spending windows in {}, it is damaged or incompatible", file);
+                return 0;
+            }
+            // If the clock went backwards since the snapshot, the spendings are restored as if no time had passed.
+            long elapsedNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millisecondClock.getAsLong() - buffer.getLong(8), 0));
+            buffer.position(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                long campaignId = buffer.getLong();
+                long ageInNanos = buffer.getLong();
+                long amount = buffer.getLong();
+                bidSynchronizer.restoreSpending(campaignId, ageInNanos + elapsedNanos, amount);
+            }
+            LOGGER.info("Restored {} spendings from the snapshot of the spending windows in {}", count, file);
+            return count;
+        } catch (NoSuchFileException e) {
+            LOGGER.info("There is no snapshot of the spending windows in {}, starting with empty windows", file);
+            return 0;
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer, int count) {
+        ByteBuffer records = buffer.duplicate();
+        records.limit(HEADER_SIZE + count * RECORD_SIZE);
+        records.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        return crc.getValue();
+    }
+}
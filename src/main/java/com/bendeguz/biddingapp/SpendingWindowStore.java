@@ -0,0 +1,59 @@
+package com.bendeguz.biddingapp;
+
+/**
+ * Keeps the spending windows of the campaigns outside of the {@link BidSynchronizer}, so they can be shared by several
+ * instances of the application. It is used in {@code SHARED} mode, otherwise the windows are kept in the memory of
+ * the {@link BidSynchronizer}. The amounts are in micro-NOK.
+ */
+public interface SpendingWindowStore {
+    /**
+     * Registers a spending on a campaign, but only if the spending of the past 10 seconds does not exceed the limit
+     * with it, as a single atomic operation across all users of the store.
+     *
+     * @param campaignId The ID of the campaign.
+     * @param amount     The amount of spending.
+     * @param limit      The maximum spending of the past 10 seconds.
+     * @return whether the spending was registered or not.
+     */
+    boolean tryToSpend(long campaignId, long amount, long limit);
+
+    /**
+     * Reads the spending of the past 10 seconds of a campaign from the shared state. Registering a spending after
+     * reading it is not atomic across the users of the store, unlike {@link #tryToSpend(long, long, long)}.
+     *
+     * @param campaignId The ID of the campaign.
+     * @return the spending of the past 10 seconds.
+     */
+    long getSpending(long campaignId);
+
+    /**
+     * Estimates how much can still be spent on a campaign without accessing the shared state, see
+     * {@link BidSynchronizer#getHeadroom(long)}. The estimate is never lower than the real headroom.
+     *
+     * @param campaignId The ID of the campaign.
+     * @param limit      The maximum spending of the past 10 seconds.
+     * @return the estimated headroom.
+     */
+    long getHeadroom(long campaignId, long limit);
+
+    /**
+     * Estimates how long the headroom returned by {@link #getHeadroom(long, long)} stays the same, without accessing
+     * the shared state. The estimate is never longer than the real time, so it's 0 if nothing is known locally.
+     *
+     * @param campaignId The ID of the campaign.
+     * @return the time in nanoseconds until the headroom may grow.
+     */
+    long getNanosUntilHeadroomGrows(long campaignId);
+
+    /**
+     * Drops the local state of the campaigns that have not been refused recently.
+     *
+     * @return the number of campaigns whose local state was dropped.
+     */
+    int evictIdleCampaigns();
+
+    /**
+     * @return the number of campaigns whose state is kept in memory.
+     */
+    int getCampaignCount();
+}
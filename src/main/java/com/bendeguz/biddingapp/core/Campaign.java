@@ -1,9 +1,16 @@
 package com.bendeguz.biddingapp.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
 import java.util.*;
 
+/**
+ * A campaign, which is also the JSON representation of it. The budget and the spending are stored in micro-NOK
+ * (see {@link Money}), but they are exposed in NOK by {@link #getBudget()} and {@link #getSpending()}, so the JSON
+ * format is not affected.
+ */
 @Entity
 @Table(name = "campaigns")
 @NamedQueries(
@@ -12,17 +19,76 @@ import java.util.*;
                         name = Campaign.QUERY_FIND_ALL,
                         query = "SELECT c FROM Campaign c"
                 ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_IDS_AFTER,
+                        query = "SELECT c.id FROM Campaign c WHERE c.id > :afterId ORDER BY c.id"
+                ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_BY_IDS_WITH_KEYWORDS,
+                        query = "SELECT DISTINCT c FROM Campaign c LEFT JOIN FETCH c.keywords WHERE c.id IN (:ids) ORDER BY c.id"
+                ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_ALL_AFTER_WITH_KEYWORDS,
+                        query = "SELECT c FROM Campaign c LEFT JOIN FETCH c.keywords WHERE c.id > :afterId ORDER BY c.id"
+                ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_ALL_WITH_POSITIVE_BALANCE,
+                        query = "SELECT DISTINCT c FROM Campaign AS c LEFT JOIN FETCH c.keywords WHERE c.balance > 0"
+                ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_KEYWORDS_WITH_POSITIVE_BALANCE,
+                        query = "SELECT c.id, keyword.keyword FROM Campaign c LEFT JOIN c.keywords keyword WHERE c.balance > 0 ORDER BY c.id"
+                ),
                 @NamedQuery(
                         name = Campaign.QUERY_FIND_CAMPAIGNS_WITH_POSITIVE_BALANCE_BY_KEYWORDS,
-                        query = "SELECT c FROM Campaign AS c JOIN c.keywords AS keyword WHERE keyword IN (:keywords) AND c.budget - c.spending > 0"
+                        query = "SELECT c FROM Campaign AS c JOIN c.keywords AS keyword WHERE keyword.keyword IN (:keywords) AND c.balance > 0"
+                ),
+                @NamedQuery(
+                        name = Campaign.QUERY_FIND_IDS_WITH_BALANCE,
+                        query = "SELECT c.id FROM Campaign c WHERE c.id IN (:ids) AND c.balance >= :minimumBalance"
                 ),
                 @NamedQuery(
                         name = Campaign.QUERY_INCREASE_SPENDING,
-                        query = "UPDATE Campaign SET spending = spending + :increase WHERE id = :id AND budget - spending - :increase >= 0"
+                        query = "UPDATE Campaign SET spending = spending + :increase WHERE id = :id AND balance - :increase >= 0"
                 )
         })
 public class Campaign {
     public static final String QUERY_FIND_ALL = "com.bendeguz.biddingapp.core.Campaign.findAll";
+    /**
+     * Query to find the IDs of the campaigns whose ID is greater than {@code afterId}, in ascending order.
+     * It is used with a limit to find the campaigns of a page through the primary key, see
+     * {@link #QUERY_FIND_BY_IDS_WITH_KEYWORDS}.
+     */
+    public static final String QUERY_FIND_IDS_AFTER = "com.bendeguz.biddingapp.core.Campaign.findIdsAfter";
+    /**
+     * Query to find the campaigns with the specified IDs, together with their keywords, in ascending order of their IDs.
+     * The page is limited by {@link #QUERY_FIND_IDS_AFTER}, because a limit on a query that fetches a collection
+     * would be applied in memory, after loading every row.
+     */
+    public static final String QUERY_FIND_BY_IDS_WITH_KEYWORDS = "com.bendeguz.biddingapp.core.Campaign.findByIdsWithKeywords";
+    /**
+     * Query to find the campaigns whose ID is greater than {@code afterId}, together with their keywords,
+     * in ascending order of their IDs. It is meant to be scrolled: the rows of a campaign are adjacent because of
+     * the ordering, so every campaign can be assembled and released before the next one is read.
+     */
+    public static final String QUERY_FIND_ALL_AFTER_WITH_KEYWORDS = "com.bendeguz.biddingapp.core.Campaign.findAllAfterWithKeywords";
+    /**
+     * Query to find all campaigns with a positive balance, together with their keywords. The keywords are fetched
+     * in the same query, so they are available even after the session is closed.
+     */
+    public static final String QUERY_FIND_ALL_WITH_POSITIVE_BALANCE = "com.bendeguz.biddingapp.core.Campaign.findAllWithPositiveBalance";
+    /**
+     * Query to find the IDs and the keywords of all campaigns with a positive balance, one row per keyword (or a
+     * single row with a {@code null} keyword for a campaign without keywords), in ascending order of the IDs.
+     * Only the columns are selected, so no entity is created, and the rows of a campaign are adjacent, so the query
+     * can be scrolled.
+     */
+    public static final String QUERY_FIND_KEYWORDS_WITH_POSITIVE_BALANCE = "com.bendeguz.biddingapp.core.Campaign.findKeywordsWithPositiveBalance";
+    /**
+     * Query to find which of the campaigns with the specified IDs have a balance of at least {@code minimumBalance}.
+     * Only the IDs are selected, so no entity is created.
+     */
+    public static final String QUERY_FIND_IDS_WITH_BALANCE = "com.bendeguz.biddingapp.core.Campaign.findIdsWithBalance";
     /**
      * Query to increase a campaign's spending by the specified amount. Succeeds only if the campaign's balance
      * (budget - spending) remains 0 or greater after the spending increase. Returns the number of updates
@@ -35,6 +101,8 @@ public class Campaign {
      * <p>
      * The implementation of this query is a bit unusual, the campaigns are joined by one of its own fields.
      * The reason why it has to be done this way is that there's no INTERSECT operator in HQL.
+     * The keywords are found through the unique index of the keyword dictionary, and the campaigns through the
+     * primary key of {@code campaign_keywords}, which starts with the keyword's ID.
      */
     public static final String QUERY_FIND_CAMPAIGNS_WITH_POSITIVE_BALANCE_BY_KEYWORDS = "com.bendeguz.biddingapp.core.Campaign.findCampaignsWithPositiveBalanceByKeywords";
 
@@ -58,21 +126,31 @@ public class Campaign {
      * <p>
      * I also think that it makes sense to use a set, as a duplicate keyword wouldn't add any value anyway.
      * This is why I decided to use a {@link Set} instead of a {@link List}.
+     * <p>
+     * The keywords are entries of the keyword dictionary, so every distinct keyword is stored only once.
+     * The entries of a new campaign are resolved by {@code CampaignDAO.create}.
      */
-    @ElementCollection
-    @CollectionTable(
-            name = "keywords",
-            joinColumns = @JoinColumn(name = "campaign_id")
+    @ManyToMany
+    @JoinTable(
+            name = "campaign_keywords",
+            joinColumns = @JoinColumn(name = "campaign_id"),
+            inverseJoinColumns = @JoinColumn(name = "keyword_id")
     )
-    @Column(name = "keyword", nullable = false)
     @NotNull
-    private Set<String> keywords = new HashSet<>();
+    private Set<Keyword> keywords = new HashSet<>();
 
     @Column(name = "budget", nullable = false)
-    private double budget;
+    private long budget;
 
     @Column(name = "spending", nullable = false)
-    private double spending;
+    private long spending;
+
+    /**
+     * The difference between the budget and the spending, computed by the database, so it can be indexed.
+     */
+    @Column(name = "balance", insertable = false, updatable = false,
+            columnDefinition = "bigint GENERATED ALWAYS AS (budget - spending)")
+    private long balance;
 
     public Campaign() {
         // Jackson deserialization
@@ -80,8 +158,8 @@ public class Campaign {
 
     public Campaign(String name, String[] keywords, double budget) {
         this.name = name;
-        this.keywords.addAll(Arrays.asList(keywords));
-        this.budget = budget;
+        setKeywords(new HashSet<>(Arrays.asList(keywords)));
+        this.budget = Money.toMicros(budget);
         this.spending = 0;
     }
 
@@ -102,27 +180,81 @@ public class Campaign {
     }
 
     public Set<String> getKeywords() {
-        return keywords;
+        Set<String> keywordStrings = new HashSet<>();
+        for (Keyword keyword : keywords) {
+            keywordStrings.add(keyword.getKeyword());
+        }
+        return keywordStrings;
     }
 
+    /**
+     * Replaces the keywords of the campaign with new, not yet persisted, dictionary entries.
+     *
+     * @param keywords The new keywords.
+     */
     public void setKeywords(Set<String> keywords) {
-        this.keywords = keywords;
+        this.keywords = new HashSet<>();
+        for (String keyword : keywords) {
+            this.keywords.add(new Keyword(keyword));
+        }
+    }
+
+    /**
+     * @return the keyword dictionary entries of the campaign, as a modifiable set.
+     */
+    @JsonIgnore
+    public Set<Keyword> getKeywordEntries() {
+        return keywords;
     }
 
     public double getBudget() {
-        return budget;
+        return Money.toNok(budget);
     }
 
-    public void setBudget(long budget) {
-        this.budget = budget;
+    public void setBudget(double budget) {
+        this.budget = Money.toMicros(budget);
     }
 
     public double getSpending() {
-        return spending;
+        return Money.toNok(spending);
     }
 
     public void setSpending(double spending) {
-        this.spending = spending;
+        this.spending = Money.toMicros(spending);
+    }
+
+    @JsonIgnore
+    public long getBudgetInMicros() {
+        return budget;
+    }
+
+    @JsonIgnore
+    public long getSpendingInMicros() {
+        return spending;
+    }
+
+    /**
+     * @return the difference between the budget and the spending, in micro-NOK. Unlike the {@code balance} column,
+     * it's always up to date with the budget and the spending of this object.
+     */
+    @JsonIgnore
+    public long getBalanceInMicros() {
+        return budget - spending;
+    }
+
+    /**
+     * @param spending The spending of the copy, in micro-NOK.
+     * @return a copy of the campaign with a different spending. The copy is not attached to any session.
+     */
+    public Campaign withSpendingInMicros(long spending) {
+        Campaign copy = new Campaign();
+        copy.id = id;
+        copy.name = name;
+        copy.keywords = new HashSet<>(keywords);
+        copy.budget = budget;
+        copy.spending = spending;
+        copy.balance = budget - spending;
+        return copy;
     }
 
     @Override
@@ -139,11 +271,11 @@ public class Campaign {
         return Objects.equals(this.id, that.id) &&
                 Objects.equals(this.name, that.name) &&
                 Objects.equals(this.budget, that.budget) &&
-                Arrays.equals(this.keywords.toArray(), that.keywords.toArray());
+                Objects.equals(this.keywords, that.keywords);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, name, budget, Arrays.hashCode(keywords.toArray()));
+        return Objects.hash(id, name, budget, keywords);
     }
 }
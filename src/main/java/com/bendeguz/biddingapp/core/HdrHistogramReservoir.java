@@ -0,0 +1,154 @@
+package com.bendeguz.biddingapp.core;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * A {@link Reservoir} backed by HdrHistogram, so its memory does not depend on the number of updates.
+ * <p>
+ * The values are recorded into a {@link Recorder}, which is wait-free and does not allocate. Its histograms have
+ * a fixed range, from 0 to {@code highestTrackableValue} with two significant digits, larger values are recorded
+ * as {@code highestTrackableValue}. A snapshot moves the values recorded since the previous snapshot into the
+ * histogram of the current window, and the window is rotated once it's older than {@code windowLength}, so a snapshot
+ * contains the values of the current and the previous window: between one and two windows.
+ * <p>
+ * The memory use is bounded by the four histograms of this fixed range (two in the recorder, the current and
+ * the previous window), see {@link Histogram#getEstimatedFootprintInBytes()}, plus the copy made for each snapshot.
+ */
+public class HdrHistogramReservoir implements Reservoir {
+    private static final int SIGNIFICANT_VALUE_DIGITS = 2;
+
+    private final long highestTrackableValue;
+    private final long windowLengthInNanos;
+    private final Clock clock;
+    private final Recorder recorder;
+    private Histogram intervalHistogram;
+    private Histogram currentWindow;
+    private Histogram previousWindow;
+    private long currentWindowStartNanos;
+
+    /**
+     * @param highestTrackableValue The highest value that is recorded as it is.
+     * @param windowLength          The length of a window.
+     * @param windowLengthUnit      The unit of {@code windowLength}.
+     */
+    public HdrHistogramReservoir(long highestTrackableValue, long windowLength, TimeUnit windowLengthUnit) {
+        this(highestTrackableValue, windowLength, windowLengthUnit, Clock.defaultClock());
+    }
+
+    HdrHistogramReservoir(long highestTrackableValue, long windowLength, TimeUnit windowLengthUnit, Clock clock) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.windowLengthInNanos = windowLengthUnit.toNanos(windowLength);
+        this.clock = clock;
+        this.recorder = new Recorder(1, highestTrackableValue, SIGNIFICANT_VALUE_DIGITS);
+        this.currentWindow = newHistogram();
+        this.previousWindow = newHistogram();
+        this.currentWindowStartNanos = clock.getTick();
+    }
+
+    private Histogram newHistogram() {
+        return new Histogram(1, highestTrackableValue, SIGNIFICANT_VALUE_DIGITS);
+    }
+
+    @Override
+    public void update(long value) {
+        recorder.recordValue(Math.max(Math.min(value, highestTrackableValue), 0));
+    }
+
+    /**
+     * @return the number of values in the current and the previous window, without the ones recorded since
+     * the previous snapshot.
+     */
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(currentWindow.getTotalCount() + previousWindow.getTotalCount(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+        long now = clock.getTick();
+        if (now - currentWindowStartNanos >= windowLengthInNanos) {
+            Histogram oldestWindow = previousWindow;
+            previousWindow = currentWindow;
+            oldestWindow.reset();
+            currentWindow = oldestWindow;
+            currentWindowStartNanos = now;
+        }
+        currentWindow.add(intervalHistogram);
+        Histogram histogram = currentWindow.copy();
+        histogram.add(previousWindow);
+        return new HdrHistogramSnapshot(histogram);
+    }
+
+    /**
+     * A snapshot of a histogram. Its values are the distinct recorded values (with the precision of the histogram),
+     * one of each, so their number is bounded as well.
+     */
+    private static class HdrHistogramSnapshot extends Snapshot {
+        private final Histogram histogram;
+
+        HdrHistogramSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            return histogram.getValueAtPercentile(quantile * 100);
+        }
+
+        @Override
+        public long[] getValues() {
+            LongStream.Builder values = LongStream.builder();
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                values.add(value.getValueIteratedTo());
+            }
+            return values.build().toArray();
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    writer.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
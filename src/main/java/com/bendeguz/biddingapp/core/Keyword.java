@@ -0,0 +1,64 @@
+package com.bendeguz.biddingapp.core;
+
+import org.hibernate.annotations.NaturalId;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import java.util.Objects;
+
+/**
+ * An entry of the keyword dictionary. Every distinct keyword is stored only once, and campaigns refer to it by
+ * its integer ID, see {@link Campaign#getKeywordEntries()}.
+ * <p>
+ * The keyword itself is the natural ID of the entry, so it can be looked up through its unique index with
+ * {@code bySimpleNaturalId}. Two entries are equal if they have the same keyword.
+ */
+@Entity
+@Table(name = "keyword_dictionary")
+public class Keyword {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private int id;
+
+    @NaturalId
+    @Column(name = "keyword", nullable = false)
+    @NotNull
+    private String keyword;
+
+    public Keyword() {
+        // Hibernate
+    }
+
+    public Keyword(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Keyword)) {
+            return false;
+        }
+        return Objects.equals(keyword, ((Keyword) o).getKeyword());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(keyword);
+    }
+
+    @Override
+    public String toString() {
+        return keyword;
+    }
+}
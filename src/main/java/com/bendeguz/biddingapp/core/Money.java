@@ -0,0 +1,31 @@
+package com.bendeguz.biddingapp.core;
+
+/**
+ * Conversions between NOK and micro-NOK (one millionth of a NOK).
+ * <p>
+ * All amounts of money are stored and summed up as micro-NOK in {@code long} values, so adding up budgets and
+ * spendings never accumulates rounding errors. NOK amounts as {@code double} values only appear in the JSON API
+ * and the configuration, and they are converted at that boundary.
+ */
+public final class Money {
+    public static final long MICROS_PER_NOK = 1_000_000;
+
+    private Money() {
+    }
+
+    /**
+     * @param nok An amount in NOK.
+     * @return the amount in micro-NOK, rounded to the nearest micro-NOK.
+     */
+    public static long toMicros(double nok) {
+        return Math.round(nok * MICROS_PER_NOK);
+    }
+
+    /**
+     * @param micros An amount in micro-NOK.
+     * @return the amount in NOK.
+     */
+    public static double toNok(long micros) {
+        return (double) micros / MICROS_PER_NOK;
+    }
+}
@@ -0,0 +1,284 @@
+package com.bendeguz.biddingapp.db;
+
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link SpendingStore} which leases chunks of the campaigns' budgets from the database, and serves bids from them
+ * in memory.
+ * <p>
+ * When a bid is placed on a campaign without a valid lease, the node reserves {@code leaseSize} (or the amount of
+ * the bid, if it's more, or the campaign's whole balance, if it's less) by increasing the campaign's spending in
+ * the database. The following bids are served
+ * from the reserved amount without accessing the database, until it runs out or the lease expires after
+ * {@code leaseDurationInMilliseconds}. At that point, the unused remainder is given back by decreasing the spending,
+ * together with reserving the next chunk if it's needed. Expired leases are also given back in the background,
+ * and all leases are given back when the application stops.
+ * <p>
+ * The database is written once per lease instead of once per bid, and since a lease is reserved with the
+ * campaign's row locked, several nodes can share the same database without ever overspending a budget.
+ * Note that the spending of a campaign in the database includes its leased, but not yet spent, amount.
+ * <p>
+ * A lease is renewed outside of its monitor, so the bids of other campaigns and the background expiry are not held up
+ * by the database. The bids of the same campaign wait for the renewal instead, as they would need one as well.
+ * Once the store is stopped, no lease is taken any more, and every bid is refused.
+ */
+public class BudgetLeaseStore implements SpendingStore, Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BudgetLeaseStore.class);
+    private static final String SELECT_BALANCE_FOR_UPDATE_SQL = "SELECT budget - spending FROM campaigns WHERE id = ? FOR UPDATE";
+    private static final String INCREASE_SPENDING_SQL = "UPDATE campaigns SET spending = spending + ? WHERE id = ?";
+
+    /**
+     * The reserved, but not yet spent, part of a campaign's budget. A retired lease has been given back and removed
+     * from the map of leases, a new one has to be used instead. While a lease is being renewed, its remainder is
+     * taken out of it, and the others wait on its monitor until the renewal is over.
+     */
+    private static class Lease {
+        private long remaining;
+        private long expiresAtNanos;
+        private boolean retired;
+        private boolean renewing;
+    }
+
+    private final ConcurrentMap<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final SessionFactory sessionFactory;
+    private final long leaseSize;
+    private final long leaseDurationInNanos;
+    private final LongSupplier nanoClock;
+    private ScheduledExecutorService expiryExecutor;
+    /**
+     * Set before the leases are given back on stop, and read under the monitor of a lease, so a lease taken
+     * concurrently with the stop is either given back by it, or not taken at all.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * @param sessionFactory              The session factory used to access the database.
+     * @param leaseSize                   The amount reserved by a lease, in micro-NOK.
+     * @param leaseDurationInMilliseconds The time after which a lease is given back.
+     */
+    public BudgetLeaseStore(SessionFactory sessionFactory, long leaseSize, long leaseDurationInMilliseconds) {
+        this(sessionFactory, leaseSize, leaseDurationInMilliseconds, System::nanoTime);
+    }
+
+    BudgetLeaseStore(SessionFactory sessionFactory, long leaseSize, long leaseDurationInMilliseconds, LongSupplier nanoClock) {
+        this.sessionFactory = sessionFactory;
+        this.leaseSize = leaseSize;
+        this.leaseDurationInNanos = TimeUnit.MILLISECONDS.toNanos(leaseDurationInMilliseconds);
+        this.nanoClock = nanoClock;
+    }
+
+    @Override
+    public void start() {
+        long interval = TimeUnit.NANOSECONDS.toMillis(leaseDurationInNanos);
+        expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "budget-lease-expiry"));
+        expiryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                returnLeases(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background expiry and the bids, then gives back every lease, once the renewals in progress are over.
+     */
+    @Override
+    public void stop() throws Exception {
+        expiryExecutor.shutdown();
+        expiryExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        stopped = true;
+        returnLeases(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A bid interrupted while waiting for the renewal of the lease is refused, and the interrupt is restored.
+     */
+    @Override
+    public boolean tryToIncreaseSpending(long campaignId, long amount) {
+        while (true) {
+            Lease lease = leases.computeIfAbsent(campaignId, id -> new Lease());
+            long remainder;
+            synchronized (lease) {
+                try {
+                    awaitRenewal(lease);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (lease.retired) {
+                    continue;
+                }
+                if (stopped) {
+                    return false;
+                }
+                if (lease.remaining >= amount && nanoClock.getAsLong() - lease.expiresAtNanos < 0) {
+                    lease.remaining -= amount;
+                    return true;
+                }
+                remainder = lease.remaining;
+                lease.remaining = 0;
+                lease.renewing = true;
+            }
+            long reserved;
+            try {
+                reserved = renewLease(campaignId, remainder, amount);
+            } catch (RuntimeException e) {
+                synchronized (lease) {
+                    // The transaction has been rolled back, so the remainder is still reserved.
+                    lease.remaining = remainder;
+                    endRenewal(lease);
+                }
+                throw e;
+            }
+            synchronized (lease) {
+                lease.expiresAtNanos = nanoClock.getAsLong() + leaseDurationInNanos;
+                endRenewal(lease);
+                if (reserved < amount) {
+                    lease.remaining = reserved;
+                    return false;
+                }
+                lease.remaining = reserved - amount;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits until the lease is not being renewed. The caller MUST hold the lease's monitor.
+     */
+    private static void awaitRenewal(Lease lease) throws InterruptedException {
+        while (lease.renewing) {
+            lease.wait();
+        }
+    }
+
+    /**
+     * Marks the renewal of the lease as over, and wakes up the ones waiting for it. The caller MUST hold the lease's
+     * monitor.
+     */
+    private static void endRenewal(Lease lease) {
+        lease.renewing = false;
+        lease.notifyAll();
+    }
+
+    /**
+     * Gives back the remainder of a lease and reserves a new chunk in a single transaction. If the campaign's balance
+     * (including the remainder) is less than the required amount, nothing is reserved.
+     * The caller MUST NOT hold the lease's monitor, but it MUST have marked the lease as being renewed.
+     *
+     * @param campaignId The ID of the campaign.
+     * @param remainder  The remainder of the lease, taken out of it.
+     * @param amount     The amount the new lease has to cover at least.
+     * @return the amount reserved by the new lease.
+     */
+    private long renewLease(long campaignId, long remainder, long amount) {
+        try (Session session = sessionFactory.openSession()) {
+            return session.doReturningWork(connection -> inTransaction(connection, () -> {
+                long available = selectBalanceForUpdate(connection, campaignId) + remainder;
+                long reserved = available < amount ? 0 : Math.min(Math.max(leaseSize, amount), available);
+                if (reserved != remainder) {
+                    increaseSpending(connection, campaignId, reserved - remainder);
+                }
+                return reserved;
+            }));
+        }
+    }
+
+    /**
+     * Gives back the remainder of the leases to the database, and removes them. The leases being renewed are skipped
+     * by the expiry, but waited for when every lease is given back.
+     *
+     * @param all Whether to give back every lease, or only the expired ones.
+     * @throws InterruptedException if the thread gets interrupted while waiting for a renewal.
+     */
+    private void returnLeases(boolean all) throws InterruptedException {
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            synchronized (lease) {
+                if (all) {
+                    awaitRenewal(lease);
+                } else if (lease.renewing || nanoClock.getAsLong() - lease.expiresAtNanos < 0) {
+                    continue;
+                }
+                try {
+                    if (lease.remaining > 0) {
+                        returnLease(entry.getKey(), lease.remaining);
+                    }
+                    lease.retired = true;
+                    leases.remove(entry.getKey(), lease);
+                } catch (HibernateException e) {
+                    LOGGER.error("Could not give back the lease of campaign {}, retrying later: ", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void returnLease(long campaignId, long remaining) {
+        try (Session session = sessionFactory.openSession()) {
+            session.doWork(connection -> inTransaction(connection, () -> {
+                increaseSpending(connection, campaignId, -remaining);
+                return null;
+            }));
+        }
+    }
+
+    private interface SqlWork<T> {
+        T execute() throws SQLException;
+    }
+
+    private static <T> T inTransaction(Connection connection, SqlWork<T> work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            T result = work.execute();
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Reads the balance of a campaign from the database, and locks its row until the end of the transaction.
+     * A campaign that does not exist has no balance.
+     */
+    private static long selectBalanceForUpdate(Connection connection, long campaignId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_BALANCE_FOR_UPDATE_SQL)) {
+            statement.setLong(1, campaignId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void increaseSpending(Connection connection, long campaignId, long amount) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INCREASE_SPENDING_SQL)) {
+            statement.setLong(1, amount);
+            statement.setLong(2, campaignId);
+            statement.executeUpdate();
+        }
+    }
+}
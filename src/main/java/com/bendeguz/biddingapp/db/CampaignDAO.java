@@ -1,32 +1,269 @@
 package com.bendeguz.biddingapp.db;
 
 import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
 import io.dropwizard.hibernate.AbstractDAO;
 
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.query.Query;
 
+import javax.persistence.PersistenceException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class CampaignDAO extends AbstractDAO<Campaign> implements SpendingStore {
+    /**
+     * The number of rows fetched from the database at once while scrolling through the campaigns.
+     */
+    private static final int SCROLL_FETCH_SIZE = 256;
+    /**
+     * The number of times a new keyword is tried to be added to the dictionary if other transactions keep adding it
+     * at the same time. The second attempt finds the keyword unless the other transaction is rolled back.
+     */
+    private static final int MAX_KEYWORD_INSERT_ATTEMPTS = 3;
+
+    private final SessionFactory sessionFactory;
 
-public class CampaignDAO extends AbstractDAO<Campaign> {
     public CampaignDAO(SessionFactory factory) {
         super(factory);
+        this.sessionFactory = factory;
     }
 
     public Optional<Campaign> findById(Long id) {
         return Optional.ofNullable(get(id));
     }
 
+    /**
+     * Finds a campaign by its ID, with its keywords already initialized, so it can be used after the session is closed.
+     *
+     * @param id The ID of the campaign.
+     * @return the campaign, or an empty optional if there is no campaign with this ID.
+     */
+    @SuppressWarnings("unchecked")
+    public Optional<Campaign> findByIdWithKeywords(long id) {
+        Query<Campaign> query = (Query<Campaign>) namedQuery(Campaign.QUERY_FIND_BY_IDS_WITH_KEYWORDS);
+        query.setParameterList("ids", Collections.singletonList(id));
+        return query.uniqueResultOptional();
+    }
+
+    /**
+     * Persists a new campaign. Its keywords are replaced by their entries in the keyword dictionary,
+     * the keywords that are not in the dictionary yet are added to it.
+     * <p>
+     * The new keywords are added in their own transactions (see {@link #insertKeyword(String)}), so campaigns with
+     * the same new keyword can be created concurrently.
+     *
+     * @param campaign The campaign to persist.
+     * @return the persisted campaign.
+     */
     public Campaign create(Campaign campaign) {
+        Set<Keyword> keywords = campaign.getKeywordEntries();
+        List<Keyword> dictionaryEntries = new ArrayList<>(keywords.size());
+        for (Keyword keyword : keywords) {
+            dictionaryEntries.add(findOrCreateKeyword(keyword.getKeyword()));
+        }
+        keywords.clear();
+        keywords.addAll(dictionaryEntries);
         return persist(campaign);
     }
 
+    private Keyword findOrCreateKeyword(String keyword) {
+        Session session = currentSession();
+        Keyword dictionaryEntry = session.bySimpleNaturalId(Keyword.class).load(keyword);
+        if (dictionaryEntry == null) {
+            dictionaryEntry = session.get(Keyword.class, insertKeyword(keyword));
+        }
+        return dictionaryEntry;
+    }
+
+    /**
+     * Adds a keyword to the dictionary in a new session and transaction, unless it's already there. If another
+     * transaction adds the same keyword at the same time, the insert fails on the unique index of the dictionary,
+     * and the keyword is read again, now that the other transaction has added it.
+     * <p>
+     * The entry is committed even if the campaign that needs it is not, an unused entry does no harm.
+     *
+     * @param keyword The keyword to add.
+     * @return the ID of the keyword's entry in the dictionary.
+     */
+    private int insertKeyword(String keyword) {
+        for (int attempt = 1; ; attempt++) {
+            try (Session session = sessionFactory.openSession()) {
+                Transaction transaction = session.beginTransaction();
+                try {
+                    Keyword dictionaryEntry = session.bySimpleNaturalId(Keyword.class).load(keyword);
+                    if (dictionaryEntry == null) {
+                        dictionaryEntry = new Keyword(keyword);
+                        session.persist(dictionaryEntry);
+                    }
+                    transaction.commit();
+                    return dictionaryEntry.getId();
+                } catch (PersistenceException e) {
+                    transaction.rollback();
+                    if (!(e.getCause() instanceof ConstraintViolationException) || attempt == MAX_KEYWORD_INSERT_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public List<Campaign> findAll() {
         return list((Query<Campaign>) namedQuery(Campaign.QUERY_FIND_ALL));
     }
 
+    /**
+     * Finds a page of campaigns, with their keywords already initialized. The pages are delimited by campaign IDs
+     * (keyset pagination), so a page is found through the primary key no matter how far it is from the first one,
+     * and campaigns created in the meantime don't shift the following pages.
+     * <p>
+     * The campaigns are read in a new read-only session, so this can be called outside of a {@code @UnitOfWork}.
+     *
+     * @param afterId The ID of the last campaign of the previous page, or 0 for the first page.
+     * @param limit   The maximum number of campaigns on the page.
+     * @return the campaigns whose ID is greater than {@code afterId}, in ascending order of their IDs.
+     */
+    public List<Campaign> findPage(long afterId, int limit) {
+        try (Session session = sessionFactory.openSession()) {
+            session.setDefaultReadOnly(true);
+            Transaction transaction = session.beginTransaction();
+            try {
+                List<Long> ids = session.createNamedQuery(Campaign.QUERY_FIND_IDS_AFTER, Long.class)
+                        .setParameter("afterId", afterId)
+                        .setMaxResults(limit)
+                        .list();
+                if (ids.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                return session.createNamedQuery(Campaign.QUERY_FIND_BY_IDS_WITH_KEYWORDS, Campaign.class)
+                        .setParameterList("ids", ids)
+                        .list();
+            } finally {
+                transaction.rollback();
+            }
+        }
+    }
+
+    /**
+     * Passes every campaign whose ID is greater than {@code afterId} to {@code consumer}, in ascending order of their
+     * IDs, with their keywords already initialized. The campaigns are read with a forward-only cursor, and every
+     * campaign is evicted from the session once it has been consumed, so the memory use does not depend on the
+     * number of campaigns.
+     * <p>
+     * The campaigns are read in a new read-only session, so this can be called outside of a {@code @UnitOfWork},
+     * e.g. while a response is being written.
+     *
+     * @param afterId  The ID after which the campaigns are read, 0 to read all campaigns.
+     * @param consumer The consumer of the campaigns.
+     */
+    public void forEachCampaign(long afterId, Consumer<Campaign> consumer) {
+        try (Session session = sessionFactory.openSession()) {
+            session.setDefaultReadOnly(true);
+            Transaction transaction = session.beginTransaction();
+            try (ScrollableResults results = session.getNamedQuery(Campaign.QUERY_FIND_ALL_AFTER_WITH_KEYWORDS)
+                    .setParameter("afterId", afterId)
+                    .setFetchSize(SCROLL_FETCH_SIZE)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    Campaign campaign = (Campaign) results.get(0);
+                    consumer.accept(campaign);
+                    session.evict(campaign);
+                }
+            } finally {
+                transaction.rollback();
+            }
+        }
+    }
+
+    /**
+     * Passes the ID and the keywords of every campaign with a positive balance to the consumer, in ascending order of
+     * the IDs. Only these columns are read, through a stateless session that scrolls through the rows, so neither
+     * the entities nor a persistence context holding them are created, and only the keywords of the current campaign
+     * are kept in memory.
+     * <p>
+     * The rows are read in a new stateless session, so this can be called outside of a {@code @UnitOfWork}.
+     *
+     * @param consumer The consumer of the IDs and the keywords.
+     */
+    public void forEachCampaignKeywords(BiConsumer<Long, List<String>> consumer) {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            Transaction transaction = session.beginTransaction();
+            try (ScrollableResults results = session.getNamedQuery(Campaign.QUERY_FIND_KEYWORDS_WITH_POSITIVE_BALANCE)
+                    .setReadOnly(true)
+                    .setFetchSize(SCROLL_FETCH_SIZE)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                long id = 0;
+                List<String> keywords = null;
+                while (results.next()) {
+                    long rowId = results.getLong(0);
+                    if (keywords != null && rowId != id) {
+                        consumer.accept(id, keywords);
+                        keywords = null;
+                    }
+                    if (keywords == null) {
+                        id = rowId;
+                        keywords = new ArrayList<>();
+                    }
+                    String keyword = results.getString(1);
+                    if (keyword != null) {
+                        keywords.add(keyword);
+                    }
+                }
+                if (keywords != null) {
+                    consumer.accept(id, keywords);
+                }
+            } finally {
+                transaction.rollback();
+            }
+        }
+    }
+
+    /**
+     * Finds which of the campaigns specified by their IDs have at least the specified balance (budget - spending).
+     * The IDs are read in a new read-only session, so this can be called outside of a {@code @UnitOfWork}.
+     *
+     * @param ids            The IDs of the campaigns.
+     * @param minimumBalance The minimum balance, in micro-NOK.
+     * @return the IDs of the campaigns which have at least the minimum balance.
+     */
+    public List<Long> findIdsWithBalance(Collection<Long> ids, long minimumBalance) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try (Session session = sessionFactory.openSession()) {
+            session.setDefaultReadOnly(true);
+            return session.createNamedQuery(Campaign.QUERY_FIND_IDS_WITH_BALANCE, Long.class)
+                    .setParameterList("ids", ids)
+                    .setParameter("minimumBalance", minimumBalance)
+                    .list();
+        }
+    }
+
+    /**
+     * Finds all campaigns that have a positive balance (budget - spending), with their keywords already initialized.
+     *
+     * @return a list of the campaigns with a positive balance.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Campaign> findAllWithPositiveBalance() {
+        return list((Query<Campaign>) namedQuery(Campaign.QUERY_FIND_ALL_WITH_POSITIVE_BALANCE));
+    }
+
     /**
      * Finds campaigns that have at least one of the specified keywords and that have a positive balance
      * (budget - spending) as well. This is done by using a named query for performance reasons -
@@ -49,13 +286,55 @@ public class CampaignDAO extends AbstractDAO<Campaign> {
      * for the same campaign, and the campaign's balance reaches 0 before all of these concurrent requests finish.
      *
      * @param campaign The campaign to increase spending for.
-     * @param amount   The amount by which to increase the spending.
+     * @param amount   The amount by which to increase the spending, in micro-NOK.
      * @return a success flag, {@code true} if the increase is successful, {@code false} otherwise.
      */
-    public boolean tryToIncreaseSpending(Campaign campaign, double amount) {
+    public boolean tryToIncreaseSpending(Campaign campaign, long amount) {
+        return tryToIncreaseSpending(campaign.getId(), amount);
+    }
+
+    /**
+     * Tries to increase the spending for a campaign specified by its ID, see {@link #tryToIncreaseSpending(Campaign, long)}.
+     *
+     * @param campaignId The ID of the campaign to increase spending for.
+     * @param amount     The amount by which to increase the spending, in micro-NOK.
+     * @return a success flag, {@code true} if the increase is successful, {@code false} otherwise.
+     */
+    @Override
+    public boolean tryToIncreaseSpending(long campaignId, long amount) {
         Query query = namedQuery(Campaign.QUERY_INCREASE_SPENDING);
-        query.setParameter("id", campaign.getId());
+        query.setParameter("id", campaignId);
         query.setParameter("increase", amount);
         return query.executeUpdate() > 0;
     }
+
+    /**
+     * The spending is increased through the current session, so a {@code @UnitOfWork} is required.
+     */
+    @Override
+    public boolean requiresUnitOfWork() {
+        return true;
+    }
+
+    /**
+     * Registers an action to be run after the current transaction has been successfully committed.
+     * This is useful for updating in-memory state only when the corresponding change is visible in the database.
+     *
+     * @param action The action to run after the commit.
+     */
+    @Override
+    public void runAfterCommit(Runnable action) {
+        currentSession().getTransaction().registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    action.run();
+                }
+            }
+        });
+    }
 }
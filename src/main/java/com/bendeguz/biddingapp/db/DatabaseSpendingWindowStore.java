@@ -0,0 +1,258 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.SpendingWindowStore;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link SpendingWindowStore} in the {@code spending_windows} table, so that the spending limit of the past 10 seconds
+ * holds for all instances of the application together.
+ * <p>
+ * The window of a campaign is a single row: a ring of one-second buckets ({@code b0} to {@code b10}), and the epoch
+ * (the second since 1970) of its latest spending. Bucket {@code i} holds the spending of the latest epoch {@code e}
+ * not newer than the row's epoch with {@code e mod 11 = i}, so the epoch of every bucket follows from the row's
+ * epoch. A spending is checked and registered by a single conditional {@code UPDATE}: it sums up the buckets that
+ * are still inside the window, and if the limit allows, it clears the outdated buckets, adds the amount to the
+ * bucket of the current epoch and moves the row's epoch forward. The database's row lock makes this atomic.
+ * If the {@code UPDATE} changes nothing, the row may be missing, so it's inserted unless it exists, and if it was
+ * inserted, the {@code UPDATE} is run again. Nothing is remembered about the rows, so this costs one more statement
+ * on the first spending of a campaign, and on each refusal, which is then remembered locally (see below).
+ * <p>
+ * A row whose epoch is older than {@code STALE_WINDOW_AGE_IN_EPOCHS} holds no spending inside any instance's window,
+ * so such rows are deleted by {@link #evictIdleCampaigns()}, and the table only holds the recently active campaigns.
+ * <p>
+ * Like {@code RingSpendingWindow}, a spending is counted until its whole bucket is older than 10 seconds, so the
+ * window is between 10 and 11 seconds long. The epochs come from the clocks of the instances, and the row's epoch
+ * never moves backward: an instance whose clock is behind uses the row's epoch instead of its own. The instances
+ * are expected to have synchronized clocks, a clock that is ahead by some time shortens the window by that time.
+ * <p>
+ * After a refused spending, the campaign is remembered locally until the end of the current epoch: the window can
+ * only open up when a bucket expires, so until then, {@link #getHeadroom(long, long)} reports that the refused amount
+ * does not fit, and bids don't have to ask the database again.
+ */
+public class DatabaseSpendingWindowStore implements SpendingWindowStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseSpendingWindowStore.class);
+    static final int BUCKET_COUNT = 11;
+    private static final long BUCKET_LENGTH_IN_MILLISECONDS = TimeUnit.SECONDS.toMillis(1);
+    // Much longer than the window, so that the rows used by instances whose clocks are behind are not deleted.
+    private static final long STALE_WINDOW_AGE_IN_EPOCHS = 60;
+    // ?1 is the epoch of the instance, ?2 the amount, ?3 the limit and ?4 the ID of the campaign.
+    private static final String TRY_TO_SPEND_SQL = createTryToSpendSql();
+    // ?1 is the epoch of the instance and ?2 the ID of the campaign.
+    private static final String SELECT_SPENDING_SQL = createSelectSpendingSql();
+    private static final String INSERT_WINDOW_SQL = "INSERT INTO spending_windows (campaign_id, epoch) " +
+            "SELECT ?1, ?2 FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM spending_windows WHERE campaign_id = ?1)";
+    private static final String DELETE_STALE_WINDOWS_SQL = "DELETE FROM spending_windows WHERE epoch < ?";
+
+    /**
+     * The epoch in which a spending was refused, and its amount.
+     */
+    private static class Refusal {
+        private final long epoch;
+        private final long amount;
+
+        Refusal(long epoch, long amount) {
+            this.epoch = epoch;
+            this.amount = amount;
+        }
+    }
+
+    private final ConcurrentMap<Long, Refusal> refusals = new ConcurrentHashMap<>();
+    private final SessionFactory sessionFactory;
+    private final LongSupplier millisecondClock;
+
+    public DatabaseSpendingWindowStore(SessionFactory sessionFactory) {
+        this(sessionFactory, System::currentTimeMillis);
+    }
+
+    DatabaseSpendingWindowStore(SessionFactory sessionFactory, LongSupplier millisecondClock) {
+        this.sessionFactory = sessionFactory;
+        this.millisecondClock = millisecondClock;
+    }
+
+    /**
+     * The spending in bucket {@code i} that is still inside the window, which ends with the epoch of the row or
+     * the epoch of the instance, whichever is newer.
+     */
+    private static String amountInWindow(int i) {
+        return "CASE WHEN epoch - MOD(epoch - " + i + ", " + BUCKET_COUNT + ") > GREATEST(epoch, ?1) - " + BUCKET_COUNT +
+                " THEN b" + i + " ELSE 0 END";
+    }
+
+    private static String createTryToSpendSql() {
+        StringBuilder sql = new StringBuilder("UPDATE spending_windows SET ");
+        StringBuilder sum = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sql.append("b").append(i).append(" = ").append(amountInWindow(i))
+                    .append(" + CASE WHEN MOD(GREATEST(epoch, ?1), ").append(BUCKET_COUNT).append(") = ").append(i)
+                    .append(" THEN ?2 ELSE 0 END, ");
+            sum.append(i == 0 ? "" : " + ").append(amountInWindow(i));
+        }
+        return sql.append("epoch = GREATEST(epoch, ?1) WHERE campaign_id = ?4 AND ")
+                .append(sum).append(" + ?2 <= ?3").toString();
+    }
+
+    private static String createSelectSpendingSql() {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sql.append(i == 0 ? "" : " + ").append(amountInWindow(i));
+        }
+        return sql.append(" FROM spending_windows WHERE campaign_id = ?2").toString();
+    }
+
+    private long currentEpoch() {
+        return millisecondClock.getAsLong() / BUCKET_LENGTH_IN_MILLISECONDS;
+    }
+
+    @Override
+    public boolean tryToSpend(long campaignId, long amount, long limit) {
+        long epoch = currentEpoch();
+        boolean spent;
+        try (Session session = sessionFactory.openSession()) {
+            spent = session.doReturningWork(connection -> inTransaction(connection, () ->
+                    updateWindow(connection, campaignId, amount, limit, epoch)
+                            || insertWindow(connection, campaignId, epoch)
+                            && updateWindow(connection, campaignId, amount, limit, epoch)));
+        }
+        if (spent) {
+            refusals.remove(campaignId);
+        } else {
+            refusals.put(campaignId, new Refusal(epoch, amount));
+        }
+        return spent;
+    }
+
+    @Override
+    public long getSpending(long campaignId) {
+        long epoch = currentEpoch();
+        try (Session session = sessionFactory.openSession()) {
+            return session.doReturningWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(SELECT_SPENDING_SQL)) {
+                    statement.setLong(1, epoch);
+                    statement.setLong(2, campaignId);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return resultSet.next() ? resultSet.getLong(1) : 0;
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public long getHeadroom(long campaignId, long limit) {
+        Refusal refusal = refusals.get(campaignId);
+        if (refusal != null && refusal.epoch >= currentEpoch()) {
+            return refusal.amount - 1;
+        }
+        return limit;
+    }
+
+    @Override
+    public long getNanosUntilHeadroomGrows(long campaignId) {
+        Refusal refusal = refusals.get(campaignId);
+        if (refusal == null) {
+            return 0;
+        }
+        long endOfEpoch = (refusal.epoch + 1) * BUCKET_LENGTH_IN_MILLISECONDS;
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(endOfEpoch - millisecondClock.getAsLong(), 0));
+    }
+
+    /**
+     * Drops the refusals of the past epochs, and deletes the stale rows of the table.
+     */
+    @Override
+    public int evictIdleCampaigns() {
+        long epoch = currentEpoch();
+        deleteStaleWindows(epoch);
+        int evicted = 0;
+        for (Long campaignId : refusals.keySet()) {
+            Refusal refusal = refusals.get(campaignId);
+            if (refusal != null && refusal.epoch < epoch && refusals.remove(campaignId, refusal)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    @Override
+    public int getCampaignCount() {
+        return refusals.size();
+    }
+
+    private interface SqlWork<T> {
+        T execute() throws SQLException;
+    }
+
+    /**
+     * Runs the work, and commits it if the connection is not in auto-commit mode.
+     */
+    private static <T> T inTransaction(Connection connection, SqlWork<T> work) throws SQLException {
+        if (connection.getAutoCommit()) {
+            return work.execute();
+        }
+        try {
+            T result = work.execute();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    private void deleteStaleWindows(long epoch) {
+        try (Session session = sessionFactory.openSession()) {
+            int deleted = session.doReturningWork(connection -> inTransaction(connection, () -> {
+                try (PreparedStatement statement = connection.prepareStatement(DELETE_STALE_WINDOWS_SQL)) {
+                    statement.setLong(1, epoch - STALE_WINDOW_AGE_IN_EPOCHS);
+                    return statement.executeUpdate();
+                }
+            }));
+            LOGGER.debug("Deleted {} stale spending windows", deleted);
+        } catch (HibernateException e) {
+            // The rows are deleted by the next eviction, they do no harm until then.
+            LOGGER.warn("Could not delete the stale spending windows: ", e);
+        }
+    }
+
+    /**
+     * Inserts an empty window for the campaign if it does not have one yet. If another instance inserts it at the
+     * same time, the primary key lets only one of them through, which is just as good.
+     *
+     * @return whether the window was inserted.
+     */
+    private static boolean insertWindow(Connection connection, long campaignId, long epoch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_WINDOW_SQL)) {
+            statement.setLong(1, campaignId);
+            statement.setLong(2, epoch);
+            return statement.executeUpdate() > 0;
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // Inserted by someone else in the meantime.
+            return true;
+        }
+    }
+
+    private static boolean updateWindow(Connection connection, long campaignId, long amount, long limit, long epoch)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(TRY_TO_SPEND_SQL)) {
+            statement.setLong(1, epoch);
+            statement.setLong(2, amount);
+            statement.setLong(3, limit);
+            statement.setLong(4, campaignId);
+            return statement.executeUpdate() > 0;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.bendeguz.biddingapp.db;
+
+/**
+ * A {@link SpendingStore} for the warm-up of the application, which accepts every spending without changing anything.
+ * If the store it stands in for requires a unit of work, it reads the campaign instead of updating it, so that
+ * the bids still go through the session management, the connection pool and the JDBC driver.
+ */
+public class DryRunSpendingStore implements SpendingStore {
+    private final CampaignDAO campaignDAO;
+    private final boolean requiresUnitOfWork;
+
+    public DryRunSpendingStore(CampaignDAO campaignDAO, boolean requiresUnitOfWork) {
+        this.campaignDAO = campaignDAO;
+        this.requiresUnitOfWork = requiresUnitOfWork;
+    }
+
+    @Override
+    public boolean tryToIncreaseSpending(long campaignId, long amount) {
+        if (requiresUnitOfWork) {
+            campaignDAO.findById(campaignId);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean requiresUnitOfWork() {
+        return requiresUnitOfWork;
+    }
+}
@@ -0,0 +1,304 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.core.Money;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A write-behind {@link SpendingStore}: the balance of each campaign is kept in memory, and bids are accepted or
+ * refused based on it, without touching the database. The accepted spending is collected in a ledger, which is written
+ * to the database by a background flusher as a single JDBC batch, every {@code flushIntervalInMilliseconds}
+ * or as soon as {@code flushBatchSize} spendings are waiting, whichever happens first. The ledger is also flushed when
+ * the application stops.
+ * <p>
+ * The balance of a campaign is loaded from the database the first time it's needed. After that, it's only decreased
+ * by the spending of this node, so it's never more than the balance in the database, unless the database is also updated
+ * by someone else. The batched updates use the same condition as {@link com.bendeguz.biddingapp.core.Campaign#QUERY_INCREASE_SPENDING},
+ * so the spending in the database never exceeds the budget either way. If an update is refused because of such
+ * a divergence, as much of the spending is written as the remaining budget allows, in the same transaction, and the
+ * rest is counted by the {@code lost-spending} counter (in micro-NOK). The campaign refuses every bid from the moment
+ * the refusal is seen until its in-memory balance is set to the balance in the database after the partial update,
+ * so no further bids are accepted on the campaign than what its remaining budget allows.
+ * <p>
+ * Once the ledger is stopped, all spending is refused, as it would not be written to the database anymore.
+ */
+public class SpendingLedger implements SpendingStore, Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpendingLedger.class);
+    private static final String INCREASE_SPENDING_SQL =
+            "UPDATE campaigns SET spending = spending + ? WHERE id = ? AND budget - spending - ? >= 0";
+    private static final String SELECT_BALANCE_SQL = "SELECT budget - spending FROM campaigns WHERE id = ?";
+    private static final String SELECT_BALANCE_FOR_UPDATE_SQL = SELECT_BALANCE_SQL + " FOR UPDATE";
+    private static final String ADD_SPENDING_SQL = "UPDATE campaigns SET spending = spending + ? WHERE id = ?";
+
+    /**
+     * The in-memory balance of a campaign, and its spending that is not written to the database yet.
+     */
+    private class Account {
+        private long balance;
+        private long pendingSpending;
+        private boolean reconciling;
+
+        Account(long balance) {
+            this.balance = balance;
+        }
+
+        /**
+         * Checks whether the ledger is stopped under the lock of the account, so the final flush, which takes
+         * the pending spending under the same lock, either sees the spending or the spending sees the ledger stopped.
+         */
+        synchronized boolean tryToSpend(long amount) {
+            if (stopped || reconciling || balance - amount < 0) {
+                return false;
+            }
+            balance -= amount;
+            pendingSpending += amount;
+            return true;
+        }
+
+        synchronized long takePendingSpending() {
+            long amount = pendingSpending;
+            pendingSpending = 0;
+            return amount;
+        }
+
+        synchronized void returnPendingSpending(long amount) {
+            pendingSpending += amount;
+        }
+
+        /**
+         * Refuses every spending until the balance is resynchronized.
+         */
+        synchronized void startReconciling() {
+            reconciling = true;
+        }
+
+        /**
+         * Sets the balance based on the balance in the database, taking into account the spending that is not
+         * written to the database yet, and accepts spending again.
+         *
+         * @param databaseBalance The balance of the campaign in the database.
+         */
+        synchronized void resynchronize(long databaseBalance) {
+            balance = databaseBalance - pendingSpending;
+            reconciling = false;
+        }
+    }
+
+    private final ConcurrentMap<Long, Account> accounts = new ConcurrentHashMap<>();
+    private final AtomicInteger unflushedSpendingCount = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final SessionFactory sessionFactory;
+    private final long flushIntervalInMilliseconds;
+    private final int flushBatchSize;
+    private final Counter lostSpendingCounter;
+    private ScheduledExecutorService flushExecutor;
+    private volatile boolean stopped;
+
+    public SpendingLedger(SessionFactory sessionFactory, long flushIntervalInMilliseconds, int flushBatchSize) {
+        this(sessionFactory, flushIntervalInMilliseconds, flushBatchSize, new MetricRegistry());
+    }
+
+    public SpendingLedger(SessionFactory sessionFactory, long flushIntervalInMilliseconds, int flushBatchSize,
+                          MetricRegistry metrics) {
+        this.sessionFactory = sessionFactory;
+        this.flushIntervalInMilliseconds = flushIntervalInMilliseconds;
+        this.flushBatchSize = flushBatchSize;
+        this.lostSpendingCounter = metrics.counter(MetricRegistry.name(SpendingLedger.class, "lost-spending"));
+    }
+
+    @Override
+    public void start() {
+        stopped = false;
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "spending-ledger-flusher"));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalInMilliseconds, flushIntervalInMilliseconds,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refuses all further spending and stops the background flusher, then writes all remaining spending to the database.
+     */
+    @Override
+    public void stop() throws Exception {
+        stopped = true;
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        flush();
+    }
+
+    @Override
+    public boolean tryToIncreaseSpending(long campaignId, long amount) {
+        Account account = getAccount(campaignId);
+        if (!account.tryToSpend(amount)) {
+            return false;
+        }
+        if (unflushedSpendingCount.incrementAndGet() >= flushBatchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(() -> {
+                    flushRequested.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                // The ledger is being stopped, the spending is already accepted, and the final flush writes it.
+                LOGGER.debug("The flusher is stopped, leaving the spending to the final flush");
+            }
+        }
+        return true;
+    }
+
+    private Account getAccount(long campaignId) {
+        Account account = accounts.get(campaignId);
+        if (account != null) {
+            return account;
+        }
+        // The balance is loaded outside of the map's lock, if another thread loads it at the same time, one of them wins.
+        Account loadedAccount = new Account(loadBalance(campaignId));
+        account = accounts.putIfAbsent(campaignId, loadedAccount);
+        return account == null ? loadedAccount : account;
+    }
+
+    private long loadBalance(long campaignId) {
+        try (Session session = sessionFactory.openSession()) {
+            return session.doReturningWork(connection -> selectBalance(connection, campaignId));
+        }
+    }
+
+    /**
+     * Reads the balance of a campaign from the database. A campaign that does not exist has no balance.
+     */
+    private static long selectBalance(Connection connection, long campaignId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_BALANCE_SQL)) {
+            statement.setLong(1, campaignId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Writes all the spending collected since the previous flush to the database in a single batch.
+     * If the batch fails, the spending is put back into the ledger, and it will be retried with the next flush.
+     */
+    public synchronized void flush() {
+        unflushedSpendingCount.set(0);
+        List<Long> campaignIds = new ArrayList<>();
+        List<Long> amounts = new ArrayList<>();
+        for (Map.Entry<Long, Account> entry : accounts.entrySet()) {
+            long amount = entry.getValue().takePendingSpending();
+            if (amount > 0) {
+                campaignIds.add(entry.getKey());
+                amounts.add(amount);
+            }
+        }
+        if (campaignIds.isEmpty()) {
+            return;
+        }
+
+        long[] databaseBalances = new long[campaignIds.size()];
+        int[] updateCounts;
+        try (Session session = sessionFactory.openSession()) {
+            updateCounts = session.doReturningWork(
+                    connection -> writeBatch(connection, campaignIds, amounts, databaseBalances));
+        } catch (HibernateException e) {
+            LOGGER.error("Could not flush the spending ledger, retrying with the next flush: ", e);
+            for (int i = 0; i < campaignIds.size(); i++) {
+                accounts.get(campaignIds.get(i)).returnPendingSpending(amounts.get(i));
+            }
+            return;
+        }
+
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == 0) {
+                long campaignId = campaignIds.get(i);
+                long lostAmount = amounts.get(i) - Math.max(databaseBalances[i], 0);
+                LOGGER.error("The database refused {} NOK of spending on campaign {}, its balance diverged from the " +
+                        "in-memory balance - {} NOK of it could not be written", Money.toNok(amounts.get(i)), campaignId,
+                        Money.toNok(lostAmount));
+                lostSpendingCounter.inc(lostAmount);
+                // The partial update used up the remaining balance.
+                accounts.get(campaignId).resynchronize(Math.min(databaseBalances[i], 0));
+            }
+        }
+    }
+
+    /**
+     * Writes the spending in a single batch and transaction. The updates that are refused because the balance in the
+     * database is lower than the spending are applied partially, using up the remaining balance, in the same
+     * transaction. Until they are resynchronized, their campaigns refuse every spending.
+     *
+     * @param databaseBalances Filled with the balance of the campaigns of the refused updates, before the partial
+     *                         updates.
+     * @return the update counts of the batch, 0 for the refused updates.
+     */
+    private int[] writeBatch(Connection connection, List<Long> campaignIds, List<Long> amounts, long[] databaseBalances)
+            throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(INCREASE_SPENDING_SQL)) {
+            for (int i = 0; i < campaignIds.size(); i++) {
+                statement.setLong(1, amounts.get(i));
+                statement.setLong(2, campaignIds.get(i));
+                statement.setLong(3, amounts.get(i));
+                statement.addBatch();
+            }
+            int[] updateCounts = statement.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] == 0) {
+                    accounts.get(campaignIds.get(i)).startReconciling();
+                    databaseBalances[i] = spendRemainingBalance(connection, campaignIds.get(i));
+                }
+            }
+            connection.commit();
+            return updateCounts;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Increases the spending of a campaign by its remaining balance, so that its spending equals its budget.
+     *
+     * @return the balance of the campaign before the update, 0 if there's no such campaign.
+     */
+    private static long spendRemainingBalance(Connection connection, long campaignId) throws SQLException {
+        long balance;
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_BALANCE_FOR_UPDATE_SQL)) {
+            statement.setLong(1, campaignId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                balance = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+        if (balance > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(ADD_SPENDING_SQL)) {
+                statement.setLong(1, balance);
+                statement.setLong(2, campaignId);
+                statement.executeUpdate();
+            }
+        }
+        return balance;
+    }
+}
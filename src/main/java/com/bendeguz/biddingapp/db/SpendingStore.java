@@ -0,0 +1,34 @@
+package com.bendeguz.biddingapp.db;
+
+/**
+ * Increases the spending of campaigns, making sure that no campaign spends more than its budget.
+ * The amounts are in micro-NOK, see {@link com.bendeguz.biddingapp.core.Money}.
+ */
+public interface SpendingStore {
+    /**
+     * Tries to increase the spending for a campaign specified by its ID.
+     *
+     * @param campaignId The ID of the campaign to increase spending for.
+     * @param amount     The amount by which to increase the spending, in micro-NOK.
+     * @return a success flag, {@code true} if the increase is successful, {@code false} if the campaign's
+     * balance is not enough.
+     */
+    boolean tryToIncreaseSpending(long campaignId, long amount);
+
+    /**
+     * @return whether {@code tryToIncreaseSpending} has to be called in a {@code @UnitOfWork}.
+     */
+    default boolean requiresUnitOfWork() {
+        return false;
+    }
+
+    /**
+     * Runs an action once the spending increased so far is visible to others. By default, it's visible as soon as
+     * {@code tryToIncreaseSpending} returns, so the action is run right away.
+     *
+     * @param action The action to run.
+     */
+    default void runAfterCommit(Runnable action) {
+        action.run();
+    }
+}
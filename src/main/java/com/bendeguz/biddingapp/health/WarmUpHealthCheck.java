@@ -0,0 +1,21 @@
+package com.bendeguz.biddingapp.health;
+
+import com.bendeguz.biddingapp.BidWarmUp;
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * Reports the application as unhealthy until its {@link BidWarmUp} has finished, so that a load balancer polling
+ * the health checks does not send bids to an instance which would serve them slowly.
+ */
+public class WarmUpHealthCheck extends HealthCheck {
+    private final BidWarmUp bidWarmUp;
+
+    public WarmUpHealthCheck(BidWarmUp bidWarmUp) {
+        this.bidWarmUp = bidWarmUp;
+    }
+
+    @Override
+    protected Result check() {
+        return bidWarmUp.isFinished() ? Result.healthy() : Result.unhealthy("The application is still warming up");
+    }
+}
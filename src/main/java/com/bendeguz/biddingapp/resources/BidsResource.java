@@ -1,11 +1,20 @@
 package com.bendeguz.biddingapp.resources;
 
 import com.bendeguz.biddingapp.BidSynchronizer;
+import com.bendeguz.biddingapp.BidSynchronizer.SpendingResult;
 import com.bendeguz.biddingapp.BiddingConfiguration;
+import com.bendeguz.biddingapp.KeywordIndex;
 import com.bendeguz.biddingapp.api.BidParam;
 import com.bendeguz.biddingapp.api.BidResult;
-import com.bendeguz.biddingapp.core.Campaign;
-import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.core.Money;
+import com.bendeguz.biddingapp.core.StageMetrics;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
 import io.dropwizard.hibernate.HibernateBundle;
 import io.dropwizard.hibernate.UnitOfWork;
 import io.dropwizard.hibernate.UnitOfWorkAwareProxyFactory;
@@ -18,165 +27,544 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.List;
-import java.util.Random;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 @Path("/bids")
 @Produces(MediaType.APPLICATION_JSON)
 public class BidsResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(BidsResource.class);
-    private static final double BID_AMOUNT = 1.0;
+    /**
+     * The amount of every bid in micro-NOK, 1 NOK.
+     */
+    private static final long BID_AMOUNT = Money.MICROS_PER_NOK;
     private static final int BID_TIMEOUT_IN_MILLISECONDS = 500;
+    /**
+     * The time left for finishing a bid (committing its spending and resuming the response) after its deadline, before
+     * the timeout handler answers it. Without it, a bid that is still running at the deadline would race the timeout
+     * handler, which answers with the failure response even if the bid has already spent.
+     */
+    private static final int BID_DEADLINE_MARGIN_IN_MILLISECONDS = 100;
+    private static final long BID_DEADLINE_IN_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(BID_TIMEOUT_IN_MILLISECONDS - BID_DEADLINE_MARGIN_IN_MILLISECONDS);
 
     /**
-     * This static nested class is used to decouple the execution of bidding so it can ensured that it will always
-     * take less than {@code BID_TIMEOUT_IN_MILLISECONDS}.
+     * This static nested class contains the bidding logic, which needs a database session (if the spending store
+     * requires one) but no per-bid state, so a single instance is shared by all bids.
      * <p>
      * It needs to be implemented in a separate class so we can use the {@code @UnitOfWork} annotation to access the database
      * without having to worry about session management.
      * <p>
      * Also, a static class is needed because its instantiation happens outside of BidsResource
-     * (in the {@code UnitOfWorkAwareProxyFactory.create} method).
+     * (in the {@code UnitOfWorkAwareProxyFactory.create} method). The proxy is created only once, in the constructor
+     * of BidsResource, since creating it is expensive.
      */
-    private static class TryToBidCallable implements Callable<Boolean> {
-        private final Random random = new Random();
-        private final CampaignDAO campaignDAO;
-        private final String[] keywords;
+    static class Bidder {
+        private final SpendingStore spendingStore;
+        private final KeywordIndex keywordIndex;
         private final BidSynchronizer bidSynchronizer;
+        private final Timer candidateLookupTimer;
+        private final Timer spendingUpdateTimer;
+        private final Histogram candidatesTriedHistogram;
+        private final Counter saturatedCandidatesCounter;
+        private final Counter exhaustedKeywordsCounter;
 
-        TryToBidCallable(CampaignDAO campaignDAO, String[] keywords, BidSynchronizer bidSynchronizer) {
-            this.campaignDAO = campaignDAO;
-            this.keywords = keywords;
+        public Bidder(SpendingStore spendingStore, KeywordIndex keywordIndex, BidSynchronizer bidSynchronizer,
+                      MetricRegistry metrics) {
+            this.spendingStore = spendingStore;
+            this.keywordIndex = keywordIndex;
             this.bidSynchronizer = bidSynchronizer;
+            this.candidateLookupTimer = StageMetrics.timer(metrics,
+                    MetricRegistry.name(BidsResource.class, "candidate-lookup"));
+            this.spendingUpdateTimer = StageMetrics.timer(metrics,
+                    MetricRegistry.name(BidsResource.class, "spending-update"));
+            this.candidatesTriedHistogram = StageMetrics.histogram(metrics,
+                    MetricRegistry.name(BidsResource.class, "candidates-tried"));
+            this.saturatedCandidatesCounter = metrics.counter(MetricRegistry.name(BidsResource.class, "saturated-candidates"));
+            this.exhaustedKeywordsCounter = metrics.counter(MetricRegistry.name(BidsResource.class, "exhausted-keywords"));
         }
 
         /**
-         * Tries to bid on the specified campaign. Locks it, then proceeds only if it is available for spending.
+         * Removes a random element of the list in constant time, by moving the last element to its place.
+         */
+        private static Long removeRandomCandidate(List<Long> campaignIds, Random random) {
+            int index = random.nextInt(campaignIds.size());
+            Long campaignId = campaignIds.get(index);
+            Long lastCampaignId = campaignIds.remove(campaignIds.size() - 1);
+            if (index < campaignIds.size()) {
+                campaignIds.set(index, lastCampaignId);
+            }
+            return campaignId;
+        }
+
+        /**
+         * Checks the headroom of the campaign without locking it. A campaign that has already used up its spending
+         * limit of the past 10 seconds would certainly refuse the bid, so it's not even tried.
+         */
+        private boolean isSaturated(long campaignId) {
+            if (bidSynchronizer.getHeadroom(campaignId) < BID_AMOUNT) {
+                saturatedCandidatesCounter.inc();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Marks the keywords as exhausted in the keyword index until the headroom of any of the campaigns that
+         * refused their bid may grow. Nothing is marked if any of them might accept a bid already, or if campaigns
+         * were added to the index after the specified version.
+         */
+        private void markExhausted(String[] keywords, long indexVersion, List<Long> refusingCampaignIds) {
+            if (refusingCampaignIds.isEmpty()) {
+                return;
+            }
+            long nanosUntilHeadroomGrows = Long.MAX_VALUE;
+            for (Long campaignId : refusingCampaignIds) {
+                nanosUntilHeadroomGrows = Math.min(nanosUntilHeadroomGrows,
+                        bidSynchronizer.getNanosUntilHeadroomGrows(campaignId));
+            }
+            if (nanosUntilHeadroomGrows > 0) {
+                keywordIndex.markExhausted(keywords, indexVersion, nanosUntilHeadroomGrows);
+                exhaustedKeywordsCounter.inc();
+            }
+        }
+
+        private List<Long> findCandidates(String[] keywords) {
+            long start = System.nanoTime();
+            List<Long> campaignIds = keywordIndex.findCampaignIdsByKeywords(keywords);
+            candidateLookupTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return campaignIds;
+        }
+
+        /**
+         * Tries to bid on the campaign specified by its ID. The spending is registered in the {@link BidSynchronizer}
+         * first, and the bid proceeds only if the campaign was available for spending.
          * If an exception is thrown the bid can be considered unsuccessful.
+         * <p>
+         * If the database refuses to increase the spending, the campaign's balance is too low for any further bids
+         * (budgets never increase), so the campaign is removed from the keyword index. With leased budgets, the balance
+         * can grow again when the leases of other instances are given back, the campaign is restored in the index
+         * then, see {@link com.bendeguz.biddingapp.KeywordIndexRefresher}.
          *
-         * @param campaign The campaign to bid on.
-         * @return a success flag, {@code true} if the bid is successful, {@code false} otherwise.
+         * @param campaignId        The ID of the campaign to bid on.
+         * @param lockTimeoutNanos  The maximum time to wait for the lock of the campaign, in nanoseconds.
+         * @return {@code SPENT} if the bid is successful, {@code BUSY} if the campaign could not be locked in time,
+         * {@code REFUSED} otherwise.
          * @throws InterruptedException if the thread gets interrupted.
          */
-        private boolean tryToBidOnCampaign(Campaign campaign) throws InterruptedException {
+        private SpendingResult tryToBidOnCampaign(long campaignId, long lockTimeoutNanos) throws InterruptedException {
+            // Saving the fact of spending first - this helps ensure that no excessive spending is ever carried out.
+            // Note that the spending might not actually happen (if the update fails for example due to
+            // an interrupt event), but this is not a serious problem, since the caller will still see it as failure.
+            SpendingResult result = bidSynchronizer.tryToSpendOnCampaign(campaignId, BID_AMOUNT, lockTimeoutNanos,
+                    TimeUnit.NANOSECONDS);
+            if (result != SpendingResult.SPENT) {
+                return result;
+            }
+            // Check if thread has been interrupted - proceed only if not.
+            // This helps ensure that the bidding never takes longer than BID_TIMEOUT_IN_MILLISECONDS.
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long start = System.nanoTime();
+            boolean increased = spendingStore.tryToIncreaseSpending(campaignId, BID_AMOUNT);
+            spendingUpdateTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (increased) {
+                return SpendingResult.SPENT;
+            }
+            keywordIndex.removeCampaign(campaignId);
+            return SpendingResult.REFUSED;
+        }
+
+        /**
+         * Tries to bid on the specified candidates in random order, skipping the ones without enough headroom or in
+         * the set of refused campaigns. A campaign that is locked by another bid is not waited for at first, it's only
+         * tried again - waiting for its lock until the deadline - when no other candidate is left.
+         * <p>
+         * The campaigns that refuse the bid are removed from the list of candidates and added to the set of refused
+         * campaigns, the others stay in the list, so it can be reused by further bids with the same keywords.
+         * <p>
+         * If every candidate refuses the bid, the keywords are marked as exhausted in the keyword index until the
+         * headroom of the first candidate may grow, so the bids with the same keywords can be refused without trying
+         * the candidates again until then.
+         *
+         * @param keywords           The keywords of the bid.
+         * @param indexVersion       The version of the keyword index read before the candidates were looked up.
+         * @param campaignIds        The candidate campaigns of the bid.
+         * @param refusedCampaignIds The campaigns which are known to refuse the bid.
+         * @param deadlineNanos      The deadline of the bid, in terms of {@link System#nanoTime()}.
+         * @return the ID of the campaign the bid was placed on, or {@code null} if the bid is unsuccessful.
+         * @throws InterruptedException if the thread gets interrupted.
+         */
+        private Long tryToBidOnCandidates(String[] keywords, long indexVersion, List<Long> campaignIds,
+                                          Set<Long> refusedCampaignIds, long deadlineNanos) throws InterruptedException {
+            Random random = ThreadLocalRandom.current();
+            List<Long> busyCampaignIds = new ArrayList<>(0);
+            List<Long> refusingCampaignIds = new ArrayList<>(campaignIds.size());
+            int candidatesTried = 0;
             try {
-                bidSynchronizer.lockCampaign(campaign.getId());
-                if (bidSynchronizer.isCampaignAvailableForSpending(campaign.getId(), BID_AMOUNT)) {
-                    // Check if thread has been interrupted - proceed only if not.
-                    // This helps ensure that the bidding never takes longer than BID_TIMEOUT_IN_MILLISECONDS.
-                    if (Thread.interrupted()) {
-                        throw new InterruptedException();
+                while (!campaignIds.isEmpty()) {
+                    Long campaignId = removeRandomCandidate(campaignIds, random);
+                    if (refusedCampaignIds.contains(campaignId) || isSaturated(campaignId)) {
+                        // Within a batch, a refusal by the synchronizer is just as final as one by the database.
+                        refusedCampaignIds.add(campaignId);
+                        refusingCampaignIds.add(campaignId);
+                        continue;
+                    }
+                    candidatesTried++;
+                    SpendingResult result = tryToBidOnCampaign(campaignId, 0);
+                    if (result == SpendingResult.SPENT) {
+                        campaignIds.add(campaignId);
+                        return campaignId;
+                    } else if (result == SpendingResult.BUSY) {
+                        busyCampaignIds.add(campaignId);
+                    } else {
+                        refusedCampaignIds.add(campaignId);
+                        refusingCampaignIds.add(campaignId);
+                    }
+                }
+                // Only the busy campaigns are left, so it's worth waiting for them while the deadline allows it.
+                for (int i = 0; i < busyCampaignIds.size(); i++) {
+                    long remainingNanos = deadlineNanos - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        break;
+                    }
+                    Long campaignId = busyCampaignIds.get(i);
+                    SpendingResult result = tryToBidOnCampaign(campaignId, remainingNanos);
+                    if (result == SpendingResult.SPENT) {
+                        return campaignId;
+                    } else if (result == SpendingResult.REFUSED) {
+                        busyCampaignIds.set(i, null);
+                        refusedCampaignIds.add(campaignId);
+                        refusingCampaignIds.add(campaignId);
                     }
-
-                    // Saving the fact of spending first - this helps ensure that no excessive spending is ever carried out.
-                    // Note that the spending might not actually happen (if the save method fails for example due to
-                    // an interrupt event), but this is not a serious problem, since the caller will still see it as failure.
-                    bidSynchronizer.spendOnCampaign(campaign.getId(), BID_AMOUNT);
-                    return campaignDAO.tryToIncreaseSpending(campaign, BID_AMOUNT);
                 }
+                // The busy campaigns that are left may still accept bids with the same keywords.
+                if (busyCampaignIds.stream().allMatch(Objects::isNull)) {
+                    markExhausted(keywords, indexVersion, refusingCampaignIds);
+                }
+                return null;
             } finally {
-                bidSynchronizer.unlockCampaign(campaign.getId());
+                for (Long campaignId : busyCampaignIds) {
+                    if (campaignId != null) {
+                        campaignIds.add(campaignId);
+                    }
+                }
+                candidatesTriedHistogram.update(candidatesTried);
             }
-            return false;
         }
 
-        @Override
+        /**
+         * Tries to bid on the candidate campaigns found in the keyword index, see
+         * {@link #tryToBidOnCandidates(String[], long, List, Set, long)}. The database is only accessed to increase the spending of
+         * the chosen campaign.
+         *
+         * @param keywords      The keywords to search in the campaigns to bid for.
+         * @param deadlineNanos The deadline of the bid, in terms of {@link System#nanoTime()}.
+         * @return a success flag, {@code true} if the bid is successful, {@code false} otherwise.
+         * @throws InterruptedException if the thread gets interrupted.
+         */
         @UnitOfWork
-        public Boolean call() throws Exception {
-            List<Campaign> campaigns = campaignDAO.findCampaignsWithPositiveBalanceByKeywords(keywords);
-            while (!campaigns.isEmpty()) {
-                Campaign campaign = campaigns.get(random.nextInt(campaigns.size()));
-                campaigns.remove(campaign);
-                if (tryToBidOnCampaign(campaign)) {
-                    return true;
+        public boolean tryToBid(String[] keywords, long deadlineNanos) throws InterruptedException {
+            long indexVersion = keywordIndex.getVersion();
+            return tryToBidOnCandidates(keywords, indexVersion, findCandidates(keywords), new HashSet<>(),
+                    deadlineNanos) != null;
+        }
+
+        /**
+         * Tries to place a batch of bids in a single unit of work. The candidates of each distinct set of keywords are
+         * looked up in the keyword index only once, and a campaign that refused a bid is not tried again in the batch.
+         * The bids whose keywords are exhausted are not tried at all.
+         * No new bid is started after the specified deadline, the bids left are unsuccessful.
+         *
+         * @param bidParams     The bids to place.
+         * @param deadlineNanos The deadline of the batch, in terms of {@link System#nanoTime()}.
+         * @return the results in the order of the bids, with {@code null} for every unsuccessful bid.
+         * @throws InterruptedException if the thread gets interrupted.
+         */
+        @UnitOfWork
+        public BidResult[] tryToBidAll(List<BidParam> bidParams, long deadlineNanos) throws InterruptedException {
+            BidResult[] results = new BidResult[bidParams.size()];
+            Map<List<String>, List<Long>> candidatesByKeywords = new HashMap<>();
+            Set<Long> refusedCampaignIds = new HashSet<>();
+            // Read before any lookup, so it's never newer than the candidates of any of the bids.
+            long indexVersion = keywordIndex.getVersion();
+            for (int i = 0; i < results.length && System.nanoTime() - deadlineNanos < 0; i++) {
+                BidParam bidParam = bidParams.get(i);
+                if (keywordIndex.isExhausted(bidParam.getKeywords())) {
+                    continue;
+                }
+                List<Long> campaignIds = candidatesByKeywords.computeIfAbsent(Arrays.asList(bidParam.getKeywords()),
+                        keywords -> findCandidates(bidParam.getKeywords()));
+                if (tryToBidOnCandidates(bidParam.getKeywords(), indexVersion, campaignIds, refusedCampaignIds,
+                        deadlineNanos) != null) {
+                    results[i] = new BidResult(bidParam.getBidId(), Money.toNok(BID_AMOUNT));
                 }
             }
-            return false;
+            return results;
         }
     }
 
-    private final CampaignDAO campaignDAO;
-    private final ExecutorService executorService;
-    private final BidSynchronizer bidSynchronizer;
     /**
-     * This field is used to create {@code TryToBidCallable} instances through the {@code UnitOfWorkAwareProxyFactory}
-     * so the {@code @UnitOfWork} annotation can be added to these instances.
+     * This static nested class is used to decouple the execution of bidding so it can ensured that it will always
+     * take less than {@code BID_TIMEOUT_IN_MILLISECONDS}. It only carries the keywords of a bid to the shared
+     * {@link Bidder}, so creating it is cheap. The time it spends waiting in the executor's queue is measured
+     * by the specified timer, and the rest of {@code BID_TIMEOUT_IN_MILLISECONDS}, without
+     * {@code BID_DEADLINE_MARGIN_IN_MILLISECONDS}, is the deadline of the bid.
      */
+    private static class TryToBidCallable implements Callable<Boolean> {
+        private final Bidder bidder;
+        private final String[] keywords;
+        private final Timer queueWaitTimer;
+        private final long submittedAtNanos = System.nanoTime();
+
+        TryToBidCallable(Bidder bidder, String[] keywords, Timer queueWaitTimer) {
+            this.bidder = bidder;
+            this.keywords = keywords;
+            this.queueWaitTimer = queueWaitTimer;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            queueWaitTimer.update(System.nanoTime() - submittedAtNanos, TimeUnit.NANOSECONDS);
+            return bidder.tryToBid(keywords, submittedAtNanos + BID_DEADLINE_IN_NANOS);
+        }
+    }
+
+    /**
+     * The batch counterpart of {@link TryToBidCallable}, places all bids of a batch with a single task.
+     */
+    private static class TryToBidAllCallable implements Callable<BidResult[]> {
+        private final Bidder bidder;
+        private final List<BidParam> bidParams;
+        private final long deadlineNanos;
+        private final Timer queueWaitTimer;
+        private final long submittedAtNanos = System.nanoTime();
+
+        TryToBidAllCallable(Bidder bidder, List<BidParam> bidParams, long deadlineNanos, Timer queueWaitTimer) {
+            this.bidder = bidder;
+            this.bidParams = bidParams;
+            this.deadlineNanos = deadlineNanos;
+            this.queueWaitTimer = queueWaitTimer;
+        }
+
+        @Override
+        public BidResult[] call() throws Exception {
+            queueWaitTimer.update(System.nanoTime() - submittedAtNanos, TimeUnit.NANOSECONDS);
+            return bidder.tryToBidAll(bidParams, deadlineNanos);
+        }
+    }
+
+    private final ExecutorService executorService;
     private final HibernateBundle<BiddingConfiguration> hibernateBundle;
+    private final KeywordIndex keywordIndex;
+    private final Bidder bidder;
+    private final Meter bidsMeter;
+    private final Meter unmatchedBidsMeter;
+    private final Meter exhaustedBidsMeter;
+    private final Timer queueWaitTimer;
+    private final Counter timeoutCounter;
+    private final Counter failedCancellationCounter;
 
-    public BidsResource(CampaignDAO campaignDAO, ExecutorService executorService,
-                        HibernateBundle<BiddingConfiguration> hibernateBundle, BidSynchronizer bidSynchronizer) {
-        this.campaignDAO = campaignDAO;
+    /**
+     * Creates the resource, and registers the metrics of the stages of bidding in the specified {@link MetricRegistry}.
+     */
+    public BidsResource(SpendingStore spendingStore, KeywordIndex keywordIndex, ExecutorService executorService,
+                        HibernateBundle<BiddingConfiguration> hibernateBundle, BidSynchronizer bidSynchronizer,
+                        MetricRegistry metrics) {
         this.executorService = executorService;
         this.hibernateBundle = hibernateBundle;
-        this.bidSynchronizer = bidSynchronizer;
+        this.keywordIndex = keywordIndex;
+        this.bidsMeter = metrics.meter(MetricRegistry.name(BidsResource.class, "bids"));
+        this.unmatchedBidsMeter = metrics.meter(MetricRegistry.name(BidsResource.class, "unmatched-bids"));
+        this.exhaustedBidsMeter = metrics.meter(MetricRegistry.name(BidsResource.class, "exhausted-bids"));
+        metrics.gauge(MetricRegistry.name(BidsResource.class, "unmatched-ratio"), () -> new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(unmatchedBidsMeter.getOneMinuteRate(), bidsMeter.getOneMinuteRate());
+            }
+        });
+        this.queueWaitTimer = StageMetrics.timer(metrics, MetricRegistry.name(BidsResource.class, "queue-wait"));
+        this.timeoutCounter = metrics.counter(MetricRegistry.name(BidsResource.class, "timeouts"));
+        this.failedCancellationCounter = metrics.counter(MetricRegistry.name(BidsResource.class, "failed-cancellations"));
+        this.bidder = createBidder(spendingStore, keywordIndex, bidSynchronizer, metrics);
+    }
+
+    private Bidder createBidder(SpendingStore spendingStore, KeywordIndex keywordIndex, BidSynchronizer bidSynchronizer,
+                                MetricRegistry metrics) {
+        if (spendingStore.requiresUnitOfWork()) {
+            // This creation mechanism ensures that the @UnitOfWork annotation can be added to methods of the created
+            // Bidder instance.
+            return new UnitOfWorkAwareProxyFactory(hibernateBundle).create(
+                    Bidder.class,
+                    new Class[]{SpendingStore.class, KeywordIndex.class, BidSynchronizer.class, MetricRegistry.class},
+                    new Object[]{spendingStore, keywordIndex, bidSynchronizer, metrics}
+            );
+        }
+        // No database session is needed, so the annotation does not have to be processed.
+        return new Bidder(spendingStore, keywordIndex, bidSynchronizer, metrics);
     }
 
+    /**
+     * Places synthetic bids through the same path as the real ones: a {@link TryToBidCallable} on the bid executor,
+     * in a unit of work if the spending store requires one. The bids are a dry run, placed with the specified spending
+     * store, keyword index and bid synchronizer instead of the real ones, and measured by metrics which are not
+     * registered anywhere, so they don't change the state of the application.
+     * <p>
+     * At most {@code concurrency} bids run at the same time, and no new bid is started after the deadline. A bid that
+     * throws an exception, which is rejected by the executor, or which is still running at the deadline, is
+     * unsuccessful. The bids still running at the deadline are cancelled, so the warm-up never outlives it.
+     *
+     * @param bids                  The keywords of the bids to place.
+     * @param concurrency           The maximum number of bids running at the same time.
+     * @param deadlineNanos         The deadline of the warm-up, in terms of {@link System#nanoTime()}.
+     * @param dryRunSpendingStore   The spending store of the bids.
+     * @param dryRunKeywordIndex    The keyword index which contains the campaigns of the bids.
+     * @param dryRunBidSynchronizer The bid synchronizer of the bids.
+     * @return the number of successful bids.
+     * @throws InterruptedException if the thread gets interrupted.
+     */
+    public int warmUp(List<String[]> bids, int concurrency, long deadlineNanos, SpendingStore dryRunSpendingStore,
+                      KeywordIndex dryRunKeywordIndex, BidSynchronizer dryRunBidSynchronizer) throws InterruptedException {
+        MetricRegistry dryRunMetrics = new MetricRegistry();
+        Bidder dryRunBidder = createBidder(dryRunSpendingStore, dryRunKeywordIndex, dryRunBidSynchronizer, dryRunMetrics);
+        Timer dryRunQueueWaitTimer = StageMetrics.timer(dryRunMetrics,
+                MetricRegistry.name(BidsResource.class, "queue-wait"));
+        int successfulBids = 0;
+        for (int start = 0; start < bids.size() && System.nanoTime() - deadlineNanos < 0; start += concurrency) {
+            List<Future<Boolean>> bidFutures = new ArrayList<>(concurrency);
+            for (String[] keywords : bids.subList(start, Math.min(start + concurrency, bids.size()))) {
+                try {
+                    bidFutures.add(executorService.submit(new TryToBidCallable(dryRunBidder, keywords, dryRunQueueWaitTimer)));
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("Rejecting warm-up bid, the executor is full");
+                }
+            }
+            for (Future<Boolean> bidFuture : bidFutures) {
+                try {
+                    if (bidFuture.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        successfulBids++;
+                    }
+                } catch (ExecutionException e) {
+                    LOGGER.debug("Exception occurred while trying to place a warm-up bid: ", e);
+                } catch (TimeoutException e) {
+                    bidFuture.cancel(true);
+                }
+            }
+        }
+        return successfulBids;
+    }
+
+    /**
+     * Places a bid. The request thread is released as soon as the bid is handed over to the executor: the response
+     * is resumed by the bid itself when it finishes, or with {@code 204 No Content} by the shared timer of the
+     * container after {@code BID_TIMEOUT_IN_MILLISECONDS} milliseconds, whichever comes first.
+     * <p>
+     * A bid whose keywords don't match any campaign in the keyword index is answered with {@code 204 No Content}
+     * right away on the request thread, without going through the executor (or a database session). So is a bid whose
+     * keywords are exhausted: every candidate refused a bid with the same keywords recently, and none of them can
+     * accept one yet.
+     *
+     * @param bidParam      The bid to place.
+     * @param asyncResponse The response to resume with the result of the bid.
+     */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response createBid(@NotNull @Valid BidParam bidParam) {
-        if (tryToBid(bidParam.getKeywords())) {
-            BidResult result = new BidResult(bidParam.getBidId(), BID_AMOUNT);
-            return Response.ok(result).build();
-        } else {
-            return Response.noContent().build();
+    public void createBid(@NotNull @Valid BidParam bidParam, @Suspended AsyncResponse asyncResponse) {
+        bidsMeter.mark();
+        if (!keywordIndex.hasCampaignsWithKeywords(bidParam.getKeywords())) {
+            unmatchedBidsMeter.mark();
+            asyncResponse.resume(Response.noContent().build());
+            return;
+        }
+        if (keywordIndex.isExhausted(bidParam.getKeywords())) {
+            exhaustedBidsMeter.mark();
+            asyncResponse.resume(Response.noContent().build());
+            return;
         }
+        TryToBidCallable tryToBidCallable = new TryToBidCallable(bidder, bidParam.getKeywords(), queueWaitTimer);
+        placeBid(asyncResponse, () -> {
+            if (tryToBidCallable.call()) {
+                return Response.ok(new BidResult(bidParam.getBidId(), Money.toNok(BID_AMOUNT))).build();
+            } else {
+                return Response.noContent().build();
+            }
+        }, Response::noContent);
     }
 
     /**
-     * Tries to place a bid by searching a campaign that contains one of the specified keywords.
-     * This function is guaranteed to return after {@code BID_TIMEOUT_IN_MILLISECONDS} milliseconds, if there is
-     * something preventing the bid from succeeding in this time frame, the bidding attempt is cancelled and
-     * {@code false} is returned.
+     * Places a batch of bids, sharing a single executor task, keyword lookup and database transaction.
+     * The whole batch has to finish in {@code BID_TIMEOUT_IN_MILLISECONDS} milliseconds, just like a single bid: no new
+     * bid is started after {@code BID_TIMEOUT_IN_MILLISECONDS - BID_DEADLINE_MARGIN_IN_MILLISECONDS}, so the bids that
+     * have been placed by then are answered by the batch itself rather than by the timeout handler.
+     * The response is the list of the results in the order of the bids, with {@code null} for every unsuccessful bid.
      *
-     * @param keywords The keywords to search in the campaigns to bid for.
-     * @return a success flag, {@code true} if the bid is successful, {@code false} otherwise.
+     * @param bidParams     The bids to place.
+     * @param asyncResponse The response to resume with the results of the bids.
      */
-    private boolean tryToBid(String[] keywords) {
-        // This creation mechanism ensures that the @UnitOfWork annotation can be added to methods of the created
-        // TryToBidCallable instance.
-        UnitOfWorkAwareProxyFactory unitOfWorkAwareProxyFactory = new UnitOfWorkAwareProxyFactory(hibernateBundle);
-        TryToBidCallable tryToBidCallable = unitOfWorkAwareProxyFactory.create(
-                TryToBidCallable.class,
-                new Class[]{CampaignDAO.class, String[].class, BidSynchronizer.class},
-                new Object[]{campaignDAO, keywords, bidSynchronizer}
-        );
-        Future<Boolean> tryToBidFuture = executorService.submit(tryToBidCallable);
-
-        return getSuccessFlagFromTryToBidFuture(tryToBidFuture);
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public void createBids(@NotNull @Valid List<BidParam> bidParams, @Suspended AsyncResponse asyncResponse) {
+        long deadlineNanos = System.nanoTime() + BID_DEADLINE_IN_NANOS;
+        TryToBidAllCallable tryToBidAllCallable = new TryToBidAllCallable(bidder, bidParams, deadlineNanos, queueWaitTimer);
+        placeBid(asyncResponse, () -> Response.ok(Arrays.asList(tryToBidAllCallable.call())).build(),
+                () -> Response.ok(Arrays.asList(new BidResult[bidParams.size()])));
     }
 
     /**
-     * Determines and returns the success flag from the {@link Future} object which represents the execution of a bid.
-     * This method will interrupt the future after {@code BID_TIMEOUT_IN_MILLISECONDS} milliseconds.
-     * If the interrupt fails, the result of the future is awaited without further timeout - this is to ensure that
-     * the client will always see the right status code.
+     * Runs a bid on the executor, and resumes the response with its result. If the bid does not finish in
+     * {@code BID_TIMEOUT_IN_MILLISECONDS} milliseconds, it is cancelled, and the response is resumed with the failure
+     * response instead. If the executor is too busy to accept the bid, the failure response is returned immediately.
+     * <p>
+     * The bid resumes the response before its task completes, so if the cancellation of a timed out bid fails, its
+     * response has already been resumed with the right status code.
+     * A bid interrupted by anything other than the timeout handler resumes the response with the failure response.
      *
-     * @param tryToBidFuture A {@link Future} object representing the execution of a bid.
-     * @return whether the bid was successful.
+     * @param asyncResponse   The response to resume.
+     * @param bid             The bid, which returns its response.
+     * @param failureResponse The response of a bid that failed, got cancelled or was rejected.
      */
-    private boolean getSuccessFlagFromTryToBidFuture(Future<Boolean> tryToBidFuture) {
-        try {
-            return tryToBidFuture.get(BID_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | ExecutionException e) {
-            LOGGER.warn("Exception occurred while trying to place a bid: ", e);
-            return false;
-        } catch (TimeoutException e) {
-            LOGGER.info("Cancelling bid due to timeout");
-            if(tryToBidFuture.cancel(true)){
-                return false;
-            } else { // the bidding job should be done
-                LOGGER.warn("The bidding job could not be cancelled - waiting for a result...");
-                try {
-                    return tryToBidFuture.get();
-                } catch (InterruptedException | ExecutionException ex) {
-                    LOGGER.warn("Exception occurred while trying to place a bid: ", ex);
-                    return false;
-                }
+    private void placeBid(AsyncResponse asyncResponse, Callable<Response> bid, Supplier<Response.ResponseBuilder> failureResponse) {
+        FutureTask<Void> bidTask = new FutureTask<>(() -> {
+            Response response;
+            try {
+                response = bid.call();
+            } catch (InterruptedException e) {
+                // The bid has been cancelled either by the timeout handler, which resumes the response as well, or by
+                // something else (e.g. the executor shutting down), in which case it's up to the bid to resume it.
+                // Resuming a response that has already been resumed does nothing. The response is written on this
+                // thread, so the interrupt is only restored once it's done.
+                asyncResponse.resume(failureResponse.get().build());
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                LOGGER.warn("Exception occurred while trying to place a bid: ", e);
+                response = failureResponse.get().build();
+            }
+            asyncResponse.resume(response);
+            return null;
+        });
+        asyncResponse.setTimeoutHandler(timedOutResponse -> {
+            timeoutCounter.inc();
+            if (bidTask.cancel(true)) {
+                LOGGER.info("Cancelling bid due to timeout");
+                timedOutResponse.resume(failureResponse.get().build());
+            } else { // the bidding job is done, and it has resumed the response
+                failedCancellationCounter.inc();
             }
+        });
+        asyncResponse.setTimeout(BID_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        try {
+            executorService.execute(bidTask);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Rejecting bid, the executor is full");
+            asyncResponse.resume(failureResponse.get().build());
         }
     }
 }
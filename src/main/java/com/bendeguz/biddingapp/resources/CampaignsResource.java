@@ -1,25 +1,46 @@
 package com.bendeguz.biddingapp.resources;
 
+import com.bendeguz.biddingapp.CampaignCache;
+import com.bendeguz.biddingapp.KeywordIndex;
 import com.bendeguz.biddingapp.api.CampaignParam;
 import com.bendeguz.biddingapp.core.Campaign;
 import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.dropwizard.hibernate.UnitOfWork;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.util.List;
 
 @Path("/campaigns")
 @Produces(MediaType.APPLICATION_JSON)
 public class CampaignsResource {
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
     private final CampaignDAO campaignDAO;
+    private final KeywordIndex keywordIndex;
+    private final CampaignCache campaignCache;
+    private final ObjectMapper objectMapper;
 
-    public CampaignsResource(CampaignDAO campaignDAO) {
+    public CampaignsResource(CampaignDAO campaignDAO, KeywordIndex keywordIndex, CampaignCache campaignCache,
+                             ObjectMapper objectMapper) {
         this.campaignDAO = campaignDAO;
+        this.keywordIndex = keywordIndex;
+        this.campaignCache = campaignCache;
+        this.objectMapper = objectMapper;
     }
 
     @POST
@@ -28,21 +49,70 @@ public class CampaignsResource {
     public Response createCampaign(@NotNull @Valid CampaignParam campaignParam) {
         Campaign campaign = new Campaign(campaignParam.getName(), campaignParam.getKeywords(), campaignParam.getBudget());
         Campaign createdCampaign = campaignDAO.create(campaign);
+        // The campaign is only added to the index once it's committed, otherwise a bid could try to spend on a campaign
+        // that is not visible in the database yet.
+        campaignDAO.runAfterCommit(() -> keywordIndex.addCampaign(createdCampaign));
 
         URI createdUri = URI.create("/campaigns/" + createdCampaign.getId());
         return Response.created(createdUri).build();
     }
 
+    /**
+     * Lists the campaigns in ascending order of their IDs. Without {@code after} and {@code limit}, every campaign is
+     * listed in one response, which is written while the campaigns are read from the database, so its size is not
+     * limited by the memory. So are all campaigns after {@code after} with {@code stream=true}.
+     * <p>
+     * Paging is opted into with {@code after} or {@code limit}: a page starts after the campaign whose ID is
+     * {@code after} (0 by default), it holds at most {@code limit} campaigns ({@code DEFAULT_PAGE_SIZE} by default),
+     * and if it is full, the response has a {@code next} link to the following page.
+     * <p>
+     * There's no unit of work here: a page is read in its own session, and a streamed response opens its session
+     * only while it is being written.
+     */
     @GET
-    @UnitOfWork
-    public List<Campaign> getCampaigns() {
-        return campaignDAO.findAll();
+    public Response getCampaigns(@QueryParam("after") @Min(0) Long after,
+                                 @QueryParam("limit") @Min(1) @Max(MAX_PAGE_SIZE) Integer limit,
+                                 @QueryParam("stream") @DefaultValue("false") boolean stream,
+                                 @Context UriInfo uriInfo) {
+        long afterId = after == null ? 0 : after;
+        if (stream || after == null && limit == null) {
+            return Response.ok(streamCampaigns(afterId)).build();
+        }
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        List<Campaign> campaigns = campaignDAO.findPage(afterId, pageSize);
+        Response.ResponseBuilder response = Response.ok(campaigns);
+        if (campaigns.size() == pageSize) {
+            long lastId = campaigns.get(campaigns.size() - 1).getId();
+            response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", lastId).build(), "next");
+        }
+        return response.build();
     }
 
+    private StreamingOutput streamCampaigns(long after) {
+        return output -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+                generator.writeStartArray();
+                campaignDAO.forEachCampaign(after, campaign -> {
+                    try {
+                        generator.writeObject(campaign);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    /**
+     * Returns a campaign from the {@link CampaignCache}. There's no unit of work here, the cache opens a session
+     * only when it has to load the campaign.
+     */
     @GET
     @Path("/{campaignId}")
-    @UnitOfWork
     public Campaign getCampaignById(@NotNull @PathParam("campaignId") long campaignId) {
-        return campaignDAO.findById(campaignId).orElseThrow(() -> new NotFoundException("No such campaign."));
+        return campaignCache.get(campaignId).orElseThrow(() -> new NotFoundException("No such campaign."));
     }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.bendeguz.biddingapp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+import io.dropwizard.setup.Environment;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+/**
+ * Unit tests for {@link BidExecutorFactory}.
+ */
+class BidExecutorFactoryTest {
+
+    private Environment environment;
+    private BidExecutorFactory bidExecutorFactory;
+
+    @BeforeEach
+    void setUp() {
+        environment = new Environment("test", Jackson.newObjectMapper(), Validators.newValidator(),
+                new MetricRegistry(), ClassLoader.getSystemClassLoader());
+        bidExecutorFactory = new BidExecutorFactory();
+    }
+
+    /**
+     * With one thread and a queue of one, the third concurrent bid should be rejected immediately.
+     */
+    @Test
+    void boundedExecutorRejectsWhenFull() throws Exception {
+        bidExecutorFactory.setMaxThreads(1);
+        bidExecutorFactory.setMaxQueuedBids(1);
+        ExecutorService executorService = bidExecutorFactory.build(environment);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        Future<?> running = executorService.submit(() -> {
+            latch.await();
+            return null;
+        });
+        Future<?> queued = executorService.submit(() -> {
+            latch.await();
+            return null;
+        });
+        assertThatExceptionOfType(RejectedExecutionException.class).isThrownBy(() -> executorService.submit(() -> null));
+
+        assertThat(environment.metrics().counter("bid-executor.rejected").getCount()).isEqualTo(1);
+        assertThat(environment.metrics().getGauges().get("bid-executor.queued").getValue()).isEqualTo(1);
+        latch.countDown();
+        running.get();
+        queued.get();
+        executorService.shutdown();
+    }
+
+    /**
+     * The virtual thread executor should work on every runtime - falling back to a thread pool if needed.
+     */
+    @Test
+    void virtualExecutor() throws Exception {
+        bidExecutorFactory.setType(BidExecutorFactory.Type.VIRTUAL);
+        ExecutorService executorService = bidExecutorFactory.build(environment);
+
+        assertThat(executorService.submit(() -> true).get()).isTrue();
+        executorService.shutdown();
+    }
+}
@@ -1,5 +1,6 @@
 package com.bendeguz.biddingapp;
 
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -7,10 +8,20 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.bendeguz.biddingapp.core.Money.toMicros;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.assertj.core.api.AssertionsForClassTypes.assertThatCode;
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(DropwizardExtensionsSupport.class)
 class BidSynchronizerTest {
@@ -51,6 +62,38 @@ class BidSynchronizerTest {
         }).doesNotThrowAnyException();
     }
 
+    /**
+     * A campaign locked by another thread should be reported as busy without waiting, or after waiting for
+     * the specified timeout at most. Once it's released, the spending should go through.
+     */
+    @Test
+    void tryLock() throws Exception {
+        long campaignId = 1;
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(() -> assertThatCode(() -> {
+            bidSynchronizer.lockCampaign(campaignId);
+            locked.countDown();
+            release.await();
+            bidSynchronizer.unlockCampaign(campaignId);
+        }).doesNotThrowAnyException());
+        thread.start();
+        locked.await();
+
+        assertThat(bidSynchronizer.tryLockCampaign(campaignId, 0, TimeUnit.MILLISECONDS)).isFalse();
+        Instant beforeTryLock = Instant.now();
+        assertThat(bidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5), 100, TimeUnit.MILLISECONDS))
+                .isEqualTo(BidSynchronizer.SpendingResult.BUSY);
+        assertThat(Duration.between(beforeTryLock, Instant.now())).isGreaterThanOrEqualTo(Duration.ofMillis(100));
+
+        release.countDown();
+        thread.join();
+        assertThat(bidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5), 0, TimeUnit.MILLISECONDS))
+                .isEqualTo(BidSynchronizer.SpendingResult.SPENT);
+        assertThat(bidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(6), 0, TimeUnit.MILLISECONDS))
+                .isEqualTo(BidSynchronizer.SpendingResult.REFUSED);
+    }
+
     /**
      * In this test, we spend 5 NOK twice in close succession on a campaign. This should make the campaign unavailable
      * for further spending.
@@ -63,32 +106,32 @@ class BidSynchronizerTest {
         long campaignId = 1;
         assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
-            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, 5)).isTrue();
-            bidSynchronizer.spendOnCampaign(campaignId, 5);
+            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(5))).isTrue();
+            bidSynchronizer.spendOnCampaign(campaignId, toMicros(5));
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException();
         assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
-            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, 5)).isTrue();
-            bidSynchronizer.spendOnCampaign(campaignId, 5);
+            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(5))).isTrue();
+            bidSynchronizer.spendOnCampaign(campaignId, toMicros(5));
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException();
         assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
-            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, 5)).isFalse();
+            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(5))).isFalse();
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException();
         assertThatCode(() -> Thread.sleep(9000)).doesNotThrowAnyException();
         assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
-            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, 5)).isFalse();
+            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(5))).isFalse();
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException();
         assertThatCode(() -> Thread.sleep(1001)).doesNotThrowAnyException();
         assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
-            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, 5)).isTrue();
-            bidSynchronizer.spendOnCampaign(campaignId, 5);
+            assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(5))).isTrue();
+            bidSynchronizer.spendOnCampaign(campaignId, toMicros(5));
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException();
     }
@@ -101,8 +144,8 @@ class BidSynchronizerTest {
     @Test
     void accessWithoutLockException(){
         long campaignId = 1;
-        assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.isCampaignAvailableForSpending(campaignId, 10));
-        assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.spendOnCampaign(campaignId, 10));
+        assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(10)));
+        assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.spendOnCampaign(campaignId, toMicros(10)));
 
         Thread thread1 = new Thread(() -> assertThatCode(() -> {
             bidSynchronizer.lockCampaign(campaignId);
@@ -110,8 +153,8 @@ class BidSynchronizerTest {
             bidSynchronizer.unlockCampaign(campaignId);
         }).doesNotThrowAnyException());
         Thread thread2 = new Thread(() -> {
-            assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.isCampaignAvailableForSpending(campaignId, 10));
-            assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.spendOnCampaign(campaignId, 10));
+            assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(10)));
+            assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> bidSynchronizer.spendOnCampaign(campaignId, toMicros(10)));
         });
         thread1.start();
         assertThatCode(() -> Thread.sleep(50)).doesNotThrowAnyException();
@@ -121,4 +164,221 @@ class BidSynchronizerTest {
             thread2.join();
         }).doesNotThrowAnyException();
     }
+
+    /**
+     * Same as {@code spending}, but in {@code LOCK_FREE} mode without locking the campaign, and with a fake clock.
+     * Since the window is made up of 100 ms buckets, a spending is only forgotten once its whole bucket is older
+     * than 10 seconds.
+     */
+    @Test
+    void lockFreeSpending() {
+        long campaignId = 1;
+        AtomicLong nanoTime = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+        BidSynchronizer lockFreeBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE, nanoTime::get);
+        assertThatCode(() -> {
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5))).isTrue();
+            nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5))).isTrue();
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(0.5))).isFalse();
+
+            nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(9950));
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5))).isFalse();
+
+            nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5))).isTrue();
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(5))).isTrue();
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(1))).isFalse();
+        }).doesNotThrowAnyException();
+    }
+
+    /**
+     * Checks that the locking methods work in {@code LOCK_FREE} mode as well.
+     */
+    @Test
+    void lockFreeModeWithLocking() {
+        long campaignId = 1;
+        BidSynchronizer lockFreeBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE);
+        assertThatCode(() -> {
+            lockFreeBidSynchronizer.lockCampaign(campaignId);
+            assertThat(lockFreeBidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(10))).isTrue();
+            lockFreeBidSynchronizer.spendOnCampaign(campaignId, toMicros(10));
+            assertThat(lockFreeBidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(1))).isFalse();
+            lockFreeBidSynchronizer.unlockCampaign(campaignId);
+        }).doesNotThrowAnyException();
+        assertThatExceptionOfType(IllegalThreadStateException.class).isThrownBy(() -> lockFreeBidSynchronizer.spendOnCampaign(campaignId, toMicros(10)));
+    }
+
+    /**
+     * Many threads try to spend 1 NOK on the same campaign at the same time, in both modes with local windows.
+     * Exactly 10 of these attempts should succeed.
+     */
+    @Test
+    void concurrentSpending() throws Exception {
+        for (BidSynchronizer.Mode mode : EnumSet.of(BidSynchronizer.Mode.LOCKING, BidSynchronizer.Mode.LOCK_FREE)) {
+            BidSynchronizer concurrentBidSynchronizer = new BidSynchronizer(mode);
+            ExecutorService executorService = Executors.newFixedThreadPool(8);
+            CountDownLatch startLatch = new CountDownLatch(1);
+            AtomicInteger successfulSpendings = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executorService.submit(() -> {
+                    startLatch.await();
+                    if (concurrentBidSynchronizer.tryToSpendOnCampaign(1, toMicros(1))) {
+                        successfulSpendings.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executorService.shutdown();
+            assertThat(successfulSpendings.get()).as("successful spendings in %s mode", mode).isEqualTo(10);
+        }
+    }
+
+    /**
+     * Campaigns should only be evicted once there was no spending on them in the past 10 seconds,
+     * and evicting them should not affect the spending limit.
+     */
+    @Test
+    void evictIdleCampaigns() {
+        AtomicLong nanoTime = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+        BidSynchronizer lockFreeBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE, nanoTime::get);
+        assertThatCode(() -> {
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(1, toMicros(10))).isTrue();
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(2, toMicros(5))).isTrue();
+            assertThat(lockFreeBidSynchronizer.evictIdleCampaigns()).isEqualTo(0);
+            assertThat(lockFreeBidSynchronizer.getCampaignCount()).isEqualTo(2);
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(1, toMicros(1))).isFalse();
+
+            nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(5000));
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(2, toMicros(5))).isTrue();
+            nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(5100));
+            assertThat(lockFreeBidSynchronizer.evictIdleCampaigns()).isEqualTo(1);
+            assertThat(lockFreeBidSynchronizer.getCampaignCount()).isEqualTo(1);
+            assertThat(lockFreeBidSynchronizer.getEvictionCount()).isEqualTo(1);
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(1, toMicros(10))).isTrue();
+            assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(2, toMicros(6))).isFalse();
+        }).doesNotThrowAnyException();
+    }
+
+    /**
+     * A locked campaign must never be evicted, even if there was no spending on it.
+     */
+    @Test
+    void lockedCampaignIsNotEvicted() {
+        long campaignId = 1;
+        assertThatCode(() -> {
+            bidSynchronizer.lockCampaign(campaignId);
+            bidSynchronizer.lockCampaign(campaignId + 1);
+            bidSynchronizer.unlockCampaign(campaignId + 1);
+        }).doesNotThrowAnyException();
+        Thread evictionThread = new Thread(() -> assertThat(bidSynchronizer.evictIdleCampaigns()).isEqualTo(1));
+        evictionThread.start();
+        assertThatCode(evictionThread::join).doesNotThrowAnyException();
+        assertThat(bidSynchronizer.getCampaignCount()).isEqualTo(1);
+        assertThat(bidSynchronizer.isCampaignAvailableForSpending(campaignId, toMicros(10))).isTrue();
+        bidSynchronizer.spendOnCampaign(campaignId, toMicros(10));
+        bidSynchronizer.unlockCampaign(campaignId);
+    }
+
+    /**
+     * The headroom should reflect the spending of the past 10 seconds in both modes, without locking the campaign.
+     */
+    @Test
+    void headroom() {
+        long campaignId = 1;
+        AtomicLong nanoTime = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+        BidSynchronizer lockFreeBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE, nanoTime::get);
+        for (BidSynchronizer synchronizer : new BidSynchronizer[]{bidSynchronizer, lockFreeBidSynchronizer}) {
+            assertThat(synchronizer.getHeadroom(campaignId)).isEqualTo(toMicros(10.0));
+            assertThatCode(() -> {
+                assertThat(synchronizer.tryToSpendOnCampaign(campaignId, toMicros(3))).isTrue();
+                assertThat(synchronizer.getHeadroom(campaignId)).isEqualTo(toMicros(7.0));
+                assertThat(synchronizer.tryToSpendOnCampaign(campaignId, toMicros(7))).isTrue();
+                assertThat(synchronizer.getHeadroom(campaignId)).isEqualTo(toMicros(0.0));
+            }).doesNotThrowAnyException();
+        }
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        assertThat(lockFreeBidSynchronizer.getHeadroom(campaignId)).isEqualTo(toMicros(10.0));
+    }
+
+    /**
+     * The headroom should not grow before the estimated time, and nothing is known about an empty window.
+     */
+    @Test
+    void nanosUntilHeadroomGrows() throws InterruptedException {
+        long campaignId = 1;
+        AtomicLong nanoTime = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+        BidSynchronizer lockFreeBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE, nanoTime::get);
+        assertThat(lockFreeBidSynchronizer.getNanosUntilHeadroomGrows(campaignId)).isZero();
+
+        assertThat(lockFreeBidSynchronizer.tryToSpendOnCampaign(campaignId, toMicros(10))).isTrue();
+        long nanosUntilHeadroomGrows = lockFreeBidSynchronizer.getNanosUntilHeadroomGrows(campaignId);
+        assertThat(nanosUntilHeadroomGrows).isPositive().isLessThanOrEqualTo(TimeUnit.SECONDS.toNanos(11));
+
+        nanoTime.addAndGet(nanosUntilHeadroomGrows - 1);
+        assertThat(lockFreeBidSynchronizer.getHeadroom(campaignId)).isZero();
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        assertThat(lockFreeBidSynchronizer.getNanosUntilHeadroomGrows(campaignId)).isZero();
+        assertThat(lockFreeBidSynchronizer.getHeadroom(campaignId)).isEqualTo(toMicros(10.0));
+    }
+
+    /**
+     * The lock wait should only be measured in {@code LOCKING} mode, the window check in every mode.
+     */
+    @Test
+    void metrics() {
+        for (BidSynchronizer.Mode mode : BidSynchronizer.Mode.values()) {
+            MetricRegistry metrics = new MetricRegistry();
+            BidSynchronizer measuredBidSynchronizer = mode == BidSynchronizer.Mode.SHARED
+                    ? new BidSynchronizer(mock(SpendingWindowStore.class), metrics)
+                    : new BidSynchronizer(mode, metrics);
+
+            assertThatCode(() -> {
+                measuredBidSynchronizer.tryToSpendOnCampaign(1, toMicros(1));
+                measuredBidSynchronizer.tryToSpendOnCampaign(2, toMicros(1));
+            }).doesNotThrowAnyException();
+
+            assertThat(metrics.timer(MetricRegistry.name(BidSynchronizer.class, "lock-wait")).getCount())
+                    .isEqualTo(mode == BidSynchronizer.Mode.LOCKING ? 2 : 0);
+            assertThat(metrics.timer(MetricRegistry.name(BidSynchronizer.class, "window-check")).getCount()).isEqualTo(2);
+        }
+    }
+
+    /**
+     * In {@code SHARED} mode the spending windows are in the shared store, the local ones must not be used.
+     */
+    @Test
+    void sharedMode() throws InterruptedException {
+        SpendingWindowStore sharedWindowStore = mock(SpendingWindowStore.class);
+        when(sharedWindowStore.tryToSpend(1, toMicros(1), toMicros(10))).thenReturn(true);
+        when(sharedWindowStore.getHeadroom(2, toMicros(10))).thenReturn(toMicros(3));
+        BidSynchronizer sharedBidSynchronizer = new BidSynchronizer(sharedWindowStore, new MetricRegistry());
+
+        assertThat(sharedBidSynchronizer.tryToSpendOnCampaign(1, toMicros(1))).isTrue();
+        assertThat(sharedBidSynchronizer.tryToSpendOnCampaign(2, toMicros(1))).isFalse();
+        assertThat(sharedBidSynchronizer.getHeadroom(2)).isEqualTo(toMicros(3));
+
+        // The locking methods read and write the shared store as well, and there's nothing to save or restore.
+        when(sharedWindowStore.getSpending(3)).thenReturn(toMicros(9));
+        sharedBidSynchronizer.lockCampaign(3);
+        try {
+            assertThat(sharedBidSynchronizer.isCampaignAvailableForSpending(3, toMicros(1))).isTrue();
+            assertThat(sharedBidSynchronizer.isCampaignAvailableForSpending(3, toMicros(2))).isFalse();
+            sharedBidSynchronizer.spendOnCampaign(3, toMicros(1));
+        } finally {
+            sharedBidSynchronizer.unlockCampaign(3);
+        }
+        verify(sharedWindowStore).tryToSpend(3, toMicros(1), Long.MAX_VALUE);
+        sharedBidSynchronizer.restoreSpending(3, 0, toMicros(1));
+        List<Long> savedCampaignIds = new ArrayList<>();
+        sharedBidSynchronizer.forEachRecentSpending((campaignId, ageInNanos, amount) -> savedCampaignIds.add(campaignId));
+        assertThat(savedCampaignIds).isEmpty();
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new BidSynchronizer(BidSynchronizer.Mode.SHARED));
+    }
 }
@@ -0,0 +1,55 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.db.SpendingLedger;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
+import io.dropwizard.lifecycle.JettyManaged;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.testing.ConfigOverride;
+import io.dropwizard.testing.ResourceHelpers;
+import io.dropwizard.testing.junit5.DropwizardAppExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests how {@link BiddingApplication} wires its managed objects together.
+ */
+@ExtendWith(DropwizardExtensionsSupport.class)
+class BiddingApplicationTest {
+
+    private static final DropwizardAppExtension<BiddingConfiguration> RULE = new DropwizardAppExtension<>(
+            BiddingApplication.class, ResourceHelpers.resourceFilePath("test-biddingapp.yml"),
+            ConfigOverride.config("database.url", "jdbc:h2:mem:lifecycle;MODE=LEGACY"),
+            ConfigOverride.config("spending.mode", "WRITE_BEHIND"),
+            ConfigOverride.config("bidSynchronizer.snapshotFile", "target/lifecycle-snapshot.bin"),
+            ConfigOverride.config("warmUp.bidCount", "0"));
+
+    /**
+     * The bid executor should be stopped first, so that the bids still running at shutdown are finished before the
+     * final flush of the spending and the final snapshot of the spending windows.
+     */
+    @Test
+    void bidExecutorIsStoppedBeforeTheStoresOfTheBids() {
+        List<Class<?>> stopOrder = new ArrayList<>();
+        for (LifeCycle lifeCycle : RULE.getEnvironment().lifecycle().getManagedObjects()) {
+            if (lifeCycle instanceof JettyManaged) {
+                Managed managed = ((JettyManaged) lifeCycle).getManaged();
+                stopOrder.add(managed.getClass());
+            }
+        }
+        // The managed objects are stopped in the reverse order of their registration.
+        Collections.reverse(stopOrder);
+
+        assertThat(stopOrder).contains(ExecutorServiceManager.class, SpendingLedger.class, SpendingWindowSnapshot.class);
+        assertThat(stopOrder.indexOf(ExecutorServiceManager.class))
+                .isLessThan(stopOrder.indexOf(SpendingLedger.class))
+                .isLessThan(stopOrder.indexOf(SpendingWindowSnapshot.class));
+    }
+}
@@ -0,0 +1,134 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.bendeguz.biddingapp.core.Money.toMicros;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CampaignCache}.
+ */
+class CampaignCacheTest {
+    private static final long TIME_TO_LIVE_IN_MILLISECONDS = 1000;
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private CampaignLoader campaignLoader;
+    private CampaignCache campaignCache;
+
+    @BeforeEach
+    void setUp() {
+        campaignLoader = mock(CampaignLoader.class);
+        campaignCache = new CampaignCache(campaignLoader, 2, TIME_TO_LIVE_IN_MILLISECONDS, nanoTime::get);
+    }
+
+    private static Campaign campaign(long id) {
+        Campaign campaign = new Campaign("Campaign " + id, new String[]{"Kobler"}, 100.0);
+        campaign.setId(id);
+        return campaign;
+    }
+
+    @Test
+    void loadsOnlyOnce() {
+        when(campaignLoader.load(1)).thenReturn(Optional.of(campaign(1)));
+
+        assertThat(campaignCache.get(1)).contains(campaign(1));
+        assertThat(campaignCache.get(1)).contains(campaign(1));
+
+        verify(campaignLoader, times(1)).load(1);
+        assertThat(campaignCache.stats().hitCount()).isEqualTo(1);
+        assertThat(campaignCache.stats().missCount()).isEqualTo(1);
+    }
+
+    /**
+     * A campaign that doesn't exist should not be cached, so that it can be found once it's created.
+     */
+    @Test
+    void doesNotCacheMissingCampaigns() {
+        when(campaignLoader.load(1)).thenReturn(Optional.empty());
+        assertThat(campaignCache.get(1)).isEmpty();
+
+        when(campaignLoader.load(1)).thenReturn(Optional.of(campaign(1)));
+        assertThat(campaignCache.get(1)).contains(campaign(1));
+        assertThat(campaignCache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void expiresAfterTimeToLive() {
+        when(campaignLoader.load(1)).thenReturn(Optional.of(campaign(1)));
+        campaignCache.get(1);
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(TIME_TO_LIVE_IN_MILLISECONDS));
+        campaignCache.get(1);
+
+        verify(campaignLoader, times(2)).load(1);
+    }
+
+    @Test
+    void evictsBeyondMaximumSize() {
+        when(campaignLoader.load(anyLong())).thenAnswer(invocation -> Optional.of(campaign(invocation.getArgument(0))));
+        campaignCache.get(1);
+        campaignCache.get(2);
+        campaignCache.get(3);
+
+        assertThat(campaignCache.size()).isEqualTo(2);
+        assertThat(campaignCache.stats().evictionCount()).isEqualTo(1);
+    }
+
+    /**
+     * The spending accepted by the wrapped store should be added to the cached campaign, without loading it again.
+     */
+    @Test
+    void refreshesSpending() {
+        SpendingStore spendingStore = mock(SpendingStore.class);
+        when(spendingStore.tryToIncreaseSpending(1, toMicros(1.0))).thenReturn(true);
+        when(spendingStore.tryToIncreaseSpending(1, toMicros(200.0))).thenReturn(false);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(spendingStore).runAfterCommit(any());
+        when(campaignLoader.load(1)).thenReturn(Optional.of(campaign(1)));
+        SpendingStore refreshingStore = campaignCache.refreshing(spendingStore);
+        campaignCache.get(1);
+
+        assertThat(refreshingStore.tryToIncreaseSpending(1, toMicros(1.0))).isTrue();
+        assertThat(refreshingStore.tryToIncreaseSpending(1, toMicros(200.0))).isFalse();
+
+        assertThat(campaignCache.get(1).get().getSpending()).isEqualTo(1.0);
+        verify(campaignLoader, times(1)).load(1);
+    }
+
+    /**
+     * The spending should only be added to the cached campaign once the wrapped store has committed it.
+     */
+    @Test
+    void refreshesSpendingAfterCommit() {
+        SpendingStore spendingStore = mock(SpendingStore.class);
+        when(spendingStore.tryToIncreaseSpending(1, toMicros(1.0))).thenReturn(true);
+        when(campaignLoader.load(1)).thenReturn(Optional.of(campaign(1)));
+        SpendingStore refreshingStore = campaignCache.refreshing(spendingStore);
+        campaignCache.get(1);
+
+        assertThat(refreshingStore.tryToIncreaseSpending(1, toMicros(1.0))).isTrue();
+        ArgumentCaptor<Runnable> afterCommit = ArgumentCaptor.forClass(Runnable.class);
+        verify(spendingStore).runAfterCommit(afterCommit.capture());
+        assertThat(campaignCache.get(1).get().getSpending()).isEqualTo(0.0);
+
+        afterCommit.getValue().run();
+        assertThat(campaignCache.get(1).get().getSpending()).isEqualTo(1.0);
+    }
+}
@@ -0,0 +1,130 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.api.BidParam;
+import com.bendeguz.biddingapp.api.CampaignParam;
+import io.dropwizard.testing.ConfigOverride;
+import io.dropwizard.testing.ResourceHelpers;
+import io.dropwizard.testing.junit5.DropwizardAppExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.h2.tools.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests two instances of the application in {@code SHARED} mode, using the same database on an H2 server.
+ */
+@ExtendWith(DropwizardExtensionsSupport.class)
+class ClusterIntegrationTest {
+
+    private static final String CONFIG_PATH = ResourceHelpers.resourceFilePath("test-biddingapp.yml");
+    private static final Server SERVER = startServer();
+    private static final String DATABASE_URL = "jdbc:h2:tcp://localhost:" + SERVER.getPort() +
+            "/mem:cluster;MODE=LEGACY;DB_CLOSE_DELAY=-1";
+
+    static {
+        // The campaign has to exist before the applications start, so that both load it into their keyword index.
+        migrateDbAndCreateCampaign();
+    }
+
+    private static final DropwizardAppExtension<BiddingConfiguration> INSTANCE_1 = createInstance();
+    private static final DropwizardAppExtension<BiddingConfiguration> INSTANCE_2 = createInstance();
+
+    private static Server startServer() {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            int port = serverSocket.getLocalPort();
+            serverSocket.close();
+            return Server.createTcpServer("-tcpPort", String.valueOf(port), "-ifNotExists").start();
+        } catch (IOException | SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void migrateDbAndCreateCampaign() {
+        try (Connection connection = DriverManager.getConnection(DATABASE_URL, "sa", "sa")) {
+            new Liquibase("migrations.xml", new ClassLoaderResourceAccessor(), new JdbcConnection(connection))
+                    .update("");
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO campaigns (id, name, budget, spending) VALUES (1, 'Cluster', 400000000, 0)");
+                statement.executeUpdate("INSERT INTO keyword_dictionary (id, keyword) VALUES (1, 'Cluster Keyword')");
+                statement.executeUpdate("INSERT INTO campaign_keywords (keyword_id, campaign_id) VALUES (1, 1)");
+            }
+            // Liquibase turns off auto-commit.
+            connection.commit();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DropwizardAppExtension<BiddingConfiguration> createInstance() {
+        return new DropwizardAppExtension<>(BiddingApplication.class, CONFIG_PATH,
+                ConfigOverride.config("database.url", DATABASE_URL),
+                ConfigOverride.config("bidSynchronizer.mode", "SHARED"),
+                ConfigOverride.config("keywordIndex.refreshInterval", "100ms"));
+    }
+
+    @AfterAll
+    static void stopServer() {
+        SERVER.stop();
+    }
+
+    /**
+     * Tests that the instances together don't spend more than 10 NOK on a campaign in 10 seconds, even though
+     * each of them spends less than that.
+     */
+    @Test
+    void maximumSpendingPer10SecIsShared() {
+        int successfulBids = 0;
+        for (int i = 0; i < 20; i++) {
+            DropwizardAppExtension<BiddingConfiguration> instance = i % 2 == 0 ? INSTANCE_1 : INSTANCE_2;
+            Response response = instance.client().target("http://localhost:" + instance.getLocalPort() + "/bids")
+                    .request()
+                    .post(Entity.entity(new BidParam(i, new String[]{"Cluster Keyword"}), MediaType.APPLICATION_JSON_TYPE));
+            if (response.getStatusInfo().equals(Response.Status.OK)) {
+                successfulBids++;
+            } else {
+                assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+            }
+        }
+        assertThat(successfulBids).isEqualTo(10);
+    }
+
+    /**
+     * A campaign created through one instance should be found by the other one too, once it refreshes its keyword index.
+     */
+    @Test
+    void campaignCreatedThroughOtherInstanceIsMatched() throws InterruptedException {
+        Response createResponse = INSTANCE_1.client().target("http://localhost:" + INSTANCE_1.getLocalPort() + "/campaigns")
+                .request()
+                .post(Entity.entity(new CampaignParam("Created Later", new String[]{"Created Later Keyword"}, 100.0),
+                        MediaType.APPLICATION_JSON_TYPE));
+        assertThat(createResponse.getStatusInfo()).isEqualTo(Response.Status.CREATED);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        Response response;
+        do {
+            Thread.sleep(50);
+            response = INSTANCE_2.client().target("http://localhost:" + INSTANCE_2.getLocalPort() + "/bids")
+                    .request()
+                    .post(Entity.entity(new BidParam(100, new String[]{"Created Later Keyword"}), MediaType.APPLICATION_JSON_TYPE));
+        } while (!response.getStatusInfo().equals(Response.Status.OK) && System.nanoTime() - deadline < 0);
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+    }
+}
@@ -17,6 +17,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -28,7 +29,7 @@ class IntegrationTest {
 
     private static final DropwizardAppExtension<BiddingConfiguration> RULE = new DropwizardAppExtension<>(
             BiddingApplication.class, CONFIG_PATH,
-            ConfigOverride.config("database.url", "jdbc:h2:" + TMP_FILE));
+            ConfigOverride.config("database.url", "jdbc:h2:" + TMP_FILE + ";MODE=LEGACY"));
 
     @BeforeAll
     static void migrateDb() throws Exception {
@@ -149,6 +150,24 @@ class IntegrationTest {
         assertThat(failedBidResponse.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
     }
 
+    /**
+     * The warm-up health check should become healthy once the synthetic bids are done.
+     */
+    @Test
+    void testWarmUpHealthCheck() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        Response response;
+        do {
+            Thread.sleep(100);
+            response = RULE.client().target("http://localhost:" + RULE.getAdminPort() + "/healthcheck")
+                    .request()
+                    .get();
+        } while (!response.getStatusInfo().equals(Response.Status.OK) && System.nanoTime() - deadline < 0);
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        assertThat(response.readEntity(String.class)).contains("warm-up");
+    }
+
     private Response createBid(BidParam bidParam){
         return RULE.client().target("http://localhost:" + RULE.getLocalPort() + "/bids")
                 .request()
@@ -0,0 +1,174 @@
+package com.bendeguz.biddingapp;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for {@link KeywordIndex}.
+ */
+class KeywordIndexTest {
+
+    private KeywordIndex keywordIndex;
+
+    @BeforeEach
+    void setUp() {
+        keywordIndex = new KeywordIndex();
+    }
+
+    /**
+     * Removed campaigns should be listed, and restored with their original keywords.
+     */
+    @Test
+    void restoreCampaigns() {
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler"));
+        keywordIndex.addCampaign(2, Arrays.asList("Kobler"));
+        keywordIndex.addRemovedCampaigns(Arrays.asList(new Campaign("Test Campaign", new String[]{"Contextual"}, 100.0)));
+        keywordIndex.removeCampaign(1);
+
+        assertThat(keywordIndex.getRemovedCampaignIds()).containsOnly(0L, 1L);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"})).containsOnly(2L);
+
+        keywordIndex.restoreCampaigns(Arrays.asList(0L, 1L, 3L));
+        assertThat(keywordIndex.getRemovedCampaignIds()).isEmpty();
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"})).containsOnly(0L, 1L, 2L);
+        assertThat(keywordIndex.containsCampaign(3)).isFalse();
+    }
+
+    /**
+     * Exhausted keywords should be remembered until the specified time, or until a campaign is added.
+     */
+    @Test
+    void exhaustedKeywords() {
+        AtomicLong nanos = new AtomicLong();
+        KeywordIndex keywordIndex = new KeywordIndex(nanos::get);
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler", "Contextual"));
+
+        keywordIndex.markExhausted(new String[]{"Kobler", "Contextual"}, keywordIndex.getVersion(), 1000);
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler", "Contextual"})).isTrue();
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler"})).isFalse();
+        nanos.set(1000);
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler", "Contextual"})).isFalse();
+
+        keywordIndex.markExhausted(new String[]{"Kobler"}, keywordIndex.getVersion(), 1000);
+        keywordIndex.removeCampaign(1);
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler"})).isTrue();
+        keywordIndex.addCampaign(2, Arrays.asList("Keyword"));
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler"})).isFalse();
+    }
+
+    /**
+     * A mark computed from candidates looked up before a campaign was added should be ignored, the new campaign
+     * may accept the bids.
+     */
+    @Test
+    void exhaustedKeywordsOfStaleCandidates() {
+        KeywordIndex keywordIndex = new KeywordIndex(() -> 0);
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler"));
+        long version = keywordIndex.getVersion();
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler"})).containsOnly(1L);
+
+        keywordIndex.addCampaign(2, Arrays.asList("Kobler"));
+        keywordIndex.markExhausted(new String[]{"Kobler"}, version, 1000);
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler"})).isFalse();
+
+        keywordIndex.markExhausted(new String[]{"Kobler"}, keywordIndex.getVersion(), 1000);
+        assertThat(keywordIndex.isExhausted(new String[]{"Kobler"})).isTrue();
+    }
+
+    /**
+     * Campaigns matching several of the keywords should only be returned once.
+     */
+    @Test
+    void findByMultipleKeywords() {
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler", "Contextual"));
+        keywordIndex.addCampaign(2, Arrays.asList("Kobler 2", "Keyword"));
+        keywordIndex.addCampaign(3, Arrays.asList("Kobler"));
+
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"})).containsOnly(1L, 3L);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Keyword", "Non Existent Keyword"})).containsOnly(2L);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Non Existent Keyword"})).isEmpty();
+    }
+
+    /**
+     * Only the available campaigns should count as a match.
+     */
+    @Test
+    void hasCampaignsWithKeywords() {
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler", "Contextual"));
+        keywordIndex.addCampaign(2, Arrays.asList("Keyword"));
+        keywordIndex.removeCampaign(2);
+
+        assertThat(keywordIndex.hasCampaignsWithKeywords(new String[]{"Non Existent Keyword", null, "Contextual"})).isTrue();
+        assertThat(keywordIndex.hasCampaignsWithKeywords(new String[]{"Keyword", "Non Existent Keyword"})).isFalse();
+        assertThat(keywordIndex.hasCampaignsWithKeywords(new String[0])).isFalse();
+    }
+
+    @Test
+    void removeCampaign() {
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler", "Contextual"));
+        keywordIndex.addCampaign(2, Arrays.asList("Kobler"));
+
+        keywordIndex.removeCampaign(1);
+        keywordIndex.removeCampaign(4);
+
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"})).containsOnly(2L);
+        assertThat(keywordIndex.size()).isEqualTo(1);
+    }
+
+    /**
+     * Campaigns without a positive balance should never become candidates.
+     */
+    @Test
+    void addCampaignWithoutBalance() {
+        Campaign campaign = new Campaign("Test Campaign", new String[]{"Kobler"}, 100.0);
+        campaign.setSpending(100.0);
+
+        keywordIndex.addCampaign(campaign);
+
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler"})).isEmpty();
+    }
+
+    /**
+     * A campaign that was removed should become a candidate again when it's added again.
+     */
+    @Test
+    void addRemovedCampaign() {
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler"));
+        keywordIndex.removeCampaign(1);
+        keywordIndex.addCampaign(1, Arrays.asList("Kobler"));
+
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler"})).containsExactly(1L);
+        assertThat(keywordIndex.size()).isEqualTo(1);
+    }
+
+    /**
+     * Lookups should work the same way with many campaigns, added in bulk and one by one.
+     */
+    @Test
+    void manyCampaigns() {
+        List<Campaign> campaigns = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            Campaign campaign = new Campaign("Campaign " + id, new String[]{"Keyword " + id % 3, "Common"}, 10.0);
+            campaign.setId(id);
+            campaigns.add(campaign);
+        }
+        keywordIndex.addCampaigns(campaigns);
+        keywordIndex.addCampaign(5000, Arrays.asList("Keyword 0"));
+
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Keyword 0", "Keyword 1"}))
+                .hasSize(2001)
+                .doesNotHaveDuplicates()
+                .contains(3000L, 1L, 5000L)
+                .doesNotContain(2L);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Common", "Keyword 2"})).hasSize(3000);
+        assertThat(keywordIndex.size()).isEqualTo(3001);
+    }
+}
@@ -0,0 +1,83 @@
+package com.bendeguz.biddingapp;
+
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of the database migrations in {@code migrations.xml}.
+ */
+class MigrationsTest {
+
+    /**
+     * Campaigns created before the money columns were changed to micro-NOK should keep their budget and spending.
+     */
+    @Test
+    void moneyIsMigratedToMicros() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:migrations;MODE=LEGACY")) {
+            Liquibase liquibase = new Liquibase("migrations.xml", new ClassLoaderResourceAccessor(),
+                    new JdbcConnection(connection));
+            liquibase.update(1, "");
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO campaigns (name, budget, spending) VALUES ('Campaign', 100.5, 0.1)");
+            }
+            // Liquibase turns off auto-commit, the data has to be committed before the next migration.
+            connection.commit();
+
+            liquibase.update("");
+
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT budget, spending FROM campaigns")) {
+                assertThat(resultSet.next()).isTrue();
+                assertThat(resultSet.getObject(1)).isEqualTo(100_500_000L);
+                assertThat(resultSet.getObject(2)).isEqualTo(100_000L);
+            }
+        }
+    }
+
+    /**
+     * The keywords of existing campaigns should be moved to the keyword dictionary, every distinct keyword only once.
+     */
+    @Test
+    void keywordsAreMovedToDictionary() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:keyword-migrations;MODE=LEGACY")) {
+            Liquibase liquibase = new Liquibase("migrations.xml", new ClassLoaderResourceAccessor(),
+                    new JdbcConnection(connection));
+            liquibase.update(2, "");
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO campaigns (id, name, budget, spending) VALUES (1, 'Campaign 1', 10, 0)");
+                statement.executeUpdate("INSERT INTO campaigns (id, name, budget, spending) VALUES (2, 'Campaign 2', 10, 10)");
+                statement.executeUpdate("INSERT INTO keywords (campaign_id, keyword) VALUES (1, 'Kobler'), (1, 'Contextual'), (2, 'Kobler')");
+            }
+            connection.commit();
+
+            liquibase.update("");
+
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM keyword_dictionary")) {
+                assertThat(resultSet.next()).isTrue();
+                assertThat(resultSet.getInt(1)).isEqualTo(2);
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT c.id, c.balance FROM campaign_keywords ck " +
+                         "JOIN keyword_dictionary d ON d.id = ck.keyword_id JOIN campaigns c ON c.id = ck.campaign_id " +
+                         "WHERE d.keyword = 'Kobler' ORDER BY c.id")) {
+                assertThat(resultSet.next()).isTrue();
+                assertThat(resultSet.getLong(1)).isEqualTo(1);
+                assertThat(resultSet.getLong(2)).isEqualTo(10);
+                assertThat(resultSet.next()).isTrue();
+                assertThat(resultSet.getLong(1)).isEqualTo(2);
+                assertThat(resultSet.getLong(2)).isEqualTo(0);
+                assertThat(resultSet.next()).isFalse();
+            }
+        }
+    }
+}
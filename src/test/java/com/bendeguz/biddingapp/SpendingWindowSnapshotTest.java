@@ -0,0 +1,97 @@
+package com.bendeguz.biddingapp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.bendeguz.biddingapp.core.Money.toMicros;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for {@link SpendingWindowSnapshot}.
+ */
+class SpendingWindowSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    private final AtomicLong milliseconds = new AtomicLong(System.currentTimeMillis());
+
+    private SpendingWindowSnapshot createSnapshot(BidSynchronizer bidSynchronizer) {
+        return new SpendingWindowSnapshot(bidSynchronizer, directory.resolve("spending-windows.snapshot"), 1000,
+                milliseconds::get);
+    }
+
+    /**
+     * A restarted instance should remember the spending of the past 10 seconds, in both modes with local windows.
+     */
+    @Test
+    void spendingIsRestored() throws Exception {
+        for (BidSynchronizer.Mode mode : EnumSet.of(BidSynchronizer.Mode.LOCKING, BidSynchronizer.Mode.LOCK_FREE)) {
+            BidSynchronizer bidSynchronizer = new BidSynchronizer(mode);
+            assertThat(bidSynchronizer.tryToSpendOnCampaign(1, toMicros(3))).isTrue();
+            assertThat(bidSynchronizer.tryToSpendOnCampaign(1, toMicros(4))).isTrue();
+            assertThat(bidSynchronizer.tryToSpendOnCampaign(2, toMicros(10))).isTrue();
+            createSnapshot(bidSynchronizer).write();
+
+            BidSynchronizer restartedBidSynchronizer = new BidSynchronizer(mode);
+            // The buckets of LOCK_FREE mode may merge the two spendings on campaign 1.
+            assertThat(createSnapshot(restartedBidSynchronizer).restore()).as("restored spendings in %s mode", mode)
+                    .isBetween(2, 3);
+
+            assertThat(restartedBidSynchronizer.getHeadroom(1)).isEqualTo(toMicros(3));
+            assertThat(restartedBidSynchronizer.tryToSpendOnCampaign(2, toMicros(1))).isFalse();
+            assertThat(restartedBidSynchronizer.tryToSpendOnCampaign(1, toMicros(3))).isTrue();
+            assertThat(restartedBidSynchronizer.tryToSpendOnCampaign(1, toMicros(1))).isFalse();
+        }
+    }
+
+    /**
+     * The time between the snapshot and the restart counts towards the age of the spendings.
+     */
+    @Test
+    void spendingExpiresDuringRestart() throws Exception {
+        BidSynchronizer bidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE);
+        assertThat(bidSynchronizer.tryToSpendOnCampaign(1, toMicros(10))).isTrue();
+        createSnapshot(bidSynchronizer).write();
+
+        milliseconds.addAndGet(11_000);
+        BidSynchronizer restartedBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE);
+        createSnapshot(restartedBidSynchronizer).restore();
+
+        assertThat(restartedBidSynchronizer.getCampaignCount()).isZero();
+        assertThat(restartedBidSynchronizer.tryToSpendOnCampaign(1, toMicros(10))).isTrue();
+    }
+
+    /**
+     * A missing or damaged snapshot should be ignored.
+     */
+    @Test
+    void invalidSnapshotIsIgnored() throws Exception {
+        BidSynchronizer bidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE);
+        assertThat(createSnapshot(bidSynchronizer).restore()).isZero();
+
+        assertThat(bidSynchronizer.tryToSpendOnCampaign(1, toMicros(10))).isTrue();
+        createSnapshot(bidSynchronizer).write();
+        damage(directory.resolve("spending-windows.snapshot"));
+
+        BidSynchronizer restartedBidSynchronizer = new BidSynchronizer(BidSynchronizer.Mode.LOCK_FREE);
+        assertThat(createSnapshot(restartedBidSynchronizer).restore()).isZero();
+        assertThat(restartedBidSynchronizer.getCampaignCount()).isZero();
+    }
+
+    private static void damage(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int last = (int) channel.size() - 1;
+            buffer.put(last, (byte) (buffer.get(last) ^ 1));
+        }
+    }
+}
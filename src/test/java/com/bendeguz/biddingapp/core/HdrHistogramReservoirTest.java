@@ -0,0 +1,80 @@
+package com.bendeguz.biddingapp.core;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Unit tests for {@link HdrHistogramReservoir}.
+ */
+class HdrHistogramReservoirTest {
+
+    private AtomicLong nanos;
+    private HdrHistogramReservoir reservoir;
+
+    @BeforeEach
+    void setUp() {
+        nanos = new AtomicLong();
+        Clock clock = new Clock() {
+            @Override
+            public long getTick() {
+                return nanos.get();
+            }
+        };
+        reservoir = new HdrHistogramReservoir(1000, 1, TimeUnit.MINUTES, clock);
+    }
+
+    /**
+     * The statistics of a snapshot should match the recorded values within the precision of the histogram, and
+     * values out of range should be recorded at the edges of it.
+     */
+    @Test
+    void snapshot() {
+        for (long value = 1; value <= 100; value++) {
+            reservoir.update(value);
+        }
+        reservoir.update(-1);
+        reservoir.update(5000);
+
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(102);
+        assertThat(snapshot.getMin()).isEqualTo(0);
+        assertThat(snapshot.getMax()).isBetween(1000L, 1010L);
+        assertThat(snapshot.getMedian()).isCloseTo(51, within(1.0));
+        assertThat(snapshot.get99thPercentile()).isCloseTo(100, within(1.0));
+        assertThat(snapshot.getValues()).hasSize(102).startsWith(0, 1, 2);
+    }
+
+    /**
+     * A snapshot should contain the values of the current and the previous window only.
+     */
+    @Test
+    void windows() {
+        reservoir.update(10);
+        assertThat(reservoir.getSnapshot().size()).isEqualTo(1);
+
+        nanos.set(TimeUnit.MINUTES.toNanos(1));
+        reservoir.update(20);
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(2);
+        assertThat(snapshot.getMin()).isEqualTo(10);
+
+        nanos.set(TimeUnit.MINUTES.toNanos(2));
+        snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(1);
+        assertThat(snapshot.getMin()).isEqualTo(20);
+
+        nanos.set(TimeUnit.MINUTES.toNanos(3));
+        snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(0);
+        assertThat(snapshot.getMax()).isEqualTo(0);
+        assertThat(snapshot.getMean()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,253 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.KeywordIndex;
+import com.bendeguz.biddingapp.KeywordIndexRefresher;
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
+import io.dropwizard.testing.junit5.DAOTestExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import org.hibernate.Session;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.bendeguz.biddingapp.core.Money.toMicros;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for {@link BudgetLeaseStore}.
+ */
+@ExtendWith(DropwizardExtensionsSupport.class)
+class BudgetLeaseStoreTest {
+
+    private final DAOTestExtension daoTestRule = DAOTestExtension.newBuilder()
+            .setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=LEGACY")
+            .addEntityClass(Campaign.class)
+            .addEntityClass(Keyword.class)
+            .build();
+
+    private final AtomicLong nanoTime = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+    private CampaignDAO campaignDAO;
+
+    @BeforeEach
+    void setUp() {
+        campaignDAO = new CampaignDAO(daoTestRule.getSessionFactory());
+    }
+
+    private BudgetLeaseStore createBudgetLeaseStore() {
+        return createBudgetLeaseStore(toMicros(5));
+    }
+
+    private BudgetLeaseStore createBudgetLeaseStore(long leaseSize) {
+        BudgetLeaseStore budgetLeaseStore = new BudgetLeaseStore(daoTestRule.getSessionFactory(), leaseSize, 10_000, nanoTime::get);
+        budgetLeaseStore.start();
+        return budgetLeaseStore;
+    }
+
+    private double getSpendingFromDatabase(long campaignId) {
+        try (Session session = daoTestRule.getSessionFactory().openSession()) {
+            return session.get(Campaign.class, campaignId).getSpending();
+        }
+    }
+
+    /**
+     * The first bid reserves a whole lease, the following ones are served from it. When the lease runs out,
+     * the next one is limited by the campaign's remaining balance.
+     */
+    @Test
+    void bidsAreServedFromLease() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 8.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore();
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(5.0);
+        for (int i = 0; i < 7; i++) {
+            assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        }
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(8.0);
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+
+        budgetLeaseStore.stop();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(8.0);
+    }
+
+    /**
+     * The unused part of a lease is given back when the application stops, or when the lease expires.
+     */
+    @Test
+    void unusedLeaseIsGivenBack() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 100.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore();
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(7.0);
+
+        budgetLeaseStore.stop();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(3.0);
+    }
+
+    /**
+     * A lease smaller than a bid should reserve the amount of the bid instead of refusing it.
+     */
+    @Test
+    void leaseSmallerThanBid() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 2.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore(toMicros(0.5));
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(1.0);
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+
+        budgetLeaseStore.stop();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(2.0);
+    }
+
+    /**
+     * Once the store is stopped, the bids should be refused without taking a new lease.
+     */
+    @Test
+    void noLeaseIsTakenAfterStop() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 100.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore();
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        budgetLeaseStore.stop();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(1.0);
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(1.0);
+    }
+
+    /**
+     * Concurrent bids on the same campaign, renewing its lease outside of its monitor, should spend exactly the budget.
+     */
+    @Test
+    void concurrentRenewals() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 50.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore(toMicros(2));
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> {
+                    int successfulBids = 0;
+                    for (int j = 0; j < 10; j++) {
+                        successfulBids += budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0)) ? 1 : 0;
+                    }
+                    return successfulBids;
+                }));
+            }
+            int successfulBids = 0;
+            for (Future<Integer> future : futures) {
+                successfulBids += future.get(30, TimeUnit.SECONDS);
+            }
+            budgetLeaseStore.stop();
+
+            assertThat(successfulBids).isEqualTo(50);
+            assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(50.0);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Two nodes sharing the same database should never spend more than the budget together.
+     */
+    @Test
+    void multipleNodes() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 12.0)));
+        BudgetLeaseStore budgetLeaseStore1 = createBudgetLeaseStore();
+        BudgetLeaseStore budgetLeaseStore2 = createBudgetLeaseStore();
+
+        int successfulBids = 0;
+        for (int i = 0; i < 10; i++) {
+            successfulBids += budgetLeaseStore1.tryToIncreaseSpending(campaign.getId(), toMicros(1.0)) ? 1 : 0;
+            successfulBids += budgetLeaseStore2.tryToIncreaseSpending(campaign.getId(), toMicros(1.0)) ? 1 : 0;
+        }
+        budgetLeaseStore1.stop();
+        budgetLeaseStore2.stop();
+
+        assertThat(successfulBids).isEqualTo(12);
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(12.0);
+    }
+
+    /**
+     * A campaign whose balance is leased by another node refuses the bids, and it's removed from the keyword index,
+     * or it's not even loaded into it. It should be a candidate again once the other node gives back its lease.
+     */
+    @Test
+    void refusedCampaignIsRestoredWhenLeaseIsGivenBack() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 5.0)));
+        final Campaign leasedCampaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign 2", new String[]{"Contextual"}, 5.0)));
+        BudgetLeaseStore budgetLeaseStore1 = createBudgetLeaseStore();
+        BudgetLeaseStore budgetLeaseStore2 = createBudgetLeaseStore();
+        KeywordIndex keywordIndex = new KeywordIndex();
+        keywordIndex.addCampaign(campaign.getId(), campaign.getKeywords());
+        KeywordIndexRefresher keywordIndexRefresher = new KeywordIndexRefresher(campaignDAO, keywordIndex, 1000, true);
+
+        assertThat(budgetLeaseStore1.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(budgetLeaseStore1.tryToIncreaseSpending(leasedCampaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(budgetLeaseStore2.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+        keywordIndex.removeCampaign(campaign.getId());
+        keywordIndexRefresher.refresh();
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"})).isEmpty();
+
+        budgetLeaseStore1.stop();
+        // Both campaigns have been checked once already, so they are checked again by the second refresh.
+        assertThat(keywordIndexRefresher.refresh()).isEqualTo(0);
+        assertThat(keywordIndexRefresher.refresh()).isEqualTo(2);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler", "Contextual"}))
+                .containsOnly(campaign.getId(), leasedCampaign.getId());
+        assertThat(budgetLeaseStore2.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(budgetLeaseStore2.tryToIncreaseSpending(leasedCampaign.getId(), toMicros(1.0))).isTrue();
+        budgetLeaseStore2.stop();
+    }
+
+    /**
+     * A removed campaign that has not got its balance back should be checked after twice as many refreshes each time.
+     */
+    @Test
+    void removedCampaignIsCheckedWithBackoff() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 5.0)));
+        BudgetLeaseStore budgetLeaseStore = createBudgetLeaseStore();
+        KeywordIndex keywordIndex = new KeywordIndex();
+        keywordIndex.addCampaign(campaign.getId(), campaign.getKeywords());
+        KeywordIndexRefresher keywordIndexRefresher = new KeywordIndexRefresher(campaignDAO, keywordIndex, 1000, true);
+
+        assertThat(budgetLeaseStore.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        keywordIndex.removeCampaign(campaign.getId());
+        // Checked by the first and the third refresh, without balance.
+        for (int i = 0; i < 3; i++) {
+            assertThat(keywordIndexRefresher.refresh()).isEqualTo(0);
+        }
+        budgetLeaseStore.stop();
+        // Not checked again until the seventh refresh.
+        for (int i = 0; i < 3; i++) {
+            assertThat(keywordIndexRefresher.refresh()).isEqualTo(0);
+        }
+        assertThat(keywordIndexRefresher.refresh()).isEqualTo(1);
+        assertThat(keywordIndex.findCampaignIdsByKeywords(new String[]{"Kobler"})).containsOnly(campaign.getId());
+    }
+}
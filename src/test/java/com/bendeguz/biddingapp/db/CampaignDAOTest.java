@@ -1,16 +1,32 @@
 package com.bendeguz.biddingapp.db;
 
 import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
 import io.dropwizard.testing.junit5.DAOTestExtension;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.context.internal.ManagedSessionContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
 import javax.validation.ConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static com.bendeguz.biddingapp.core.Money.toMicros;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
@@ -21,7 +37,9 @@ import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 class CampaignDAOTest {
 
     private final DAOTestExtension daoTestRule = DAOTestExtension.newBuilder()
+            .setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=LEGACY")
             .addEntityClass(Campaign.class)
+            .addEntityClass(Keyword.class)
             .build();
 
     private CampaignDAO campaignDAO;
@@ -43,6 +61,23 @@ class CampaignDAOTest {
         assertThat(campaignDAO.findById(testCampaign.getId())).isEqualTo(Optional.of(testCampaign));
     }
 
+    /**
+     * The keywords of the campaign should be usable after the session is closed.
+     */
+    @Test
+    void findByIdWithKeywords() {
+        final Campaign testCampaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0)));
+        daoTestRule.getSessionFactory().getCurrentSession().clear();
+
+        final Optional<Campaign> campaign = campaignDAO.findByIdWithKeywords(testCampaign.getId());
+        daoTestRule.getSessionFactory().getCurrentSession().clear();
+
+        assertThat(campaign).contains(testCampaign);
+        assertThat(campaign.get().getKeywords()).containsOnly("Kobler", "Contextual");
+        assertThat(campaignDAO.findByIdWithKeywords(testCampaign.getId() + 1)).isEmpty();
+    }
+
     @Test
     void findAll() {
         daoTestRule.inTransaction(() -> {
@@ -58,6 +93,138 @@ class CampaignDAOTest {
         assertThat(campaigns).extracting("spending").containsOnly(0.0);
     }
 
+    @Test
+    void findPage() {
+        final List<Campaign> created = daoTestRule.inTransaction(() -> Arrays.asList(
+                campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0)),
+                campaignDAO.create(new Campaign("Test Campaign 2", new String[]{"Kobler"}, 1200.0)),
+                campaignDAO.create(new Campaign("Test", new String[]{"Contextual"}, 100.0))));
+
+        final List<Campaign> firstPage = campaignDAO.findPage(0, 2);
+        assertThat(firstPage).extracting("name").containsExactly("Test Campaign", "Test Campaign 2");
+        assertThat(firstPage.get(0).getKeywords()).containsOnly("Kobler", "Contextual");
+
+        final List<Campaign> secondPage = campaignDAO.findPage(firstPage.get(1).getId(), 2);
+        assertThat(secondPage).extracting("name").containsExactly("Test");
+        assertThat(campaignDAO.findPage(created.get(2).getId(), 2)).isEmpty();
+    }
+
+    /**
+     * The campaigns should be read in a session of their own, with all of their keywords, even though every row of
+     * the cursor holds only one keyword.
+     */
+    @Test
+    void forEachCampaign() {
+        final Campaign first = daoTestRule.inTransaction(() -> {
+            Campaign campaign = campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0));
+            campaignDAO.create(new Campaign("Test Campaign 2", new String[]{"Kobler"}, 1200.0));
+            campaignDAO.create(new Campaign("Test", new String[]{"Contextual", "Keyword", "Kobler"}, 100.0));
+            return campaign;
+        });
+
+        final List<Campaign> campaigns = new ArrayList<>();
+        campaignDAO.forEachCampaign(0, campaigns::add);
+        assertThat(campaigns).extracting("name").containsExactly("Test Campaign", "Test Campaign 2", "Test");
+        assertThat(campaigns.get(0).getKeywords()).containsOnly("Kobler", "Contextual");
+        assertThat(campaigns.get(2).getKeywords()).containsOnly("Contextual", "Keyword", "Kobler");
+
+        campaigns.clear();
+        campaignDAO.forEachCampaign(first.getId(), campaigns::add);
+        assertThat(campaigns).extracting("name").containsExactly("Test Campaign 2", "Test");
+    }
+
+    @Test
+    void findAllWithPositiveBalance() {
+        daoTestRule.inTransaction(() -> {
+            campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0));
+            Campaign campaign = new Campaign("Test Campaign 2", new String[]{"Kobler"}, 1200.0);
+            campaign.setSpending(1200.0);
+            campaignDAO.create(campaign);
+        });
+
+        final List<Campaign> campaigns = campaignDAO.findAllWithPositiveBalance();
+        assertThat(campaigns).extracting("name").containsExactly("Test Campaign");
+        assertThat(campaigns).flatExtracting("keywords").containsOnly("Kobler", "Contextual");
+    }
+
+    /**
+     * The IDs and the keywords of the campaigns with a positive balance should be read, including the campaigns
+     * without keywords.
+     */
+    @Test
+    void forEachCampaignKeywords() {
+        final List<Campaign> created = daoTestRule.inTransaction(() -> {
+            Campaign campaign = campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0));
+            Campaign spentCampaign = new Campaign("Test Campaign 2", new String[]{"Kobler"}, 1200.0);
+            spentCampaign.setSpending(1200.0);
+            campaignDAO.create(spentCampaign);
+            Campaign campaignWithoutKeywords = campaignDAO.create(new Campaign("Test", new String[]{}, 100.0));
+            return Arrays.asList(campaign, campaignWithoutKeywords);
+        });
+
+        final Map<Long, List<String>> keywordsByCampaignId = new LinkedHashMap<>();
+        campaignDAO.forEachCampaignKeywords(keywordsByCampaignId::put);
+        assertThat(keywordsByCampaignId).containsOnlyKeys(created.get(0).getId(), created.get(1).getId());
+        assertThat(keywordsByCampaignId.get(created.get(0).getId())).containsExactlyInAnyOrder("Kobler", "Contextual");
+        assertThat(keywordsByCampaignId.get(created.get(1).getId())).isEmpty();
+    }
+
+    /**
+     * A keyword shared by several campaigns should be stored only once in the keyword dictionary.
+     */
+    @Test
+    void keywordsAreStoredOnce() {
+        daoTestRule.inTransaction(() -> {
+            campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0));
+            campaignDAO.create(new Campaign("Test Campaign 2", new String[]{"Kobler"}, 1200.0));
+        });
+
+        final List<Keyword> keywords = daoTestRule.getSessionFactory().getCurrentSession()
+                .createQuery("SELECT k FROM Keyword k", Keyword.class).list();
+        assertThat(keywords).extracting("keyword").containsExactlyInAnyOrder("Kobler", "Contextual");
+    }
+
+    /**
+     * Campaigns with the same new keyword should be created concurrently without failing on the unique index of the
+     * keyword dictionary, and the keyword should be stored only once.
+     */
+    @Test
+    void concurrentCreationWithNewKeyword() throws Exception {
+        int campaignCount = 8;
+        SessionFactory sessionFactory = daoTestRule.getSessionFactory();
+        ExecutorService executorService = Executors.newFixedThreadPool(campaignCount);
+        CyclicBarrier barrier = new CyclicBarrier(campaignCount);
+        List<Future<Campaign>> campaigns = new ArrayList<>();
+        try {
+            for (int i = 0; i < campaignCount; i++) {
+                String name = "Test Campaign " + i;
+                campaigns.add(executorService.submit(() -> {
+                    try (Session session = sessionFactory.openSession()) {
+                        ManagedSessionContext.bind(session);
+                        try {
+                            Transaction transaction = session.beginTransaction();
+                            barrier.await();
+                            Campaign campaign = campaignDAO.create(new Campaign(name, new String[]{"New Keyword"}, 10.0));
+                            transaction.commit();
+                            return campaign;
+                        } finally {
+                            ManagedSessionContext.unbind(sessionFactory);
+                        }
+                    }
+                }));
+            }
+            for (Future<Campaign> campaign : campaigns) {
+                assertThat(campaign.get(10, TimeUnit.SECONDS).getKeywords()).containsOnly("New Keyword");
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        final List<Keyword> keywords = sessionFactory.getCurrentSession()
+                .createQuery("SELECT k FROM Keyword k", Keyword.class).list();
+        assertThat(keywords).extracting("keyword").containsExactly("New Keyword");
+    }
+
     @Test
     void handlesNullName() {
         assertThatExceptionOfType(ConstraintViolationException.class).isThrownBy(() ->
@@ -108,7 +275,7 @@ class CampaignDAOTest {
                 () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 1000.0)));
 
         boolean result = daoTestRule.inTransaction(
-                () -> campaignDAO.tryToIncreaseSpending(testCampaign, 5.0));
+                () -> campaignDAO.tryToIncreaseSpending(testCampaign, toMicros(5.0)));
         assertThat(result).isTrue();
         // Unfortunately, the update is not reflected in any subsequent test queries - this is the test framework's fault,
         // it works when trying on the deployed app.
@@ -120,7 +287,7 @@ class CampaignDAOTest {
                 () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler", "Contextual"}, 5.0)));
 
         boolean result = daoTestRule.inTransaction(
-                () -> campaignDAO.tryToIncreaseSpending(testCampaign, 10.0));
+                () -> campaignDAO.tryToIncreaseSpending(testCampaign, toMicros(10.0)));
         assertThat(result).isFalse();
         assertThat(campaignDAO.findById(testCampaign.getId())).get().extracting("spending").containsOnly(0.0);
     }
@@ -0,0 +1,182 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
+import io.dropwizard.testing.junit5.DAOTestExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.bendeguz.biddingapp.core.Money.toMicros;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for {@link DatabaseSpendingWindowStore}.
+ */
+@ExtendWith(DropwizardExtensionsSupport.class)
+class DatabaseSpendingWindowStoreTest {
+    private static final long CAMPAIGN_ID = 1;
+    private static final long LIMIT = toMicros(10);
+
+    private final String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=LEGACY;DB_CLOSE_DELAY=-1";
+    private final DAOTestExtension daoTestRule = DAOTestExtension.newBuilder()
+            .setUrl(url)
+            .setHbm2DdlAuto("none")
+            .addEntityClass(Campaign.class)
+            .addEntityClass(Keyword.class)
+            .build();
+
+    private final AtomicLong milliseconds = new AtomicLong(1_000_000_000_000L);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "")) {
+            new Liquibase("migrations.xml", new ClassLoaderResourceAccessor(), new JdbcConnection(connection))
+                    .update("");
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO campaigns (id, name, budget, spending) VALUES (" + CAMPAIGN_ID +
+                        ", 'Campaign', " + toMicros(1000) + ", 0)");
+            }
+            // Liquibase turns off auto-commit.
+            connection.commit();
+        }
+    }
+
+    private DatabaseSpendingWindowStore createStore() {
+        return new DatabaseSpendingWindowStore(daoTestRule.getSessionFactory(), milliseconds::get);
+    }
+
+    /**
+     * No more than the limit can be spent in the window, and the spending is available again once it has left
+     * the window.
+     */
+    @Test
+    void spendingIsLimitedInWindow() {
+        DatabaseSpendingWindowStore store = createStore();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isTrue();
+            milliseconds.addAndGet(500);
+        }
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+
+        // The first spending is in the bucket of the first second, that leaves the window after 11 seconds.
+        milliseconds.addAndGet(6_000);
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(2), LIMIT)).isTrue();
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+
+        milliseconds.addAndGet(60_000);
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(10), LIMIT)).isTrue();
+    }
+
+    /**
+     * Stores of different instances of the application share the limit of a campaign.
+     */
+    @Test
+    void limitIsSharedByStores() {
+        DatabaseSpendingWindowStore store1 = createStore();
+        DatabaseSpendingWindowStore store2 = createStore();
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(store1.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isTrue();
+            assertThat(store2.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isTrue();
+        }
+        assertThat(store1.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+        assertThat(store2.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+    }
+
+    /**
+     * The spending read from the store should only include the buckets inside the window.
+     */
+    @Test
+    void spendingIsReadFromWindow() {
+        DatabaseSpendingWindowStore store = createStore();
+        assertThat(store.getSpending(CAMPAIGN_ID)).isZero();
+
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(3), LIMIT)).isTrue();
+        milliseconds.addAndGet(5_000);
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(2), LIMIT)).isTrue();
+        assertThat(store.getSpending(CAMPAIGN_ID)).isEqualTo(toMicros(5));
+
+        milliseconds.addAndGet(6_000);
+        assertThat(store.getSpending(CAMPAIGN_ID)).isEqualTo(toMicros(2));
+    }
+
+    /**
+     * A store whose clock is behind must not move the window backward.
+     */
+    @Test
+    void windowDoesNotMoveBackward() {
+        AtomicLong laggingMilliseconds = new AtomicLong(milliseconds.get() - 5_000);
+        DatabaseSpendingWindowStore store = createStore();
+        DatabaseSpendingWindowStore laggingStore = new DatabaseSpendingWindowStore(daoTestRule.getSessionFactory(),
+                laggingMilliseconds::get);
+
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(10), LIMIT)).isTrue();
+        assertThat(laggingStore.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+    }
+
+    /**
+     * After a refusal, the headroom is below the refused amount until the end of the second, then the refusal
+     * is evicted.
+     */
+    @Test
+    void refusalLimitsHeadroom() {
+        DatabaseSpendingWindowStore store = createStore();
+        assertThat(store.getHeadroom(CAMPAIGN_ID, LIMIT)).isEqualTo(LIMIT);
+
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(9), LIMIT)).isTrue();
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(2), LIMIT)).isFalse();
+        assertThat(store.getHeadroom(CAMPAIGN_ID, LIMIT)).isEqualTo(toMicros(2) - 1);
+        assertThat(store.getCampaignCount()).isEqualTo(1);
+
+        milliseconds.addAndGet(1_000);
+        assertThat(store.getHeadroom(CAMPAIGN_ID, LIMIT)).isEqualTo(LIMIT);
+        assertThat(store.evictIdleCampaigns()).isEqualTo(1);
+        assertThat(store.getCampaignCount()).isZero();
+    }
+
+    /**
+     * The rows of the campaigns that have not spent for a long time should be deleted by the eviction, and their
+     * windows inserted again by their next spending.
+     */
+    @Test
+    void staleWindowsAreDeleted() throws Exception {
+        DatabaseSpendingWindowStore store = createStore();
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(10), LIMIT)).isTrue();
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+
+        milliseconds.addAndGet(30_000);
+        assertThat(store.evictIdleCampaigns()).isEqualTo(1);
+        assertThat(store.getCampaignCount()).isZero();
+        assertThat(countWindows()).isEqualTo(1);
+
+        milliseconds.addAndGet(31_000);
+        store.evictIdleCampaigns();
+        assertThat(countWindows()).isZero();
+
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(10), LIMIT)).isTrue();
+        assertThat(store.tryToSpend(CAMPAIGN_ID, toMicros(1), LIMIT)).isFalse();
+        assertThat(countWindows()).isEqualTo(1);
+    }
+
+    private int countWindows() throws Exception {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM spending_windows")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
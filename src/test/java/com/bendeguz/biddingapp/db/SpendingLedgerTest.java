@@ -0,0 +1,149 @@
+package com.bendeguz.biddingapp.db;
+
+import com.bendeguz.biddingapp.core.Campaign;
+import com.bendeguz.biddingapp.core.Keyword;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.testing.junit5.DAOTestExtension;
+import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
+import org.hibernate.Session;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.UUID;
+
+import static com.bendeguz.biddingapp.core.Money.toMicros;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Unit tests for {@link SpendingLedger}.
+ */
+@ExtendWith(DropwizardExtensionsSupport.class)
+class SpendingLedgerTest {
+
+    private final DAOTestExtension daoTestRule = DAOTestExtension.newBuilder()
+            .setUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=LEGACY")
+            .addEntityClass(Campaign.class)
+            .addEntityClass(Keyword.class)
+            .build();
+
+    private CampaignDAO campaignDAO;
+    private SpendingLedger spendingLedger;
+    private MetricRegistry metrics;
+
+    @BeforeEach
+    void setUp() {
+        campaignDAO = new CampaignDAO(daoTestRule.getSessionFactory());
+        // The interval is long enough so that only explicit and batch size triggered flushes happen during the tests.
+        metrics = new MetricRegistry();
+        spendingLedger = new SpendingLedger(daoTestRule.getSessionFactory(), 60_000, 3, metrics);
+        spendingLedger.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        spendingLedger.stop();
+    }
+
+    private double getSpendingFromDatabase(long campaignId) {
+        try (Session session = daoTestRule.getSessionFactory().openSession()) {
+            return session.get(Campaign.class, campaignId).getSpending();
+        }
+    }
+
+    @Test
+    void spendingIsLimitedByBudget() {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 2.0)));
+
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(0.0);
+
+        spendingLedger.flush();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(2.0);
+    }
+
+    @Test
+    void nonExistentCampaign() {
+        assertThat(spendingLedger.tryToIncreaseSpending(324234, toMicros(1.0))).isFalse();
+    }
+
+    /**
+     * When the spending in the database is increased by someone else, the ledger's update is refused. As much of the
+     * accepted spending should be written as the budget allows, the rest should be counted as lost, and no further
+     * bids should be accepted than what the database allows.
+     */
+    @Test
+    void divergedBalance() {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 10.0)));
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(2.0))).isTrue();
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(3.0))).isTrue();
+
+        daoTestRule.inTransaction(() -> campaignDAO.tryToIncreaseSpending(campaign.getId(), toMicros(8.0)));
+        spendingLedger.flush();
+
+        // Every accepted spending is either in the database, or counted as lost.
+        long lostSpending = metrics.counter(MetricRegistry.name(SpendingLedger.class, "lost-spending")).getCount();
+        assertThat(toMicros(getSpendingFromDatabase(campaign.getId())) + lostSpending)
+                .isEqualTo(toMicros(8.0) + toMicros(2.0) + toMicros(3.0));
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(10.0);
+        assertThat(lostSpending).isEqualTo(toMicros(3.0));
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+    }
+
+    /**
+     * Without any divergence, the database should contain exactly the accepted spending.
+     */
+    @Test
+    void writesAllAcceptedSpending() {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 10.0)));
+        long acceptedSpending = 0;
+        for (int i = 0; i < 15; i++) {
+            if (spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))) {
+                acceptedSpending += toMicros(1.0);
+            }
+        }
+        spendingLedger.flush();
+
+        assertThat(acceptedSpending).isEqualTo(toMicros(10.0));
+        assertThat(toMicros(getSpendingFromDatabase(campaign.getId()))).isEqualTo(acceptedSpending);
+        assertThat(metrics.counter(MetricRegistry.name(SpendingLedger.class, "lost-spending")).getCount()).isZero();
+    }
+
+    @Test
+    void stopFlushesLedger() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 10.0)));
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+
+        spendingLedger.stop();
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(1.0);
+        // Restarted so that tearDown can stop it again.
+        spendingLedger.start();
+    }
+
+    /**
+     * The spending accepted after the final flush would never be written to the database, so it should be refused,
+     * even when it would fill a batch.
+     */
+    @Test
+    void stoppedLedgerRefusesSpending() throws Exception {
+        final Campaign campaign = daoTestRule.inTransaction(
+                () -> campaignDAO.create(new Campaign("Test Campaign", new String[]{"Kobler"}, 10.0)));
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+
+        spendingLedger.stop();
+        for (int i = 0; i < 3; i++) {
+            assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isFalse();
+        }
+        assertThat(getSpendingFromDatabase(campaign.getId())).isEqualTo(1.0);
+        // Restarted so that tearDown can stop it again.
+        spendingLedger.start();
+        assertThat(spendingLedger.tryToIncreaseSpending(campaign.getId(), toMicros(1.0))).isTrue();
+    }
+}
@@ -1,13 +1,18 @@
 package com.bendeguz.biddingapp.resources;
 
 import com.bendeguz.biddingapp.BidSynchronizer;
+import com.bendeguz.biddingapp.KeywordIndex;
 import com.bendeguz.biddingapp.api.BidParam;
 import com.bendeguz.biddingapp.api.BidResult;
 import com.bendeguz.biddingapp.core.Campaign;
 import com.bendeguz.biddingapp.db.CampaignDAO;
+import com.bendeguz.biddingapp.db.DryRunSpendingStore;
+import com.bendeguz.biddingapp.db.SpendingStore;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.hibernate.HibernateBundle;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import io.dropwizard.testing.junit5.ResourceExtension;
+import org.glassfish.jersey.test.grizzly.GrizzlyWebTestContainerFactory;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.junit.jupiter.api.AfterEach;
@@ -17,12 +22,16 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import static com.bendeguz.biddingapp.core.Money.toMicros;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
 
@@ -53,12 +62,16 @@ class BidsResourceTest {
     private static final SessionFactory SESSION_FACTORY = mock(SessionFactory.class);
     private static final Session SESSION = mock(Session.class);
     private static final BidSynchronizer BID_SYNCHRONIZER = new BidSynchronizer();
+    private static final KeywordIndex KEYWORD_INDEX = new KeywordIndex();
+    private static final MetricRegistry METRICS = new MetricRegistry();
+    private static final BidsResource BIDS_RESOURCE = new BidsResource(CAMPAIGN_DAO, KEYWORD_INDEX, EXECUTOR_SERVICE,
+            HIBERNATE_BUNDLE, BID_SYNCHRONIZER, METRICS);
     private static final ResourceExtension RESOURCES = ResourceExtension.builder()
-            .addResource(new BidsResource(CAMPAIGN_DAO, EXECUTOR_SERVICE, HIBERNATE_BUNDLE, BID_SYNCHRONIZER))
+            .setTestContainerFactory(new GrizzlyWebTestContainerFactory())
+            .addResource(BIDS_RESOURCE)
             .build();
 
-    private final ArgumentCaptor<String[]> keywordArrayCaptor = ArgumentCaptor.forClass(String[].class);
-    private final ArgumentCaptor<Campaign> campaignCaptor = ArgumentCaptor.forClass(Campaign.class);
+    private final ArgumentCaptor<Long> campaignIdCaptor = ArgumentCaptor.forClass(Long.class);
     private Campaign campaign;
 
     @BeforeEach
@@ -67,6 +80,7 @@ class BidsResourceTest {
         campaign.setName("Test Campaign");
         campaign.setKeywords(new HashSet<>(Collections.singletonList("Keyword 1")));
         campaign.setBudget(100);
+        KEYWORD_INDEX.addCampaign(campaign);
         // The following mocks needs to be set up so we will not get any NullPointerExceptions when various methods of
         // HIBERNATE_BUNDLE are called. This is needed for all tests in this class.
         when(HIBERNATE_BUNDLE.getSessionFactory()).thenReturn(SESSION_FACTORY);
@@ -77,14 +91,12 @@ class BidsResourceTest {
     @AfterEach
     void tearDown() {
         reset(CAMPAIGN_DAO);
+        KEYWORD_INDEX.removeCampaign(campaign.getId());
     }
 
     @Test
     void createBid(){
-        when(CAMPAIGN_DAO.findCampaignsWithPositiveBalanceByKeywords(any(String[].class))).thenReturn(
-                new ArrayList<>(Collections.singletonList(campaign))
-        );
-        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Campaign.class), any(Double.class))).thenReturn(true);
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(true);
 
         BidParam bidParam = new BidParam(1, new String[]{"Keyword 1"});
         final Response response = RESOURCES.target("/bids")
@@ -95,18 +107,238 @@ class BidsResourceTest {
         BidResult bidResult = response.readEntity(BidResult.class);
         assertThat(bidResult.getBidAmount()).isEqualTo(1);
         assertThat(bidResult.getBidId()).isEqualTo(1);
-        verify(CAMPAIGN_DAO).findCampaignsWithPositiveBalanceByKeywords(keywordArrayCaptor.capture());
-        assertThat(keywordArrayCaptor.getValue()).containsOnly("Keyword 1");
-        verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignCaptor.capture(), any(Double.class));
-        assertThat(campaignCaptor.getValue()).isEqualTo(campaign);
+        verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignIdCaptor.capture(), any(Long.class));
+        assertThat(campaignIdCaptor.getValue()).isEqualTo(campaign.getId());
+        verify(CAMPAIGN_DAO, never()).findCampaignsWithPositiveBalanceByKeywords(any(String[].class));
+        assertThat(KEYWORD_INDEX.findCampaignIdsByKeywords(new String[]{"Keyword 1"})).containsOnly(campaign.getId());
+    }
+
+    /**
+     * Every stage of a bid should be measured.
+     */
+    @Test
+    void createBidMetrics(){
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(true);
+        long queueWaitCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount();
+        long candidateLookupCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "candidate-lookup")).getCount();
+        long spendingUpdateCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "spending-update")).getCount();
+        long candidatesTriedCount = METRICS.histogram(MetricRegistry.name(BidsResource.class, "candidates-tried")).getCount();
+        long timeoutCount = METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount();
+
+        BidParam bidParam = new BidParam(1, new String[]{"Keyword 1"});
+        final Response response = RESOURCES.target("/bids")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount()).isEqualTo(queueWaitCount + 1);
+        assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "candidate-lookup")).getCount()).isEqualTo(candidateLookupCount + 1);
+        assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "spending-update")).getCount()).isEqualTo(spendingUpdateCount + 1);
+        assertThat(METRICS.histogram(MetricRegistry.name(BidsResource.class, "candidates-tried")).getCount()).isEqualTo(candidatesTriedCount + 1);
+        assertThat(METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount()).isEqualTo(timeoutCount);
     }
 
     @Test
     void createBidUnsuccessfulUpdate(){
-        when(CAMPAIGN_DAO.findCampaignsWithPositiveBalanceByKeywords(any(String[].class))).thenReturn(
-                new ArrayList<>(Collections.singletonList(campaign))
-        );
-        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Campaign.class), any(Double.class))).thenReturn(false);
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(false);
+
+        BidParam bidParam = new BidParam(1, new String[]{"Keyword 1"});
+        final Response response = RESOURCES.target("/bids")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+        verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignIdCaptor.capture(), any(Long.class));
+        assertThat(campaignIdCaptor.getValue()).isEqualTo(campaign.getId());
+        // The database refused the spending, so the campaign's budget is exhausted - it should not be a candidate anymore.
+        assertThat(KEYWORD_INDEX.findCampaignIdsByKeywords(new String[]{"Keyword 1"})).isEmpty();
+    }
+
+    /**
+     * A campaign that has used up its spending limit of the past 10 seconds should not even be tried.
+     */
+    @Test
+    void createBidSkipsSaturatedCampaign() throws InterruptedException {
+        long saturatedCampaignId = 100;
+        KEYWORD_INDEX.addCampaign(saturatedCampaignId, Collections.singletonList("Keyword 3"));
+        assertThat(BID_SYNCHRONIZER.tryToSpendOnCampaign(saturatedCampaignId, toMicros(10))).isTrue();
+        try {
+            BidParam bidParam = new BidParam(1, new String[]{"Keyword 3"});
+            final Response response = RESOURCES.target("/bids")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+
+            assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+            verify(CAMPAIGN_DAO, never()).tryToIncreaseSpending(any(Long.class), any(Long.class));
+            assertThat(METRICS.counter(MetricRegistry.name(BidsResource.class, "saturated-candidates")).getCount()).isEqualTo(1);
+        } finally {
+            KEYWORD_INDEX.removeCampaign(saturatedCampaignId);
+        }
+    }
+
+    /**
+     * Once every candidate has refused a bid, the bids with the same keywords should be answered on the request thread
+     * until a candidate may accept them, or until a new campaign is added.
+     */
+    @Test
+    void createBidSkipsExhaustedKeywords() throws InterruptedException {
+        long saturatedCampaignId = 300;
+        long newCampaignId = 301;
+        KEYWORD_INDEX.addCampaign(saturatedCampaignId, Collections.singletonList("Keyword 5"));
+        assertThat(BID_SYNCHRONIZER.tryToSpendOnCampaign(saturatedCampaignId, toMicros(10))).isTrue();
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(true);
+        try {
+            BidParam bidParam = new BidParam(1, new String[]{"Keyword 5"});
+            Response response = RESOURCES.target("/bids")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+            assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+            assertThat(KEYWORD_INDEX.isExhausted(bidParam.getKeywords())).isTrue();
+
+            long queueWaitCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount();
+            long exhaustedBidCount = METRICS.meter(MetricRegistry.name(BidsResource.class, "exhausted-bids")).getCount();
+            response = RESOURCES.target("/bids")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+            assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+            assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount()).isEqualTo(queueWaitCount);
+            assertThat(METRICS.meter(MetricRegistry.name(BidsResource.class, "exhausted-bids")).getCount())
+                    .isEqualTo(exhaustedBidCount + 1);
+
+            KEYWORD_INDEX.addCampaign(newCampaignId, Collections.singletonList("Keyword 5"));
+            response = RESOURCES.target("/bids")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+            assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+            verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignIdCaptor.capture(), any(Long.class));
+            assertThat(campaignIdCaptor.getValue()).isEqualTo(newCampaignId);
+        } finally {
+            KEYWORD_INDEX.removeCampaign(saturatedCampaignId);
+            KEYWORD_INDEX.removeCampaign(newCampaignId);
+        }
+    }
+
+    /**
+     * The warm-up bids should go through the executor, without touching the real campaigns, spending windows or metrics.
+     */
+    @Test
+    void warmUp() throws InterruptedException {
+        long warmUpCampaignId = -1;
+        KeywordIndex dryRunKeywordIndex = new KeywordIndex();
+        dryRunKeywordIndex.addCampaign(warmUpCampaignId, Collections.singletonList("Warm-up Keyword"));
+        List<String[]> bids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            bids.add(new String[]{"Warm-up Keyword"});
+        }
+        long queueWaitCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount();
+
+        int successfulBids = BIDS_RESOURCE.warmUp(bids, 4,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(10), new DryRunSpendingStore(CAMPAIGN_DAO, false),
+                dryRunKeywordIndex, new BidSynchronizer());
+
+        // The dry-run bid synchronizer allows 10 NOK per 10 seconds on the campaign, just like the real one.
+        assertThat(successfulBids).isEqualTo(10);
+        verifyNoInteractions(CAMPAIGN_DAO);
+        assertThat(BID_SYNCHRONIZER.getHeadroom(warmUpCampaignId)).isEqualTo(toMicros(10));
+        assertThat(KEYWORD_INDEX.hasCampaignsWithKeywords(new String[]{"Warm-up Keyword"})).isFalse();
+        assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount()).isEqualTo(queueWaitCount);
+    }
+
+    /**
+     * The warm-up should not wait for its bids after its deadline, and the bids still running should be cancelled.
+     */
+    @Test
+    void warmUpStopsAtTheDeadline() throws InterruptedException {
+        long warmUpCampaignId = -1;
+        KeywordIndex dryRunKeywordIndex = new KeywordIndex();
+        dryRunKeywordIndex.addCampaign(warmUpCampaignId, Collections.singletonList("Warm-up Keyword"));
+        CountDownLatch interrupted = new CountDownLatch(1);
+        SpendingStore blockingSpendingStore = (campaignId, amount) -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        };
+
+        long startNanos = System.nanoTime();
+        int successfulBids = BIDS_RESOURCE.warmUp(Collections.singletonList(new String[]{"Warm-up Keyword"}), 4,
+                startNanos + TimeUnit.MILLISECONDS.toNanos(100), blockingSpendingStore, dryRunKeywordIndex,
+                new BidSynchronizer());
+
+        assertThat(successfulBids).isZero();
+        assertThat(System.nanoTime() - startNanos).isLessThan(TimeUnit.SECONDS.toNanos(5));
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    /**
+     * A campaign locked by another bid should not hold up the bid while there are other candidates to try.
+     */
+    @Test
+    void createBidSkipsBusyCampaign() throws InterruptedException {
+        long busyCampaignId = 200;
+        long freeCampaignId = 201;
+        KEYWORD_INDEX.addCampaign(busyCampaignId, Collections.singletonList("Keyword 4"));
+        KEYWORD_INDEX.addCampaign(freeCampaignId, Collections.singletonList("Keyword 4"));
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(true);
+        BID_SYNCHRONIZER.lockCampaign(busyCampaignId);
+        try {
+            BidParam bidParam = new BidParam(1, new String[]{"Keyword 4"});
+            final Response response = RESOURCES.target("/bids")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+
+            assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+            verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignIdCaptor.capture(), any(Long.class));
+            assertThat(campaignIdCaptor.getValue()).isEqualTo(freeCampaignId);
+        } finally {
+            BID_SYNCHRONIZER.unlockCampaign(busyCampaignId);
+            KEYWORD_INDEX.removeCampaign(busyCampaignId);
+            KEYWORD_INDEX.removeCampaign(freeCampaignId);
+        }
+    }
+
+    /**
+     * A bid that does not finish in time should be answered with 204 by the timer, and cancelled.
+     */
+    @Test
+    void createBidTimesOut() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenAnswer(invocation -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return true;
+        });
+        long timeoutCount = METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount();
+
+        long startNanos = System.nanoTime();
+        BidParam bidParam = new BidParam(1, new String[]{"Keyword 1"});
+        final Response response = RESOURCES.target("/bids")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
+        assertThat(System.nanoTime() - startNanos).isLessThan(TimeUnit.SECONDS.toNanos(5));
+        assertThat(METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount()).isEqualTo(timeoutCount + 1);
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    /**
+     * A bid interrupted by something other than the timeout handler (e.g. the executor shutting down) should still be
+     * answered with 204, without waiting for the timeout.
+     */
+    @Test
+    void createBidInterrupted() {
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenAnswer(invocation -> {
+            throw new InterruptedException();
+        });
+        long timeoutCount = METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount();
 
         BidParam bidParam = new BidParam(1, new String[]{"Keyword 1"});
         final Response response = RESOURCES.target("/bids")
@@ -114,15 +346,17 @@ class BidsResourceTest {
                 .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
 
         assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
-        verify(CAMPAIGN_DAO).findCampaignsWithPositiveBalanceByKeywords(keywordArrayCaptor.capture());
-        assertThat(keywordArrayCaptor.getValue()).containsOnly("Keyword 1");
-        verify(CAMPAIGN_DAO).tryToIncreaseSpending(campaignCaptor.capture(), any(Double.class));
-        assertThat(campaignCaptor.getValue()).isEqualTo(campaign);
+        assertThat(METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount()).isEqualTo(timeoutCount);
     }
 
+    /**
+     * A bid that cannot match any campaign should be answered on the request thread, without reaching the executor.
+     */
     @Test
     void createBidUnsuccessfulNoMatchingKeywords(){
-        when(CAMPAIGN_DAO.findCampaignsWithPositiveBalanceByKeywords(any(String[].class))).thenReturn(new ArrayList<>());
+        long queueWaitCount = METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount();
+        long bidCount = METRICS.meter(MetricRegistry.name(BidsResource.class, "bids")).getCount();
+        long unmatchedBidCount = METRICS.meter(MetricRegistry.name(BidsResource.class, "unmatched-bids")).getCount();
 
         BidParam bidParam = new BidParam(1, new String[]{"Keyword 2"});
         final Response response = RESOURCES.target("/bids")
@@ -130,7 +364,86 @@ class BidsResourceTest {
                 .post(Entity.entity(bidParam, MediaType.APPLICATION_JSON_TYPE));
 
         assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NO_CONTENT);
-        verify(CAMPAIGN_DAO).findCampaignsWithPositiveBalanceByKeywords(keywordArrayCaptor.capture());
-        assertThat(keywordArrayCaptor.getValue()).containsOnly("Keyword 2");
+        verify(CAMPAIGN_DAO, never()).tryToIncreaseSpending(any(Long.class), any(Long.class));
+        assertThat(METRICS.timer(MetricRegistry.name(BidsResource.class, "queue-wait")).getCount()).isEqualTo(queueWaitCount);
+        assertThat(METRICS.meter(MetricRegistry.name(BidsResource.class, "bids")).getCount()).isEqualTo(bidCount + 1);
+        assertThat(METRICS.meter(MetricRegistry.name(BidsResource.class, "unmatched-bids")).getCount())
+                .isEqualTo(unmatchedBidCount + 1);
+        assertThat(METRICS.getGauges()).containsKey(MetricRegistry.name(BidsResource.class, "unmatched-ratio"));
+    }
+
+    /**
+     * The bids of a batch should share a single lookup per set of keywords, and the results should follow
+     * the order of the bids, with {@code null} for the unsuccessful ones.
+     */
+    @Test
+    void createBids(){
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(true);
+
+        List<BidParam> bidParams = Arrays.asList(
+                new BidParam(1, new String[]{"Keyword 1"}),
+                new BidParam(2, new String[]{"Keyword 2"}),
+                new BidParam(3, new String[]{"Keyword 1"}));
+        final Response response = RESOURCES.target("/bids/batch")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParams, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        List<BidResult> bidResults = response.readEntity(new GenericType<List<BidResult>>() {});
+        assertThat(bidResults).hasSize(3);
+        assertThat(bidResults.get(0).getBidId()).isEqualTo(1);
+        assertThat(bidResults.get(1)).isNull();
+        assertThat(bidResults.get(2).getBidId()).isEqualTo(3);
+        verify(CAMPAIGN_DAO, times(2)).tryToIncreaseSpending(eq(campaign.getId()), any(Long.class));
+    }
+
+    /**
+     * A campaign refused by the database should not be tried again by the rest of the batch.
+     */
+    @Test
+    void createBidsUnsuccessfulUpdate(){
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenReturn(false);
+
+        List<BidParam> bidParams = Arrays.asList(
+                new BidParam(1, new String[]{"Keyword 1"}),
+                new BidParam(2, new String[]{"Keyword 1", "Keyword 2"}));
+        final Response response = RESOURCES.target("/bids/batch")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParams, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        assertThat(response.readEntity(new GenericType<List<BidResult>>() {})).containsExactly(null, null);
+        verify(CAMPAIGN_DAO, times(1)).tryToIncreaseSpending(any(Long.class), any(Long.class));
+    }
+
+    /**
+     * A batch that runs out of time should stop before the timeout, and answer with the bids placed so far, instead
+     * of the timeout handler answering with no bids at all.
+     */
+    @Test
+    void createBidsStopsBeforeTheTimeout(){
+        when(CAMPAIGN_DAO.tryToIncreaseSpending(any(Long.class), any(Long.class))).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return true;
+        });
+        long timeoutCount = METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount();
+
+        List<BidParam> bidParams = Arrays.asList(
+                new BidParam(1, new String[]{"Keyword 1"}),
+                new BidParam(2, new String[]{"Keyword 1"}),
+                new BidParam(3, new String[]{"Keyword 1"}),
+                new BidParam(4, new String[]{"Keyword 1"}));
+        final Response response = RESOURCES.target("/bids/batch")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(bidParams, MediaType.APPLICATION_JSON_TYPE));
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        List<BidResult> bidResults = response.readEntity(new GenericType<List<BidResult>>() {});
+        assertThat(bidResults).hasSize(4);
+        assertThat(bidResults.get(0).getBidId()).isEqualTo(1);
+        assertThat(bidResults.get(1).getBidId()).isEqualTo(2);
+        assertThat(bidResults.get(2)).isNull();
+        assertThat(bidResults.get(3)).isNull();
+        assertThat(METRICS.counter(MetricRegistry.name(BidsResource.class, "timeouts")).getCount()).isEqualTo(timeoutCount);
     }
 }
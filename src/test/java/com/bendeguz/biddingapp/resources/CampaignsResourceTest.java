@@ -1,9 +1,13 @@
 package com.bendeguz.biddingapp.resources;
 
+import com.bendeguz.biddingapp.CampaignCache;
+import com.bendeguz.biddingapp.CampaignLoader;
+import com.bendeguz.biddingapp.KeywordIndex;
 import com.bendeguz.biddingapp.api.CampaignParam;
 import com.bendeguz.biddingapp.core.Campaign;
 import com.bendeguz.biddingapp.db.CampaignDAO;
 import com.google.common.collect.ImmutableList;
+import io.dropwizard.jackson.Jackson;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import io.dropwizard.testing.junit5.ResourceExtension;
 import org.junit.jupiter.api.AfterEach;
@@ -17,10 +21,16 @@ import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -31,8 +41,9 @@ import static org.mockito.Mockito.when;
 @ExtendWith(DropwizardExtensionsSupport.class)
 class CampaignsResourceTest {
     private static final CampaignDAO CAMPAIGN_DAO = mock(CampaignDAO.class);
+    private static final CampaignCache CAMPAIGN_CACHE = new CampaignCache(new CampaignLoader(CAMPAIGN_DAO), 100, 60_000);
     private static final ResourceExtension RESOURCES = ResourceExtension.builder()
-            .addResource(new CampaignsResource(CAMPAIGN_DAO))
+            .addResource(new CampaignsResource(CAMPAIGN_DAO, new KeywordIndex(), CAMPAIGN_CACHE, Jackson.newObjectMapper()))
             .build();
     private final ArgumentCaptor<Campaign> campaignCaptor = ArgumentCaptor.forClass(Campaign.class);
     private final ArgumentCaptor<Long> campaignIdCaptor = ArgumentCaptor.forClass(Long.class);
@@ -54,6 +65,7 @@ class CampaignsResourceTest {
     @AfterEach
     void tearDown() {
         reset(CAMPAIGN_DAO);
+        CAMPAIGN_CACHE.invalidateAll();
     }
 
     @Test
@@ -69,22 +81,97 @@ class CampaignsResourceTest {
         assertThat(campaignCaptor.getValue()).isEqualTo(campaign1);
     }
 
+    /**
+     * Without paging parameters, every campaign should be listed, even more than a page.
+     */
     @Test
+    @SuppressWarnings("unchecked")
     void listCampaigns() {
+        final List<Campaign> campaigns = new ArrayList<>();
+        for (int i = 1; i <= CampaignsResource.DEFAULT_PAGE_SIZE + 1; i++) {
+            Campaign campaign = new Campaign("Test Campaign " + i, new String[]{"Keyword 1"}, 100.0);
+            campaign.setId(i);
+            campaigns.add(campaign);
+        }
+        doAnswer(invocation -> {
+            campaigns.forEach(invocation.<Consumer<Campaign>>getArgument(1));
+            return null;
+        }).when(CAMPAIGN_DAO).forEachCampaign(eq(0L), any(Consumer.class));
+
+        final Response response = RESOURCES.target("/campaigns")
+            .request().get();
+
+        assertThat(response.getLink("next")).isNull();
+        assertThat(response.readEntity(new GenericType<List<Campaign>>() {
+        })).hasSize(CampaignsResource.DEFAULT_PAGE_SIZE + 1).containsAll(campaigns);
+        verify(CAMPAIGN_DAO, never()).findPage(anyLong(), anyInt());
+    }
+
+    /**
+     * A page should hold {@code DEFAULT_PAGE_SIZE} campaigns, unless its size is specified.
+     */
+    @Test
+    void listCampaignsPage() {
         final List<Campaign> campaigns = ImmutableList.of(campaign1, campaign2);
-        when(CAMPAIGN_DAO.findAll()).thenReturn(campaigns);
+        when(CAMPAIGN_DAO.findPage(1, CampaignsResource.DEFAULT_PAGE_SIZE)).thenReturn(campaigns);
+
+        final Response response = RESOURCES.target("/campaigns")
+            .queryParam("after", 1)
+            .request().get();
+
+        verify(CAMPAIGN_DAO).findPage(1, CampaignsResource.DEFAULT_PAGE_SIZE);
+        assertThat(response.getLink("next")).isNull();
+        assertThat(response.readEntity(new GenericType<List<Campaign>>() {
+        })).containsAll(campaigns);
+    }
+
+    @Test
+    void listCampaignsLinksNextPage() {
+        campaign1.setId(3);
+        campaign2.setId(7);
+        when(CAMPAIGN_DAO.findPage(2, 2)).thenReturn(ImmutableList.of(campaign1, campaign2));
+
+        final Response response = RESOURCES.target("/campaigns")
+            .queryParam("after", 2)
+            .queryParam("limit", 2)
+            .request().get();
+
+        assertThat(response.getStatusInfo()).isEqualTo(Response.Status.OK);
+        assertThat(response.getLink("next").getUri().getQuery().split("&")).containsExactlyInAnyOrder("after=7", "limit=2");
+    }
+
+    @Test
+    void listCampaignsRejectsTooLargePage() {
+        final Response response = RESOURCES.target("/campaigns")
+            .queryParam("limit", CampaignsResource.MAX_PAGE_SIZE + 1)
+            .request().get();
+
+        assertThat(response.getStatus()).isEqualTo(400);
+        verify(CAMPAIGN_DAO, never()).findPage(anyLong(), anyInt());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void streamCampaigns() {
+        doAnswer(invocation -> {
+            Consumer<Campaign> consumer = invocation.getArgument(1);
+            consumer.accept(campaign1);
+            consumer.accept(campaign2);
+            return null;
+        }).when(CAMPAIGN_DAO).forEachCampaign(eq(0L), any(Consumer.class));
 
         final List<Campaign> response = RESOURCES.target("/campaigns")
+            .queryParam("stream", true)
             .request().get(new GenericType<List<Campaign>>() {
             });
 
-        verify(CAMPAIGN_DAO).findAll();
-        assertThat(response).containsAll(campaigns);
+        assertThat(response).containsExactly(campaign1, campaign2);
+        verify(CAMPAIGN_DAO, never()).findPage(anyLong(), anyInt());
     }
 
     @Test
     void getCampaign() {
-        when(CAMPAIGN_DAO.findById(any(Long.class))).thenReturn(Optional.of(campaign1));
+        when(CAMPAIGN_DAO.findByIdWithKeywords(any(Long.class))).thenReturn(Optional.of(campaign1));
         final Response response = RESOURCES.target("/campaigns/" + campaign1.getId())
                 .request()
                 .get(new GenericType<Response>() {});
@@ -95,20 +182,20 @@ class CampaignsResourceTest {
         assertThat(returnedCampaign.getName()).isEqualTo("Test Campaign");
         assertThat(returnedCampaign.getKeywords()).containsOnly("Keyword 1");
         assertThat(returnedCampaign.getBudget()).isEqualTo(100);
-        verify(CAMPAIGN_DAO).findById(campaignIdCaptor.capture());
+        verify(CAMPAIGN_DAO).findByIdWithKeywords(campaignIdCaptor.capture());
         assertThat(campaignIdCaptor.getValue()).isEqualTo(campaign1.getId());
     }
 
     @Test
     void getCampaignNotFound() {
-        when(CAMPAIGN_DAO.findById(any(Long.class))).thenReturn(Optional.empty());
+        when(CAMPAIGN_DAO.findByIdWithKeywords(any(Long.class))).thenReturn(Optional.empty());
         final Response response = RESOURCES.target("/campaigns/324234")
                 .request()
                 .get(new GenericType<Response>() {});
 
         assertThat(response.getStatusInfo()).isEqualTo(Response.Status.NOT_FOUND);
         assertThat(response.getMediaType()).isEqualTo(MediaType.APPLICATION_JSON_TYPE);
-        verify(CAMPAIGN_DAO).findById(campaignIdCaptor.capture());
+        verify(CAMPAIGN_DAO).findByIdWithKeywords(campaignIdCaptor.capture());
         assertThat(campaignIdCaptor.getValue()).isEqualTo(324234);
     }
 }
\ No newline at end of file